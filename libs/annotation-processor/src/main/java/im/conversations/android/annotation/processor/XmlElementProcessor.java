@@ -4,13 +4,16 @@ import com.google.auto.service.AutoService;
 import com.google.common.base.CaseFormat;
 import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.collect.ImmutableListMultimap;
 import com.google.common.collect.ImmutableMap;
+import com.google.common.collect.Multimaps;
 
 import im.conversations.android.annotation.XmlElement;
 import im.conversations.android.annotation.XmlPackage;
 
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.util.Collection;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -83,6 +86,7 @@ public class XmlElementProcessor extends AbstractProcessor {
             }
             out.println("EXTENSION_CLASS_MAP = builder.build();");
             out.println("}");
+            writeFactoryMethod(out, maps);
             out.println(" private Extensions() {}");
             out.println("}");
             // writing generated file to out …
@@ -92,6 +96,35 @@ public class XmlElementProcessor extends AbstractProcessor {
         return true;
     }
 
+    /**
+     * Writes a static {@code create(name, namespace)} method that switches over namespace and name
+     * and calls the matching default constructor directly. This avoids both reflection and the
+     * allocation of an {@link Id} lookup key for every element read from the stream.
+     */
+    private static void writeFactoryMethod(
+            final PrintWriter out, final ImmutableMap<Id, String> maps) {
+        final ImmutableListMultimap<String, Map.Entry<Id, String>> byNamespace =
+                Multimaps.index(maps.entrySet(), entry -> entry.getKey().namespace);
+        out.println("public static Extension create(final String name, final String namespace) {");
+        out.println("if (name == null || namespace == null) {");
+        out.println("return null;");
+        out.println("}");
+        out.println("switch (namespace) {");
+        for (final Map.Entry<String, Collection<Map.Entry<Id, String>>> namespace :
+                byNamespace.asMap().entrySet()) {
+            out.format("case \"%s\":\n", namespace.getKey());
+            out.println("switch (name) {");
+            for (final Map.Entry<Id, String> entry : namespace.getValue()) {
+                out.format("case \"%s\": return new %s();\n", entry.getKey().name, entry.getValue());
+            }
+            out.println("default: return null;");
+            out.println("}");
+        }
+        out.println("default: return null;");
+        out.println("}");
+        out.println("}");
+    }
+
     private static Id of(final TypeElement typeElement) {
         final XmlElement xmlElement = typeElement.getAnnotation(XmlElement.class);
         final PackageElement packageElement = getPackageElement(typeElement);
@@ -10,7 +10,9 @@ import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.database.Cursor;
+import android.database.SQLException;
 import android.database.sqlite.SQLiteDatabase;
+import android.database.sqlite.SQLiteStatement;
 import android.net.Uri;
 import android.os.Binder;
 import android.os.IBinder;
@@ -21,6 +23,7 @@ import androidx.core.app.NotificationCompat;
 import androidx.core.app.NotificationManagerCompat;
 
 import com.google.common.base.Charsets;
+import com.google.common.base.Joiner;
 import com.google.common.base.Stopwatch;
 import com.google.common.io.CountingInputStream;
 import com.google.common.util.concurrent.Futures;
@@ -38,6 +41,7 @@ import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.ui.ManageAccountActivity;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.ChunkedBackup;
 import eu.siacs.conversations.utils.SerialSingleThreadExecutor;
 import eu.siacs.conversations.worker.ExportBackupWorker;
 import eu.siacs.conversations.xmpp.Jid;
@@ -49,6 +53,7 @@ import org.bouncycastle.crypto.modes.GCMBlockCipher;
 import org.bouncycastle.crypto.params.AEADParameters;
 import org.bouncycastle.crypto.params.KeyParameter;
 
+import java.io.BufferedInputStream;
 import java.io.BufferedReader;
 import java.io.DataInputStream;
 import java.io.File;
@@ -62,8 +67,10 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
 import java.util.WeakHashMap;
 import java.util.concurrent.ExecutorService;
@@ -283,34 +290,32 @@ public class ImportBackupService extends Service {
 
             final byte[] key = ExportBackupWorker.getKey(password, backupFileHeader.getSalt());
 
-            final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
-            cipher.init(
-                    false,
-                    new AEADParameters(new KeyParameter(key), 128, backupFileHeader.getIv()));
-            final CipherInputStream cipherInputStream =
-                    new CipherInputStream(countingInputStream, cipher);
-
-            final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
-            final BufferedReader reader =
-                    new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
-            final JsonReader jsonReader = new JsonReader(reader);
-            if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
-                jsonReader.beginArray();
-            } else {
-                throw new IllegalStateException("Backup file did not begin with array");
-            }
+            final BulkInserter inserter = new BulkInserter(db);
             db.beginTransaction();
-            while (jsonReader.hasNext()) {
-                if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
-                    importRow(db, jsonReader, backupFileHeader.getJid(), password);
-                } else if (jsonReader.peek() == JsonToken.END_ARRAY) {
-                    jsonReader.endArray();
-                    continue;
+            try {
+                if (backupFileHeader.getVersion() >= 3) {
+                    importChunks(
+                            dataInputStream,
+                            key,
+                            backupFileHeader,
+                            password,
+                            inserter,
+                            fileSize,
+                            countingInputStream);
+                } else {
+                    importStream(
+                            countingInputStream,
+                            key,
+                            backupFileHeader,
+                            password,
+                            inserter,
+                            fileSize);
                 }
-                updateImportBackupNotification(fileSize, countingInputStream.getCount());
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+                inserter.close();
             }
-            db.setTransactionSuccessful();
-            db.endTransaction();
             final Jid jid = backupFileHeader.getJid();
             final Cursor countCursor =
                     db.rawQuery(
@@ -335,7 +340,9 @@ public class ImportBackupService extends Service {
         } catch (final Exception e) {
             final Throwable throwable = e.getCause();
             final boolean reasonWasCrypto =
-                    throwable instanceof BadPaddingException || e instanceof ZipException;
+                    throwable instanceof BadPaddingException
+                            || e instanceof ZipException
+                            || e instanceof ChunkedBackup.DecryptionException;
             synchronized (mOnBackupProcessedListeners) {
                 for (OnBackupProcessed l : mOnBackupProcessedListeners) {
                     if (reasonWasCrypto) {
@@ -350,44 +357,90 @@ public class ImportBackupService extends Service {
         }
     }
 
+    private void importStream(
+            final CountingInputStream countingInputStream,
+            final byte[] key,
+            final BackupFileHeader backupFileHeader,
+            final String password,
+            final BulkInserter inserter,
+            final long fileSize)
+            throws IOException {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(
+                false, new AEADParameters(new KeyParameter(key), 128, backupFileHeader.getIv()));
+        final CipherInputStream cipherInputStream =
+                new CipherInputStream(countingInputStream, cipher);
+
+        final GZIPInputStream gzipInputStream = new GZIPInputStream(cipherInputStream);
+        final BufferedReader reader =
+                new BufferedReader(new InputStreamReader(gzipInputStream, Charsets.UTF_8));
+        final JsonReader jsonReader = new JsonReader(reader);
+        if (jsonReader.peek() == JsonToken.BEGIN_ARRAY) {
+            jsonReader.beginArray();
+        } else {
+            throw new IllegalStateException("Backup file did not begin with array");
+        }
+        while (jsonReader.hasNext()) {
+            if (jsonReader.peek() == JsonToken.BEGIN_OBJECT) {
+                importRow(
+                        inserter,
+                        ChunkedBackup.Row.read(jsonReader),
+                        backupFileHeader.getJid(),
+                        password);
+            } else if (jsonReader.peek() == JsonToken.END_ARRAY) {
+                jsonReader.endArray();
+                continue;
+            }
+            updateImportBackupNotification(fileSize, countingInputStream.getCount());
+        }
+    }
+
+    private void importChunks(
+            final DataInputStream inputStream,
+            final byte[] key,
+            final BackupFileHeader backupFileHeader,
+            final String password,
+            final BulkInserter inserter,
+            final long fileSize,
+            final CountingInputStream countingInputStream)
+            throws IOException {
+        final ExecutorService executor = ChunkedBackup.newExecutor();
+        final ChunkedBackup.Reader reader =
+                new ChunkedBackup.Reader(
+                        new DataInputStream(new BufferedInputStream(inputStream, 64 * 1024)),
+                        key,
+                        backupFileHeader.getIv(),
+                        executor);
+        try {
+            List<ChunkedBackup.Row> rows;
+            while ((rows = reader.next()) != null) {
+                for (final ChunkedBackup.Row row : rows) {
+                    importRow(inserter, row, backupFileHeader.getJid(), password);
+                }
+                updateImportBackupNotification(fileSize, countingInputStream.getCount());
+            }
+        } finally {
+            reader.cancel();
+            executor.shutdownNow();
+        }
+    }
+
     private void importRow(
-            final SQLiteDatabase db,
-            final JsonReader jsonReader,
+            final BulkInserter inserter,
+            final ChunkedBackup.Row row,
             final Jid account,
             final String passphrase)
             throws IOException {
-        jsonReader.beginObject();
-        final String firstParameter = jsonReader.nextName();
-        if (!firstParameter.equals("table")) {
-            throw new IllegalStateException("Expected key 'table'");
-        }
-        final String table = jsonReader.nextString();
+        final String table = row.table;
         if (!TABLE_ALLOW_LIST.contains(table)) {
             throw new IOException(String.format("%s is not recognized for import", table));
         }
-        final ContentValues contentValues = new ContentValues();
-        final String secondParameter = jsonReader.nextName();
-        if (!secondParameter.equals("values")) {
-            throw new IllegalStateException("Expected key 'values'");
-        }
-        jsonReader.beginObject();
-        while (jsonReader.peek() != JsonToken.END_OBJECT) {
-            final String name = jsonReader.nextName();
-            if (COLUMN_PATTERN.matcher(name).matches()) {
-                if (jsonReader.peek() == JsonToken.NULL) {
-                    jsonReader.nextNull();
-                    contentValues.putNull(name);
-                } else if (jsonReader.peek() == JsonToken.NUMBER) {
-                    contentValues.put(name, jsonReader.nextLong());
-                } else {
-                    contentValues.put(name, jsonReader.nextString());
-                }
-            } else {
+        final ContentValues contentValues = row.values;
+        for (final String name : contentValues.keySet()) {
+            if (!COLUMN_PATTERN.matcher(name).matches()) {
                 throw new IOException(String.format("Unexpected column name %s", name));
             }
         }
-        jsonReader.endObject();
-        jsonReader.endObject();
         if (Account.TABLENAME.equals(table)) {
             final Jid jid =
                     Jid.of(
@@ -401,7 +454,63 @@ public class ImportBackupService extends Service {
                 throw new IOException("jid or password in table did not match backup");
             }
         }
-        db.insert(table, null, contentValues);
+        inserter.insert(table, contentValues);
+    }
+
+    /**
+     * Inserts rows through compiled statements, one per table and column set, instead of
+     * compiling a new statement for every {@code db.insert()}.
+     */
+    private static class BulkInserter {
+
+        private final SQLiteDatabase db;
+        private final Map<String, SQLiteStatement> statements = new HashMap<>();
+
+        private BulkInserter(final SQLiteDatabase db) {
+            this.db = db;
+        }
+
+        private void insert(final String table, final ContentValues contentValues) {
+            final List<String> columns = new ArrayList<>(contentValues.keySet());
+            Collections.sort(columns);
+            final String key = table + ':' + Joiner.on(',').join(columns);
+            SQLiteStatement statement = statements.get(key);
+            if (statement == null) {
+                statement =
+                        db.compileStatement(
+                                String.format(
+                                        "INSERT INTO %s(%s) VALUES(%s)",
+                                        table,
+                                        Joiner.on(',').join(columns),
+                                        Joiner.on(',')
+                                                .join(Collections.nCopies(columns.size(), "?"))));
+                statements.put(key, statement);
+            }
+            statement.clearBindings();
+            for (int i = 0; i < columns.size(); ++i) {
+                final Object value = contentValues.get(columns.get(i));
+                if (value == null) {
+                    statement.bindNull(i + 1);
+                } else if (value instanceof Number number) {
+                    statement.bindLong(i + 1, number.longValue());
+                } else {
+                    statement.bindString(i + 1, value.toString());
+                }
+            }
+            try {
+                statement.executeInsert();
+            } catch (final SQLException e) {
+                // db.insert() logged and skipped rows it could not insert; keep doing that
+                Log.d(Config.LOGTAG, "unable to insert row into " + table, e);
+            }
+        }
+
+        private void close() {
+            for (final SQLiteStatement statement : statements.values()) {
+                statement.close();
+            }
+            statements.clear();
+        }
     }
 
     private void notifySuccess() {
@@ -98,9 +98,12 @@ public final class Config {
 
     public static final int PAGE_SIZE = 50;
     public static final int MAX_NUM_PAGES = 3;
+    public static final int MESSAGE_WRITE_BATCH_SIZE = 100;
+    public static final int MESSAGE_WRITE_DELAY = 500; // ms a message may wait for a group commit
     public static final int MAX_SEARCH_RESULTS = 300;
 
     public static final int REFRESH_UI_INTERVAL = 500;
+    public static final int UI_UPDATE_INTERVAL = 16; // one frame; listener updates are coalesced within
 
     public static final int MAX_DISPLAY_MESSAGE_CHARS = 4096;
     public static final int MAX_STORAGE_MESSAGE_CHARS = 2 * 1024 * 1024; // 2MB
@@ -124,6 +127,9 @@ public final class Config {
     public static final boolean JINGLE_MESSAGE_INIT_STRICT_OFFLINE_CHECK = false;
     public static final boolean DISABLE_HTTP_UPLOAD = false;
     public static final boolean EXTENDED_SM_LOGGING = false; // log stanza counts
+    public static final int SM_ACK_REQUEST_DELAY = 250; // coalesce ack requests within (ms)
+    public static final int SM_ACK_REQUEST_STANZA_THRESHOLD = 10;
+    public static final int SM_MAX_UNACKNOWLEDGED_STANZAS = 200;
     public static final boolean BACKGROUND_STANZA_LOGGING =
             false; // log all stanzas that were received while the app is in background
     public static final boolean RESET_ATTEMPT_COUNT_ON_NETWORK_CHANGE =
@@ -3,6 +3,7 @@ package eu.siacs.conversations.crypto.axolotl;
 import static eu.siacs.conversations.utils.Random.SECURE_RANDOM;
 
 import android.os.Bundle;
+import android.os.SystemClock;
 import android.security.KeyChain;
 import android.util.Log;
 import android.util.Pair;
@@ -41,12 +42,19 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.IdentityHashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Random;
+import java.util.Locale;
 import java.util.Set;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.Lock;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
@@ -84,6 +92,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
     private static final int NUM_KEYS_TO_PUBLISH = 100;
     private static final int publishTriesThreshold = 3;
+    private static final int DECRYPTION_THREADS = Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    // more shards than threads so that one busy session does not hold up unrelated ones
+    private static final int DECRYPTION_SHARDS = 2 * DECRYPTION_THREADS;
+    private static final ExecutorService DECRYPTION_EXECUTOR = Executors.newFixedThreadPool(DECRYPTION_THREADS);
 
     private final Account account;
     private final XmppConnectionService mXmppConnectionService;
@@ -104,6 +116,9 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     private final Set<XmppAxolotlSession> postponedSessions = new HashSet<>(); //sessions stored here will receive after mam catchup treatment
     private final Set<SignalProtocolAddress> postponedHealing = new HashSet<>(); //addresses stored here will need a healing notification after mam catchup
     private final AtomicBoolean changeAccessMode = new AtomicBoolean(false);
+    private final Executor[] decryptionShards = new Executor[DECRYPTION_SHARDS];
+    private final Map<Element, PrefetchedDecryption> prefetchedDecryptions = new IdentityHashMap<>();
+    private final DecryptionStatistics decryptionStatistics = new DecryptionStatistics();
 
     public AxolotlService(Account account, XmppConnectionService connectionService) {
         if (account == null || connectionService == null) {
@@ -120,6 +135,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         this.sessions = new SessionMap(mXmppConnectionService, axolotlStore, account);
         this.fetchStatusMap = new FetchStatusMap();
         this.executor = new SerialSingleThreadExecutor("Axolotl");
+        for (int i = 0; i < decryptionShards.length; ++i) {
+            decryptionShards[i] = MoreExecutors.newSequentialExecutor(DECRYPTION_EXECUTOR);
+        }
+        replenishPreKeyReserve();
     }
 
     public static String getLogprefix(Account account) {
@@ -280,7 +299,11 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
     public void destroy() {
         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": destroying old axolotl service. no longer in use");
-        mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
+        axolotlStore.wipe();
+    }
+
+    public void flushSessions() {
+        axolotlStore.flushSessions();
     }
 
     public AxolotlService makeNew() {
@@ -610,12 +633,9 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
                 }
                 int newKeys = NUM_KEYS_TO_PUBLISH - preKeyRecords.size();
                 if (newKeys > 0) {
-                    List<PreKeyRecord> newRecords = KeyHelper.generatePreKeys(
-                            axolotlStore.getCurrentPreKeyId() + 1, newKeys);
-                    preKeyRecords.addAll(newRecords);
-                    for (PreKeyRecord record : newRecords) {
-                        axolotlStore.storePreKey(record.getId(), record);
-                    }
+                    // the bundle is only published once the new keys have been committed
+                    preKeyRecords.addAll(axolotlStore.storeNewPreKeys(newKeys));
+                    replenishPreKeyReserve();
                     changed = true;
                     Log.i(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Adding " + newKeys + " new preKeys to PEP.");
                 }
@@ -643,6 +663,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         });
     }
 
+    private void replenishPreKeyReserve() {
+        executor.execute(() -> axolotlStore.replenishPreKeyReserve(NUM_KEYS_TO_PUBLISH));
+    }
+
     private void publishDeviceBundle(SignedPreKeyRecord signedPreKeyRecord,
                                      Set<PreKeyRecord> preKeyRecords,
                                      final boolean announceAfter,
@@ -952,7 +976,13 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
 
                 try {
                     SessionBuilder builder = new SessionBuilder(axolotlStore, address);
-                    builder.process(preKeyBundle);
+                    final Lock lock = axolotlStore.getSessionLock(address);
+                    lock.lock();
+                    try {
+                        builder.process(preKeyBundle);
+                    } finally {
+                        lock.unlock();
+                    }
                     XmppAxolotlSession session = new XmppAxolotlSession(account, axolotlStore, address, bundle.getIdentityKey());
                     sessions.put(address, session);
                     if (Config.X509_VERIFICATION) {
@@ -1144,13 +1174,10 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         if (remoteSessions.isEmpty() && !acceptEmpty) {
             return false;
         }
-        for (XmppAxolotlSession session : remoteSessions) {
-            axolotlMessage.addDevice(session);
-        }
-        for (XmppAxolotlSession session : ownSessions) {
-            axolotlMessage.addDevice(session);
-        }
-
+        final List<XmppAxolotlSession> sessions = new ArrayList<>(remoteSessions);
+        sessions.addAll(ownSessions);
+        axolotlMessage.addDevices(sessions, false);
+        axolotlStore.flushSessions();
         return true;
     }
 
@@ -1165,9 +1192,8 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
             return false;
         }
         sessions.addAll(findOwnSessions());
-        for (XmppAxolotlSession session : sessions) {
-            axolotlMessage.addDevice(session);
-        }
+        axolotlMessage.addDevices(sessions, false);
+        axolotlStore.flushSessions();
         return true;
     }
 
@@ -1231,6 +1257,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
                 transportInfo.addChild(child);
             }
         }
+        axolotlStore.flushSessions();
         return transportInfo;
     }
 
@@ -1407,15 +1434,94 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         return session;
     }
 
-    public XmppAxolotlMessage.XmppAxolotlPlaintextMessage processReceivingPayloadMessage(XmppAxolotlMessage message, boolean postponePreKeyMessageHandling) throws NotEncryptedForThisDeviceException, BrokenSessionException, OutdatedSenderException {
+    /**
+     * Starts decrypting a message ahead of its processing. Decryption runs on the shard of the
+     * sender device, so messages from independent sessions are decrypted in parallel while the
+     * messages of one session are still decrypted in the order they have been received in. The
+     * result is picked up by processReceivingPayloadMessage() or
+     * processReceivingKeyTransportMessage() when they are called with the same element.
+     */
+    public void prefetchDecryption(final Element axolotlEncrypted, final Jid from) {
+        final XmppAxolotlMessage message;
+        try {
+            message = XmppAxolotlMessage.fromElement(axolotlEncrypted, from.asBareJid());
+        } catch (final Exception e) {
+            // reported once the message gets processed
+            return;
+        }
+        final SignalProtocolAddress address = new SignalProtocolAddress(message.getFrom().toString(), message.getSenderDeviceId());
+        final Executor shard = decryptionShards[Math.floorMod(address.hashCode(), decryptionShards.length)];
+        final long queued = SystemClock.elapsedRealtime();
+        decryptionStatistics.queued();
+        final ListenableFuture<Decryption> future = Futures.submit(() -> {
+            try {
+                return decrypt(message);
+            } finally {
+                decryptionStatistics.decrypted(SystemClock.elapsedRealtime() - queued);
+            }
+        }, shard);
+        synchronized (prefetchedDecryptions) {
+            prefetchedDecryptions.put(axolotlEncrypted, new PrefetchedDecryption(message.getFrom(), future));
+        }
+    }
+
+    /**
+     * Drops prefetched decryptions that have not been picked up, for example because the
+     * message turned out to be a duplicate. Decryptions that are still running are waited for so
+     * that they can not race with whatever touches the same sessions next.
+     */
+    public void discardPrefetchedDecryptions() {
+        final List<ListenableFuture<Decryption>> pending = new ArrayList<>();
+        synchronized (prefetchedDecryptions) {
+            for (final PrefetchedDecryption prefetched : prefetchedDecryptions.values()) {
+                pending.add(prefetched.future);
+            }
+            prefetchedDecryptions.clear();
+        }
+        if (!pending.isEmpty()) {
+            Futures.getUnchecked(Futures.successfulAsList(pending));
+        }
+    }
+
+    public String getDecryptionStatistics() {
+        return decryptionStatistics.toString();
+    }
+
+    private Decryption takeDecryption(final Element axolotlEncrypted, final XmppAxolotlMessage message) {
+        final PrefetchedDecryption prefetched;
+        synchronized (prefetchedDecryptions) {
+            prefetched = axolotlEncrypted == null ? null : prefetchedDecryptions.remove(axolotlEncrypted);
+        }
+        if (prefetched != null && prefetched.from.equals(message.getFrom())) {
+            return Futures.getUnchecked(prefetched.future);
+        }
+        return decrypt(message);
+    }
+
+    private Decryption decrypt(final XmppAxolotlMessage message) {
+        final XmppAxolotlSession session = getReceivingSession(message);
+        try {
+            if (message.hasPayload()) {
+                final XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage = message.decrypt(session, getOwnDeviceId());
+                return new Decryption(session, plaintextMessage, null, session.getPreKeyIdAndReset(), null);
+            } else {
+                final XmppAxolotlMessage.XmppAxolotlKeyTransportMessage keyTransportMessage = message.getParameters(session, getOwnDeviceId());
+                return new Decryption(session, null, keyTransportMessage, session.getPreKeyIdAndReset(), null);
+            }
+        } catch (final CryptoFailedException e) {
+            return new Decryption(session, null, null, null, e);
+        }
+    }
+
+    public XmppAxolotlMessage.XmppAxolotlPlaintextMessage processReceivingPayloadMessage(final Element axolotlEncrypted, XmppAxolotlMessage message, boolean postponePreKeyMessageHandling) throws NotEncryptedForThisDeviceException, BrokenSessionException, OutdatedSenderException {
         XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage = null;
 
-        XmppAxolotlSession session = getReceivingSession(message);
+        final Decryption decryption = takeDecryption(axolotlEncrypted, message);
+        final XmppAxolotlSession session = decryption.session;
         int ownDeviceId = getOwnDeviceId();
         try {
-            plaintextMessage = message.decrypt(session, ownDeviceId);
-            Integer preKeyId = session.getPreKeyIdAndReset();
-            if (preKeyId != null) {
+            plaintextMessage = decryption.getPlaintextMessage();
+            if (decryption.preKeyId != null) {
                 postPreKeyMessageHandling(session, postponePreKeyMessageHandling);
             }
         } catch (NotEncryptedForThisDeviceException e) {
@@ -1485,6 +1591,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     public void processPostponed() {
+        Log.d(Config.LOGTAG, getLogprefix(account) + getDecryptionStatistics());
         if (postponedSessions.size() > 0) {
             if (axolotlStore.flushPreKeys()) {
                 publishBundlesIfNeeded(false, false);
@@ -1525,6 +1632,7 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     private void completeSession(XmppAxolotlSession session) {
         final XmppAxolotlMessage axolotlMessage = new XmppAxolotlMessage(account.getJid().asBareJid(), getOwnDeviceId());
         axolotlMessage.addDevice(session, true);
+        axolotlStore.flushSessions();
         try {
             final Jid jid = Jid.of(session.getRemoteAddress().getName());
             final var packet = mXmppConnectionService.getMessageGenerator().generateKeyTransportMessage(jid, axolotlMessage);
@@ -1535,12 +1643,16 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
     }
 
     public XmppAxolotlMessage.XmppAxolotlKeyTransportMessage processReceivingKeyTransportMessage(XmppAxolotlMessage message, final boolean postponePreKeyMessageHandling) {
+        return processReceivingKeyTransportMessage(null, message, postponePreKeyMessageHandling);
+    }
+
+    public XmppAxolotlMessage.XmppAxolotlKeyTransportMessage processReceivingKeyTransportMessage(final Element axolotlEncrypted, XmppAxolotlMessage message, final boolean postponePreKeyMessageHandling) {
         final XmppAxolotlMessage.XmppAxolotlKeyTransportMessage keyTransportMessage;
-        final XmppAxolotlSession session = getReceivingSession(message);
+        final Decryption decryption = takeDecryption(axolotlEncrypted, message);
+        final XmppAxolotlSession session = decryption.session;
         try {
-            keyTransportMessage = message.getParameters(session, getOwnDeviceId());
-            Integer preKeyId = session.getPreKeyIdAndReset();
-            if (preKeyId != null) {
+            keyTransportMessage = decryption.getKeyTransportMessage();
+            if (decryption.preKeyId != null) {
                 postPreKeyMessageHandling(session, postponePreKeyMessageHandling);
             }
         } catch (CryptoFailedException e) {
@@ -1751,6 +1863,85 @@ public class AxolotlService implements OnAdvancedStreamFeaturesLoaded {
         }
     }
 
+    private static class Decryption {
+        private final XmppAxolotlSession session;
+        private final XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage;
+        private final XmppAxolotlMessage.XmppAxolotlKeyTransportMessage keyTransportMessage;
+        private final Integer preKeyId;
+        private final CryptoFailedException exception;
+
+        private Decryption(final XmppAxolotlSession session,
+                           final XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage,
+                           final XmppAxolotlMessage.XmppAxolotlKeyTransportMessage keyTransportMessage,
+                           final Integer preKeyId,
+                           final CryptoFailedException exception) {
+            this.session = session;
+            this.plaintextMessage = plaintextMessage;
+            this.keyTransportMessage = keyTransportMessage;
+            this.preKeyId = preKeyId;
+            this.exception = exception;
+        }
+
+        private XmppAxolotlMessage.XmppAxolotlPlaintextMessage getPlaintextMessage() throws CryptoFailedException {
+            if (exception != null) {
+                throw exception;
+            }
+            return plaintextMessage;
+        }
+
+        private XmppAxolotlMessage.XmppAxolotlKeyTransportMessage getKeyTransportMessage() throws CryptoFailedException {
+            if (exception != null) {
+                throw exception;
+            }
+            return keyTransportMessage;
+        }
+    }
+
+    private static class PrefetchedDecryption {
+        private final Jid from;
+        private final ListenableFuture<Decryption> future;
+
+        private PrefetchedDecryption(final Jid from, final ListenableFuture<Decryption> future) {
+            this.from = from;
+            this.future = future;
+        }
+    }
+
+    private static class DecryptionStatistics {
+        private final AtomicInteger queueDepth = new AtomicInteger();
+        private int maxQueueDepth = 0;
+        private long decrypted = 0;
+        private long totalLatency = 0;
+        private long maxLatency = 0;
+
+        private void queued() {
+            final int depth = queueDepth.incrementAndGet();
+            synchronized (this) {
+                maxQueueDepth = Math.max(maxQueueDepth, depth);
+            }
+        }
+
+        private synchronized void decrypted(final long latency) {
+            queueDepth.decrementAndGet();
+            decrypted++;
+            totalLatency += latency;
+            maxLatency = Math.max(maxLatency, latency);
+        }
+
+        @NonNull
+        @Override
+        public synchronized String toString() {
+            return String.format(
+                    Locale.ENGLISH,
+                    "decryptions[count=%d,avgLatency=%dms,maxLatency=%dms,queueDepth=%d,maxQueueDepth=%d]",
+                    decrypted,
+                    decrypted == 0 ? 0 : totalLatency / decrypted,
+                    maxLatency,
+                    queueDepth.get(),
+                    maxQueueDepth);
+        }
+    }
+
     public static class NotVerifiedException extends SecurityException {
 
         public NotVerifiedException(String message) {
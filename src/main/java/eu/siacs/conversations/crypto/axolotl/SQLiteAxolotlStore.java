@@ -3,6 +3,8 @@ package eu.siacs.conversations.crypto.axolotl;
 import android.util.Log;
 import android.util.LruCache;
 
+import com.google.common.util.concurrent.Striped;
+
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
 import org.whispersystems.libsignal.InvalidKeyIdException;
@@ -14,11 +16,23 @@ import org.whispersystems.libsignal.state.SessionRecord;
 import org.whispersystems.libsignal.state.SignalProtocolStore;
 import org.whispersystems.libsignal.state.SignedPreKeyRecord;
 import org.whispersystems.libsignal.util.KeyHelper;
+import org.whispersystems.libsignal.util.Medium;
 
+import java.io.IOException;
 import java.security.cert.X509Certificate;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.HashSet;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
+import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.locks.Lock;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
@@ -48,6 +62,13 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	public static final String JSONKEY_CURRENT_PREKEY_ID = "axolotl_cur_prekey_id";
 
 	private static final int NUM_TRUSTS_TO_CACHE = 100;
+	private static final int NUM_IDENTITIES_TO_CACHE = 100;
+	private static final int SESSION_CACHE_SIZE = 512 * 1024;
+	private static final int MAX_DIRTY_SESSIONS = 32;
+	private static final long SESSION_WRITE_DELAY = 500;
+	private static final int NUM_SESSION_LOCKS = 64;
+
+	private static final ScheduledExecutorService SESSION_FLUSH_SCHEDULER = Executors.newSingleThreadScheduledExecutor();
 
 	private final Account account;
 	private final XmppConnectionService mXmppConnectionService;
@@ -57,6 +78,8 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	private int currentPreKeyId = 0;
 
 	private final HashSet<Integer> preKeysMarkedForRemoval = new HashSet<>();
+	// key pairs generated ahead of time; ids are only assigned once they get stored
+	private final ArrayDeque<ECKeyPair> preKeyReserve = new ArrayDeque<>();
 
 	private final LruCache<String, FingerprintStatus> trustCache =
 			new LruCache<String, FingerprintStatus>(NUM_TRUSTS_TO_CACHE) {
@@ -66,6 +89,34 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 				}
 			};
 
+	private final LruCache<String, Set<IdentityKey>> identityCache =
+			new LruCache<String, Set<IdentityKey>>(NUM_IDENTITIES_TO_CACHE) {
+				@Override
+				protected Set<IdentityKey> create(String name) {
+					return mXmppConnectionService.databaseBackend.loadIdentityKeys(account, name);
+				}
+			};
+
+	/*
+	 * Serialized session records. Records that have been stored but not yet written are also held
+	 * in dirtySessions, which is never evicted, and are written in one transaction by
+	 * flushSessions(). Every path that lets ciphertext leave the device or discards a pre key
+	 * flushes first, so the durable ratchet state never falls behind what has been used.
+	 */
+	private final LruCache<SignalProtocolAddress, byte[]> sessionCache =
+			new LruCache<SignalProtocolAddress, byte[]>(SESSION_CACHE_SIZE) {
+				@Override
+				protected int sizeOf(SignalProtocolAddress address, byte[] serialized) {
+					return serialized.length;
+				}
+			};
+	private final LinkedHashMap<SignalProtocolAddress, byte[]> dirtySessions = new LinkedHashMap<>();
+	// serializes writes to the sessions table so an older snapshot can never overwrite a newer one
+	private final Object sessionWriteLock = new Object();
+	private long sessionGeneration = 0;
+	private boolean sessionFlushScheduled = false;
+	private final Striped<Lock> sessionLocks = Striped.lock(NUM_SESSION_LOCKS);
+
 	private static IdentityKeyPair generateIdentityKeyPair() {
 		Log.i(Config.LOGTAG, AxolotlService.LOGPREFIX + " : " + "Generating axolotl IdentityKeyPair...");
 		ECKeyPair identityKeyPairKeys = Curve.generateKeyPair();
@@ -143,8 +194,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	}
 
 	public void regenerate() {
-		mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
-		trustCache.evictAll();
+		wipe();
 		account.setKey(JSONKEY_CURRENT_PREKEY_ID, Integer.toString(0));
 		identityKeyPair = loadIdentityKeyPair();
 		localRegistrationId = loadRegistrationId(true);
@@ -152,6 +202,19 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 		mXmppConnectionService.updateAccountUi();
 	}
 
+	public void wipe() {
+		synchronized (sessionWriteLock) {
+			synchronized (dirtySessions) {
+				dirtySessions.clear();
+				sessionCache.evictAll();
+				sessionGeneration++;
+			}
+			mXmppConnectionService.databaseBackend.wipeAxolotlDb(account);
+		}
+		trustCache.evictAll();
+		identityCache.evictAll();
+	}
+
 	/**
 	 * Get the local client's identity key pair.
 	 *
@@ -189,7 +252,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean saveIdentity(SignalProtocolAddress address, IdentityKey identityKey) {
-		if (!mXmppConnectionService.databaseBackend.loadIdentityKeys(account, address.getName()).contains(identityKey)) {
+		if (!identityCache.get(address.getName()).contains(identityKey)) {
 			String fingerprint = CryptoHelper.bytesToHex(identityKey.getPublicKey().serialize());
 			FingerprintStatus status = getFingerprintStatus(fingerprint);
 			if (status == null) {
@@ -203,6 +266,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 				status = status.toActive();
 			}
 			mXmppConnectionService.databaseBackend.storeIdentityKey(account, address.getName(), identityKey, status);
+			identityCache.remove(address.getName());
 			trustCache.remove(fingerprint);
 		}
 		return true;
@@ -270,8 +334,47 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public SessionRecord loadSession(SignalProtocolAddress address) {
-		SessionRecord session = mXmppConnectionService.databaseBackend.loadSession(this.account, address);
-		return (session != null) ? session : new SessionRecord();
+		final byte[] serialized = loadSerializedSession(address);
+		if (serialized == null) {
+			return new SessionRecord();
+		}
+		try {
+			return new SessionRecord(serialized);
+		} catch (IOException e) {
+			throw new AssertionError(e);
+		}
+	}
+
+	private byte[] loadSerializedSession(SignalProtocolAddress address) {
+		final long generation;
+		synchronized (dirtySessions) {
+			final byte[] dirty = dirtySessions.get(address);
+			if (dirty != null) {
+				return dirty;
+			}
+			final byte[] cached = sessionCache.get(address);
+			if (cached != null) {
+				return cached;
+			}
+			generation = sessionGeneration;
+		}
+		final byte[] serialized = mXmppConnectionService.databaseBackend.loadSession(account, address);
+		synchronized (dirtySessions) {
+			// a store or delete that raced the query is newer than what has been read
+			if (serialized != null && generation == sessionGeneration) {
+				sessionCache.put(address, serialized);
+			}
+		}
+		return serialized;
+	}
+
+	/**
+	 * Held while a session is processed, on top of libsignal's global lock, so that the trust
+	 * checks and bookkeeping around a ratchet step for one device do not interleave when messages
+	 * of that device are decrypted on different threads.
+	 */
+	Lock getSessionLock(SignalProtocolAddress address) {
+		return sessionLocks.get(address);
 	}
 
 	/**
@@ -282,23 +385,72 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public List<Integer> getSubDeviceSessions(String name) {
+		flushSessions();
 		return mXmppConnectionService.databaseBackend.getSubDeviceSessions(account,
 				new SignalProtocolAddress(name, 0));
 	}
 
 
 	public List<String> getKnownAddresses() {
+		flushSessions();
 		return mXmppConnectionService.databaseBackend.getKnownSignalAddresses(account);
 	}
 	/**
 	 * Commit to storage the {@link SessionRecord} for a given recipientId + deviceId tuple.
+	 * <p/>
+	 * The record is written with the next call to {@link #flushSessions()}, at the latest
+	 * {@link #SESSION_WRITE_DELAY} ms from now.
 	 *
 	 * @param address the address of the remote client.
 	 * @param record  the current SessionRecord for the remote client.
 	 */
 	@Override
 	public void storeSession(SignalProtocolAddress address, SessionRecord record) {
-		mXmppConnectionService.databaseBackend.storeSession(account, address, record);
+		final byte[] serialized = record.serialize();
+		final boolean flush;
+		final boolean schedule;
+		synchronized (dirtySessions) {
+			dirtySessions.put(address, serialized);
+			sessionCache.put(address, serialized);
+			sessionGeneration++;
+			flush = dirtySessions.size() >= MAX_DIRTY_SESSIONS;
+			schedule = !flush && !sessionFlushScheduled;
+			sessionFlushScheduled |= schedule;
+		}
+		if (flush) {
+			flushSessions();
+		} else if (schedule) {
+			SESSION_FLUSH_SCHEDULER.schedule(this::flushSessions, SESSION_WRITE_DELAY, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes all stored but not yet written {@link SessionRecord}s in a single transaction. Must be
+	 * called before anything encrypted with those sessions is handed out.
+	 */
+	public void flushSessions() {
+		synchronized (sessionWriteLock) {
+			final Map<SignalProtocolAddress, byte[]> sessions;
+			synchronized (dirtySessions) {
+				sessionFlushScheduled = false;
+				if (dirtySessions.isEmpty()) {
+					return;
+				}
+				sessions = new HashMap<>(dirtySessions);
+			}
+			mXmppConnectionService.databaseBackend.storeSessions(account, sessions);
+			synchronized (dirtySessions) {
+				for (final Map.Entry<SignalProtocolAddress, byte[]> entry : sessions.entrySet()) {
+					// stored again in the meantime; stays dirty for the next flush
+					if (dirtySessions.get(entry.getKey()) == entry.getValue()) {
+						dirtySessions.remove(entry.getKey());
+					}
+				}
+			}
+			if (sessions.size() > 1) {
+				Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "flushed " + sessions.size() + " sessions");
+			}
+		}
 	}
 
 	/**
@@ -309,7 +461,7 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public boolean containsSession(SignalProtocolAddress address) {
-		return mXmppConnectionService.databaseBackend.containsSession(account, address);
+		return loadSerializedSession(address) != null;
 	}
 
 	/**
@@ -319,7 +471,14 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	 */
 	@Override
 	public void deleteSession(SignalProtocolAddress address) {
-		mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		synchronized (sessionWriteLock) {
+			synchronized (dirtySessions) {
+				dirtySessions.remove(address);
+				sessionCache.remove(address);
+				sessionGeneration++;
+			}
+			mXmppConnectionService.databaseBackend.deleteSession(account, address);
+		}
 	}
 
 	/**
@@ -330,8 +489,24 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	@Override
 	public void deleteAllSessions(String name) {
 		SignalProtocolAddress address = new SignalProtocolAddress(name, 0);
-		mXmppConnectionService.databaseBackend.deleteAllSessions(account,
-				address);
+		synchronized (sessionWriteLock) {
+			synchronized (dirtySessions) {
+				final Iterator<SignalProtocolAddress> iterator = dirtySessions.keySet().iterator();
+				while (iterator.hasNext()) {
+					if (iterator.next().getName().equals(name)) {
+						iterator.remove();
+					}
+				}
+				for (final SignalProtocolAddress cached : sessionCache.snapshot().keySet()) {
+					if (cached.getName().equals(name)) {
+						sessionCache.remove(cached);
+					}
+				}
+				sessionGeneration++;
+			}
+			mXmppConnectionService.databaseBackend.deleteAllSessions(account,
+					address);
+		}
 	}
 
 	// --------------------------------------
@@ -395,8 +570,67 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 	}
 
 
+	/**
+	 * Stores the given number of new pre keys in one transaction. Key pairs are taken from the
+	 * reserve as far as it goes, the rest is generated on the spot.
+	 *
+	 * @return the stored records, which are safe to publish
+	 */
+	public synchronized List<PreKeyRecord> storeNewPreKeys(final int count) {
+		final List<ECKeyPair> keyPairs = new ArrayList<>(count);
+		synchronized (preKeyReserve) {
+			while (keyPairs.size() < count && !preKeyReserve.isEmpty()) {
+				keyPairs.add(preKeyReserve.poll());
+			}
+		}
+		if (keyPairs.size() < count) {
+			Log.d(Config.LOGTAG, AxolotlService.getLogprefix(account) + "pre key reserve exhausted. generating " + (count - keyPairs.size()) + " keys");
+			while (keyPairs.size() < count) {
+				keyPairs.add(Curve.generateKeyPair());
+			}
+		}
+		final List<PreKeyRecord> records = new ArrayList<>(count);
+		int preKeyId = currentPreKeyId;
+		for (final ECKeyPair keyPair : keyPairs) {
+			// same id sequence as KeyHelper.generatePreKeys()
+			preKeyId = (preKeyId % (Medium.MAX_VALUE - 1)) + 1;
+			records.add(new PreKeyRecord(preKeyId, keyPair));
+		}
+		mXmppConnectionService.databaseBackend.storePreKeys(account, records);
+		currentPreKeyId = preKeyId;
+		if (this.account.setKey(JSONKEY_CURRENT_PREKEY_ID, Integer.toString(preKeyId))) {
+			mXmppConnectionService.databaseBackend.updateAccount(account);
+		} else {
+			Log.e(Config.LOGTAG, AxolotlService.getLogprefix(account) + "Failed to write new prekey id to the database!");
+		}
+		return records;
+	}
+
+	/**
+	 * Generates key pairs until the reserve holds the given number of them. Pre keys that have
+	 * never been stored are not bound to an identity, so the reserve survives a wipe.
+	 */
+	public void replenishPreKeyReserve(final int size) {
+		final int missing;
+		synchronized (preKeyReserve) {
+			missing = size - preKeyReserve.size();
+		}
+		if (missing <= 0) {
+			return;
+		}
+		final List<ECKeyPair> keyPairs = new ArrayList<>(missing);
+		for (int i = 0; i < missing; ++i) {
+			keyPairs.add(Curve.generateKeyPair());
+		}
+		synchronized (preKeyReserve) {
+			preKeyReserve.addAll(keyPairs);
+		}
+	}
+
 	public boolean flushPreKeys() {
 		Log.d(Config.LOGTAG,"flushing pre keys");
+		// a session built from a pre key message is lost for good once the pre key is gone
+		flushSessions();
 		int count = 0;
 		synchronized (preKeysMarkedForRemoval) {
 			for(Integer preKeyId : preKeysMarkedForRemoval) {
@@ -473,5 +707,6 @@ public class SQLiteAxolotlStore implements SignalProtocolStore {
 
 	public void preVerifyFingerprint(Account account, String name, String fingerprint) {
 		mXmppConnectionService.databaseBackend.storePreVerification(account,name,fingerprint,FingerprintStatus.createInactiveVerified());
+		identityCache.remove(name);
 	}
 }
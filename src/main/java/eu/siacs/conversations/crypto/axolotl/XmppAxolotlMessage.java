@@ -9,6 +9,7 @@ import java.security.NoSuchAlgorithmException;
 import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.util.ArrayList;
+import java.util.Collection;
 import java.util.List;
 
 import javax.crypto.BadPaddingException;
@@ -175,22 +176,39 @@ public class XmppAxolotlMessage {
         return sourceDeviceId;
     }
 
-    void addDevice(XmppAxolotlSession session) {
-        addDevice(session, false);
-    }
-
     void addDevice(XmppAxolotlSession session, boolean ignoreSessionTrust) {
-        XmppAxolotlSession.AxolotlKey key;
-        if (authtagPlusInnerKey != null) {
-            key = session.processSending(authtagPlusInnerKey, ignoreSessionTrust);
-        } else {
-            key = session.processSending(innerKey, ignoreSessionTrust);
-        }
+        XmppAxolotlSession.AxolotlKey key = session.processSending(getKeyToEncrypt(), ignoreSessionTrust);
         if (key != null) {
             keys.add(key);
         }
     }
 
+    /**
+     * Encrypts the key for all sessions, one after another. SessionCipher.encrypt() holds
+     * libsignal's global session lock for the whole ratchet step, so there is nothing to gain from
+     * doing this on several threads. A device whose key could not be encrypted is logged and left
+     * out without affecting the others.
+     */
+    void addDevices(final Collection<XmppAxolotlSession> sessions, final boolean ignoreSessionTrust) {
+        final byte[] key = getKeyToEncrypt();
+        for (final XmppAxolotlSession session : sessions) {
+            final XmppAxolotlSession.AxolotlKey result;
+            try {
+                result = session.processSending(key, ignoreSessionTrust);
+            } catch (final RuntimeException e) {
+                Log.w(Config.LOGTAG, "unable to encrypt key for " + session.getRemoteAddress(), e);
+                continue;
+            }
+            if (result != null) {
+                keys.add(result);
+            }
+        }
+    }
+
+    private byte[] getKeyToEncrypt() {
+        return authtagPlusInnerKey != null ? authtagPlusInnerKey : innerKey;
+    }
+
     public byte[] getInnerKey() {
         return innerKey;
     }
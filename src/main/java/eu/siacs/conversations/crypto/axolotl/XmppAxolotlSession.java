@@ -23,6 +23,7 @@ import org.whispersystems.libsignal.util.guava.Optional;
 
 import java.util.Iterator;
 import java.util.List;
+import java.util.concurrent.locks.Lock;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.entities.Account;
@@ -86,6 +87,17 @@ public class XmppAxolotlSession implements Comparable<XmppAxolotlSession> {
 
 	@Nullable
 	byte[] processReceiving(List<AxolotlKey> possibleKeys) throws CryptoFailedException {
+		final Lock lock = sqLiteAxolotlStore.getSessionLock(remoteAddress);
+		lock.lock();
+		try {
+			return processReceivingLocked(possibleKeys);
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	@Nullable
+	private byte[] processReceivingLocked(List<AxolotlKey> possibleKeys) throws CryptoFailedException {
 		byte[] plaintext = null;
 		FingerprintStatus status = getTrust();
 		if (!status.isCompromised()) {
@@ -150,11 +162,15 @@ public class XmppAxolotlSession implements Comparable<XmppAxolotlSession> {
 	public AxolotlKey processSending(@NonNull byte[] outgoingMessage, boolean ignoreSessionTrust) {
 		FingerprintStatus status = getTrust();
 		if (ignoreSessionTrust || status.isTrustedAndActive()) {
+			final Lock lock = sqLiteAxolotlStore.getSessionLock(remoteAddress);
+			lock.lock();
 			try {
 				CiphertextMessage ciphertextMessage = cipher.encrypt(outgoingMessage);
 				return new AxolotlKey(getRemoteAddress().getDeviceId(), ciphertextMessage.serialize(),ciphertextMessage.getType() == CiphertextMessage.PREKEY_TYPE);
 			} catch (UntrustedIdentityException e) {
 				return null;
+			} finally {
+				lock.unlock();
 			}
 		} else {
 			return null;
@@ -9,6 +9,7 @@ import androidx.annotation.Nullable;
 
 import com.google.common.collect.ComparisonChain;
 import com.google.common.collect.ImmutableList;
+import com.google.common.collect.Iterables;
 import com.google.common.collect.Lists;
 
 import org.json.JSONArray;
@@ -21,6 +22,7 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.ListIterator;
 import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.function.Predicate;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.crypto.OmemoSetting;
@@ -68,6 +70,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     private static final String ATTRIBUTE_NEXT_ENCRYPTION = "next_encryption";
     private static final String ATTRIBUTE_CORRECTING_MESSAGE = "correcting_message";
     protected final ArrayList<Message> messages = new ArrayList<>();
+    private final MessageIndex messageIndex = new MessageIndex();
     public AtomicBoolean messagesLoaded = new AtomicBoolean(true);
     protected Account account = null;
     private String draftMessage;
@@ -219,14 +222,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findUnsentMessageWithUuid(String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return first(messageIndex.byUuid(uuid), message -> {
                 final int s = message.getStatus();
-                if ((s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING) && message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+                return s == Message.STATUS_UNSEND || s == Message.STATUS_WAITING;
+            });
         }
-        return null;
     }
 
     public void findWaitingMessages(OnMessageFound onMessageFound) {
@@ -260,28 +260,19 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findMessageWithFileAndUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
+            return first(messageIndex.byUuid(uuid), message -> {
                 final Transferable transferable = message.getTransferable();
                 final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
-                if (message.getUuid().equals(uuid)
-                        && message.getEncryption() != Message.ENCRYPTION_PGP
-                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING))) {
-                    return message;
-                }
-            }
+                return message.getEncryption() != Message.ENCRYPTION_PGP
+                        && (message.isFileOrImage() || message.treatAsDownloadable() || unInitiatedButKnownSize || (transferable != null && transferable.getStatus() != Transferable.STATUS_UPLOADING));
+            });
         }
-        return null;
     }
 
     public Message findMessageWithUuid(final String uuid) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getUuid().equals(uuid)) {
-                    return message;
-                }
-            }
+            return first(messageIndex.byUuid(uuid), message -> true);
         }
-        return null;
     }
 
     public boolean markAsDeleted(final List<String> uuids) {
@@ -322,6 +313,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void clearMessages() {
         synchronized (this.messages) {
             this.messages.clear();
+            this.messageIndex.clear();
         }
     }
 
@@ -361,6 +353,7 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
                 if (pgpDecryptionService != null) {
                     pgpDecryptionService.discard(discards);
                 }
+                messageIndex.removeAll(discards);
                 discards.clear();
                 untieMessages();
             }
@@ -383,15 +376,11 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuidOrRemoteId(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())
-                        || (message.getStatus() >= Message.STATUS_SEND
-                        && id.equals(message.getRemoteMsgId()))) {
-                    return message;
-                }
-            }
+            return first(
+                    messageIndex.byUuid(id),
+                    messageIndex.byRemoteMsgId(id),
+                    message -> id.equals(message.getUuid()) || message.getStatus() >= Message.STATUS_SEND);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteIdAndCounterpart(String id, Jid counterpart, boolean received, boolean carbon) {
@@ -418,47 +407,82 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
 
     public Message findSentMessageWithUuid(String id) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id.equals(message.getUuid())) {
-                    return message;
-                }
-            }
+            return first(messageIndex.byUuid(id), message -> true);
         }
-        return null;
     }
 
     public Message findMessageWithRemoteId(String id, Jid counterpart) {
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (counterpart.equals(message.getCounterpart())
-                        && (id.equals(message.getRemoteMsgId()) || id.equals(message.getUuid()))) {
-                    return message;
-                }
-            }
+            return first(
+                    messageIndex.byRemoteMsgId(id),
+                    messageIndex.byUuid(id),
+                    message -> counterpart.equals(message.getCounterpart()));
         }
-        return null;
     }
 
     public Message findReceivedWithRemoteId(final String id) {
         synchronized (this.messages) {
-            for (final Message message : this.messages) {
-                if (message.getStatus() == Message.STATUS_RECEIVED && id.equals(message.getRemoteMsgId())) {
-                    return message;
-                }
-            }
+            return first(messageIndex.byRemoteMsgId(id), message -> message.getStatus() == Message.STATUS_RECEIVED);
         }
-        return null;
     }
 
     public Message findMessageWithServerMsgId(String id) {
+        if (id == null) {
+            return null;
+        }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (id != null && id.equals(message.getServerMsgId())) {
-                    return message;
+            return first(messageIndex.byServerMsgId(id), message -> true);
+        }
+    }
+
+    /**
+     * Picks the matching candidate that comes first in {@link #messages}, which is the message a
+     * linear scan over the list would have returned. Callers must hold the lock on messages.
+     */
+    private Message first(final List<Message> candidates, final Predicate<Message> predicate) {
+        return first(candidates, Collections.emptyList(), predicate);
+    }
+
+    private Message first(final List<Message> candidates, final List<Message> moreCandidates, final Predicate<Message> predicate) {
+        Message first = null;
+        int firstIndex = -1;
+        for (final Message candidate : Iterables.concat(candidates, moreCandidates)) {
+            if (candidate == first || !predicate.test(candidate)) {
+                continue;
+            }
+            if (first == null) {
+                first = candidate;
+            } else {
+                // ids are rarely shared by multiple messages; only then we need the positions
+                if (firstIndex < 0) {
+                    firstIndex = this.messages.indexOf(first);
+                }
+                final int index = this.messages.indexOf(candidate);
+                if (index < firstIndex) {
+                    first = candidate;
+                    firstIndex = index;
                 }
             }
         }
-        return null;
+        return first;
+    }
+
+    void onUuidChanged(final Message message, final String previous) {
+        synchronized (this.messages) {
+            messageIndex.uuidChanged(message, previous);
+        }
+    }
+
+    void onRemoteMsgIdChanged(final Message message, final String previous) {
+        synchronized (this.messages) {
+            messageIndex.remoteMsgIdChanged(message, previous);
+        }
+    }
+
+    void onServerMsgIdChanged(final Message message, final String previous) {
+        synchronized (this.messages) {
+            messageIndex.serverMsgIdChanged(message, previous);
+        }
     }
 
     public boolean hasMessageWithCounterpart(Jid counterpart) {
@@ -845,13 +869,9 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
             return false;
         }
         synchronized (this.messages) {
-            for (Message message : this.messages) {
-                if (serverMsgId.equals(message.getServerMsgId()) || remoteMsgId.equals(message.getRemoteMsgId())) {
-                    return true;
-                }
-            }
+            return !messageIndex.byServerMsgId(serverMsgId).isEmpty()
+                    || !messageIndex.byRemoteMsgId(remoteMsgId).isEmpty();
         }
-        return false;
     }
 
     public MamReference getLastMessageTransmitted() {
@@ -995,18 +1015,21 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void add(Message message) {
         synchronized (this.messages) {
             this.messages.add(message);
+            this.messageIndex.add(message);
         }
     }
 
     public void prepend(int offset, Message message) {
         synchronized (this.messages) {
             this.messages.add(Math.min(offset, this.messages.size()), message);
+            this.messageIndex.add(message);
         }
     }
 
     public void addAll(int index, List<Message> messages) {
         synchronized (this.messages) {
             this.messages.addAll(index, messages);
+            this.messageIndex.addAll(messages);
         }
         account.getPgpDecryptionService().decrypt(messages);
     }
@@ -1014,8 +1037,10 @@ public class Conversation extends AbstractEntity implements Blockable, Comparabl
     public void expireOldMessages(long timestamp) {
         synchronized (this.messages) {
             for (ListIterator<Message> iterator = this.messages.listIterator(); iterator.hasNext(); ) {
-                if (iterator.next().getTimeSent() < timestamp) {
+                final Message message = iterator.next();
+                if (message.getTimeSent() < timestamp) {
                     iterator.remove();
+                    messageIndex.remove(message);
                 }
             }
             untieMessages();
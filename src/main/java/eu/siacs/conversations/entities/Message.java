@@ -406,7 +406,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setRemoteMsgId(String id) {
+        final String previous = this.remoteMsgId;
         this.remoteMsgId = id;
+        if (this.conversation instanceof Conversation c) {
+            c.onRemoteMsgIdChanged(this, previous);
+        }
     }
 
     public String getServerMsgId() {
@@ -414,7 +418,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setServerMsgId(String id) {
+        final String previous = this.serverMsgId;
         this.serverMsgId = id;
+        if (this.conversation instanceof Conversation c) {
+            c.onServerMsgIdChanged(this, previous);
+        }
     }
 
     public boolean isRead() {
@@ -493,6 +501,10 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
         return this.edits.size() > 0;
     }
 
+    public int getEditCount() {
+        return this.edits.size();
+    }
+
     public void setTrueCounterpart(Jid trueCounterpart) {
         this.trueCounterpart = trueCounterpart;
     }
@@ -781,7 +793,11 @@ public class Message extends AbstractEntity implements AvatarService.Avatarable
     }
 
     public void setUuid(String uuid) {
+        final String previous = this.uuid;
         this.uuid = uuid;
+        if (this.conversation instanceof Conversation c) {
+            c.onUuidChanged(this, previous);
+        }
     }
 
     public String getEditedId() {
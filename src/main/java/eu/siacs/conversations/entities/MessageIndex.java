@@ -0,0 +1,100 @@
+package eu.siacs.conversations.entities;
+
+import com.google.common.collect.ArrayListMultimap;
+import com.google.common.collect.ListMultimap;
+
+import java.util.Collection;
+import java.util.List;
+
+/**
+ * Hash indexes over the messages loaded into a {@link Conversation}, keyed by uuid, remote message
+ * id and server message id. Not thread safe; {@link Conversation} only accesses it while holding
+ * the lock on its message list.
+ */
+final class MessageIndex {
+
+    private final ListMultimap<String, Message> byUuid = ArrayListMultimap.create();
+    private final ListMultimap<String, Message> byRemoteMsgId = ArrayListMultimap.create();
+    private final ListMultimap<String, Message> byServerMsgId = ArrayListMultimap.create();
+
+    void add(final Message message) {
+        put(byUuid, message.getUuid(), message);
+        put(byRemoteMsgId, message.getRemoteMsgId(), message);
+        put(byServerMsgId, message.getServerMsgId(), message);
+    }
+
+    void addAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            add(message);
+        }
+    }
+
+    void remove(final Message message) {
+        remove(byUuid, message.getUuid(), message);
+        remove(byRemoteMsgId, message.getRemoteMsgId(), message);
+        remove(byServerMsgId, message.getServerMsgId(), message);
+    }
+
+    void removeAll(final Collection<Message> messages) {
+        for (final Message message : messages) {
+            remove(message);
+        }
+    }
+
+    void clear() {
+        byUuid.clear();
+        byRemoteMsgId.clear();
+        byServerMsgId.clear();
+    }
+
+    boolean contains(final Message message) {
+        final String uuid = message.getUuid();
+        return uuid != null && byUuid.containsEntry(uuid, message);
+    }
+
+    void uuidChanged(final Message message, final String previous) {
+        if (previous != null && byUuid.remove(previous, message)) {
+            put(byUuid, message.getUuid(), message);
+        }
+    }
+
+    void remoteMsgIdChanged(final Message message, final String previous) {
+        if (contains(message)) {
+            remove(byRemoteMsgId, previous, message);
+            put(byRemoteMsgId, message.getRemoteMsgId(), message);
+        }
+    }
+
+    void serverMsgIdChanged(final Message message, final String previous) {
+        if (contains(message)) {
+            remove(byServerMsgId, previous, message);
+            put(byServerMsgId, message.getServerMsgId(), message);
+        }
+    }
+
+    List<Message> byUuid(final String uuid) {
+        return byUuid.get(uuid);
+    }
+
+    List<Message> byRemoteMsgId(final String remoteMsgId) {
+        return byRemoteMsgId.get(remoteMsgId);
+    }
+
+    List<Message> byServerMsgId(final String serverMsgId) {
+        return byServerMsgId.get(serverMsgId);
+    }
+
+    private static void put(
+            final ListMultimap<String, Message> index, final String key, final Message message) {
+        if (key != null) {
+            index.put(key, message);
+        }
+    }
+
+    private static void remove(
+            final ListMultimap<String, Message> index, final String key, final Message message) {
+        if (key != null) {
+            index.remove(key, message);
+        }
+    }
+}
@@ -23,7 +23,6 @@ import java.util.Collections;
 import java.util.HashSet;
 import java.util.List;
 import java.util.Locale;
-import java.util.Set;
 
 public class MucOptions {
 
@@ -36,7 +35,7 @@ public class MucOptions {
     public static final String STATUS_CODE_LOST_MEMBERSHIP = "322";
     public static final String STATUS_CODE_SHUTDOWN = "332";
     public static final String STATUS_CODE_TECHNICAL_REASONS = "333";
-    private final Set<User> users = new HashSet<>();
+    private final OccupantRegistry users = new OccupantRegistry();
     private final Conversation conversation;
     public OnRenameListener onRenameListener = null;
     private boolean mAutoPushConfiguration = true;
@@ -231,13 +230,7 @@ public class MucOptions {
         if (user != null) {
             synchronized (users) {
                 users.remove(user);
-                boolean realJidInMuc = false;
-                for (User u : users) {
-                    if (user.realJid != null && user.realJid.equals(u.realJid)) {
-                        realJidInMuc = true;
-                        break;
-                    }
-                }
+                final boolean realJidInMuc = user.realJid != null && users.containsRealJid(user.realJid);
                 boolean self = user.realJid != null && user.realJid.equals(account.getJid().asBareJid());
                 if (membersOnly()
                         && nonanonymous()
@@ -302,13 +295,8 @@ public class MucOptions {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.getFullJid())) {
-                    return user;
-                }
-            }
+            return users.findByFullJid(jid);
         }
-        return null;
     }
 
     public User findUserByRealJid(Jid jid) {
@@ -316,13 +304,8 @@ public class MucOptions {
             return null;
         }
         synchronized (users) {
-            for (User user : users) {
-                if (jid.equals(user.realJid)) {
-                    return user;
-                }
-            }
+            return users.findByRealJid(jid);
         }
-        return null;
     }
 
     public User findOrCreateUserByRealJid(Jid jid, Jid fullJid) {
@@ -365,15 +348,39 @@ public class MucOptions {
     public ArrayList<User> getUsers(boolean includeOffline) {
         synchronized (users) {
             ArrayList<User> users = new ArrayList<>();
-            for (User user : this.users) {
-                if (!user.isDomain() && (includeOffline || user.getRole().ranks(Role.PARTICIPANT))) {
-                    users.add(user);
+            if (includeOffline) {
+                addNonDomainUsers(this.users, users);
+            } else {
+                for (final Role role : Role.values()) {
+                    if (role.ranks(Role.PARTICIPANT)) {
+                        addNonDomainUsers(this.users.withRole(role), users);
+                    }
                 }
             }
             return users;
         }
     }
 
+    private static void addNonDomainUsers(final Iterable<User> from, final List<User> to) {
+        for (final User user : from) {
+            if (!user.isDomain()) {
+                to.add(user);
+            }
+        }
+    }
+
+    /**
+     * Same users as {@link #getUsers()} but in their natural order. The order is maintained by the
+     * occupant registry, so this only sorts again after the occupants or their names changed.
+     */
+    public ArrayList<User> getUsersSorted() {
+        synchronized (users) {
+            final ArrayList<User> sorted = new ArrayList<>(users.size());
+            addNonDomainUsers(users.sorted(), sorted);
+            return sorted;
+        }
+    }
+
     public ArrayList<User> getUsersWithChatState(ChatState state, int max) {
         synchronized (users) {
             ArrayList<User> list = new ArrayList<>();
@@ -628,9 +635,14 @@ public class MucOptions {
     public List<Jid> getMembers(final boolean includeDomains) {
         ArrayList<Jid> members = new ArrayList<>();
         synchronized (users) {
-            for (User user : users) {
-                if (user.affiliation.ranks(Affiliation.MEMBER) && user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
-                    members.add(user.realJid);
+            for (final Affiliation affiliation : Affiliation.values()) {
+                if (!affiliation.ranks(Affiliation.MEMBER)) {
+                    continue;
+                }
+                for (User user : users.withAffiliation(affiliation)) {
+                    if (user.realJid != null && !user.realJid.asBareJid().equals(conversation.account.getJid().asBareJid()) && (!user.isDomain() || includeDomains)) {
+                        members.add(user.realJid);
+                    }
                 }
             }
         }
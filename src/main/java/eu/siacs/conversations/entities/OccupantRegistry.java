@@ -0,0 +1,141 @@
+package eu.siacs.conversations.entities;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.LinkedHashMultimap;
+import com.google.common.collect.Ordering;
+import com.google.common.collect.SetMultimap;
+
+import eu.siacs.conversations.entities.MucOptions.Affiliation;
+import eu.siacs.conversations.entities.MucOptions.Role;
+import eu.siacs.conversations.entities.MucOptions.User;
+import eu.siacs.conversations.xmpp.Jid;
+
+import java.util.Collection;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Set;
+
+/**
+ * The occupants of a {@link MucOptions}, indexed by full jid, real jid, affiliation and role.
+ * Occupants compare by value, so adding a user equal to one already present is a no-op and
+ * removing a user removes whichever equal instance is stored. Users must not be modified in a way
+ * that changes their equality while they are registered; remove, modify and add them again.
+ *
+ * <p>Not thread safe; {@link MucOptions} only accesses it while holding its monitor.
+ */
+final class OccupantRegistry implements Iterable<User> {
+
+    private final Map<User, User> users = new LinkedHashMap<>();
+    private final SetMultimap<Jid, User> byFullJid = LinkedHashMultimap.create();
+    private final SetMultimap<Jid, User> byRealJid = LinkedHashMultimap.create();
+    private final SetMultimap<Affiliation, User> byAffiliation = LinkedHashMultimap.create();
+    private final SetMultimap<Role, User> byRole = LinkedHashMultimap.create();
+
+    private ImmutableList<User> sorted = null;
+    // the names the sorted list has been ordered by; they follow contact renames and roster changes
+    private String[] sortedNames = null;
+
+    boolean add(final User user) {
+        if (users.containsKey(user)) {
+            return false;
+        }
+        users.put(user, user);
+        if (user.getFullJid() != null) {
+            byFullJid.put(user.getFullJid(), user);
+        }
+        if (user.getRealJid() != null) {
+            byRealJid.put(user.getRealJid(), user);
+        }
+        byAffiliation.put(user.getAffiliation(), user);
+        byRole.put(user.getRole(), user);
+        sorted = null;
+        return true;
+    }
+
+    boolean remove(final User user) {
+        final User stored = users.remove(user);
+        if (stored == null) {
+            return false;
+        }
+        if (stored.getFullJid() != null) {
+            byFullJid.remove(stored.getFullJid(), stored);
+        }
+        if (stored.getRealJid() != null) {
+            byRealJid.remove(stored.getRealJid(), stored);
+        }
+        byAffiliation.remove(stored.getAffiliation(), stored);
+        byRole.remove(stored.getRole(), stored);
+        sorted = null;
+        return true;
+    }
+
+    void clear() {
+        users.clear();
+        byFullJid.clear();
+        byRealJid.clear();
+        byAffiliation.clear();
+        byRole.clear();
+        sorted = null;
+    }
+
+    int size() {
+        return users.size();
+    }
+
+    User findByFullJid(final Jid jid) {
+        return first(byFullJid.get(jid));
+    }
+
+    User findByRealJid(final Jid jid) {
+        return first(byRealJid.get(jid));
+    }
+
+    boolean containsRealJid(final Jid jid) {
+        return byRealJid.containsKey(jid);
+    }
+
+    Set<User> withAffiliation(final Affiliation affiliation) {
+        return Collections.unmodifiableSet(byAffiliation.get(affiliation));
+    }
+
+    Set<User> withRole(final Role role) {
+        return Collections.unmodifiableSet(byRole.get(role));
+    }
+
+    /**
+     * @return all occupants in their natural order. The list is sorted once and reused until the
+     *     next modification of the registry or until the display name of one of the occupants
+     *     changes, for example because the contact was renamed or the roster was updated.
+     */
+    ImmutableList<User> sorted() {
+        if (sorted == null || !isSortedByCurrentNames()) {
+            sorted = Ordering.natural().immutableSortedCopy(users.keySet());
+            sortedNames = new String[sorted.size()];
+            for (int i = 0; i < sortedNames.length; ++i) {
+                sortedNames[i] = sorted.get(i).getComparableName();
+            }
+        }
+        return sorted;
+    }
+
+    private boolean isSortedByCurrentNames() {
+        for (int i = 0; i < sortedNames.length; ++i) {
+            if (!sortedNames[i].equals(sorted.get(i).getComparableName())) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    @Override
+    public Iterator<User> iterator() {
+        return Collections.unmodifiableCollection(users.keySet()).iterator();
+    }
+
+    private static User first(final Collection<User> users) {
+        final Iterator<User> iterator = users.iterator();
+        return iterator.hasNext() ? iterator.next() : null;
+    }
+}
@@ -7,11 +7,14 @@ import android.util.Base64;
 import androidx.annotation.NonNull;
 
 import com.google.common.base.Strings;
-
-import org.json.JSONArray;
-import org.json.JSONException;
-import org.json.JSONObject;
-
+import com.google.common.collect.Interner;
+import com.google.common.collect.Interners;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
 import java.nio.charset.StandardCharsets;
 import java.security.MessageDigest;
 import java.security.NoSuchAlgorithmException;
@@ -31,6 +34,9 @@ public class ServiceDiscoveryResult {
 	public static final String HASH = "hash";
 	public static final String VER = "ver";
 	public static final String RESULT = "result";
+	private static final int SERIALIZATION_VERSION = 2;
+	// the same few dozen features and identities are announced by almost every entity
+	private static final Interner<String> STRINGS = Interners.newWeakInterner();
 	protected final String hash;
 	protected final byte[] ver;
 	protected final List<String> features;
@@ -46,13 +52,17 @@ public class ServiceDiscoveryResult {
 
 		for (final Element element : elements) {
 			if (element.getName().equals("identity")) {
-				Identity id = new Identity(element);
+				Identity id = new Identity(
+						intern(element.getAttribute("category")),
+						intern(element.getAttribute("type")),
+						element.getAttribute("xml:lang"),
+						element.getAttribute("name"));
 				if (id.getType() != null && id.getCategory() != null) {
 					identities.add(id);
 				}
 			} else if (element.getName().equals("feature")) {
 				if (element.getAttribute("var") != null) {
-					features.add(element.getAttribute("var"));
+					features.add(STRINGS.intern(element.getAttribute("var")));
 				}
 			} else if (element.getName().equals("x") && element.getAttribute("xmlns").equals(Namespace.DATA)) {
 				forms.add(Data.parse(element));
@@ -60,30 +70,46 @@ public class ServiceDiscoveryResult {
 		}
 		this.ver = this.mkCapHash();
 	}
-	private ServiceDiscoveryResult(String hash, byte[] ver, JSONObject o) throws JSONException {
+	private ServiceDiscoveryResult(final String hash, final byte[] ver, final byte[] serialized) throws IOException {
 		this.identities = new ArrayList<>();
 		this.features = new ArrayList<>();
 		this.forms = new ArrayList<>();
 		this.hash = hash;
 		this.ver = ver;
 
-		JSONArray identities = o.optJSONArray("identities");
-		if (identities != null) {
-			for (int i = 0; i < identities.length(); i++) {
-				this.identities.add(new Identity(identities.getJSONObject(i)));
-			}
+		final DataInputStream inputStream = new DataInputStream(new ByteArrayInputStream(serialized));
+		if (inputStream.readUnsignedByte() != SERIALIZATION_VERSION) {
+			throw new IOException("unknown serialization version");
 		}
-		JSONArray features = o.optJSONArray("features");
-		if (features != null) {
-			for (int i = 0; i < features.length(); i++) {
-				this.features.add(features.getString(i));
-			}
+		final int numIdentities = inputStream.readInt();
+		for (int i = 0; i < numIdentities; ++i) {
+			this.identities.add(new Identity(
+					intern(readString(inputStream)),
+					intern(readString(inputStream)),
+					readString(inputStream),
+					readString(inputStream)));
+		}
+		final int numFeatures = inputStream.readInt();
+		for (int i = 0; i < numFeatures; ++i) {
+			this.features.add(STRINGS.intern(readUtf8(inputStream)));
 		}
-		JSONArray forms = o.optJSONArray("forms");
-		if (forms != null) {
-			for (int i = 0; i < forms.length(); i++) {
-				this.forms.add(createFormFromJSONObject(forms.getJSONObject(i)));
+		final int numForms = inputStream.readInt();
+		for (int i = 0; i < numForms; ++i) {
+			final Data data = new Data();
+			data.put(Data.FORM_TYPE, Collections.singletonList(readString(inputStream)));
+			final int numFields = inputStream.readInt();
+			for (int j = 0; j < numFields; ++j) {
+				final String name = readString(inputStream);
+				final int numValues = inputStream.readInt();
+				final ArrayList<String> values = new ArrayList<>(numValues);
+				for (int k = 0; k < numValues; ++k) {
+					values.add(readString(inputStream));
+				}
+				if (name != null) {
+					data.put(name, values);
+				}
 			}
+			this.forms.add(data);
 		}
 	}
 	
@@ -99,62 +125,56 @@ public class ServiceDiscoveryResult {
 		return new ServiceDiscoveryResult();
 	}
 
-	public ServiceDiscoveryResult(Cursor cursor) throws JSONException {
+	public ServiceDiscoveryResult(Cursor cursor) throws IOException {
 		this(
 				cursor.getString(cursor.getColumnIndexOrThrow(HASH)),
 				Base64.decode(cursor.getString(cursor.getColumnIndexOrThrow(VER)), Base64.DEFAULT),
-				new JSONObject(cursor.getString(cursor.getColumnIndexOrThrow(RESULT)))
+				cursor.getBlob(cursor.getColumnIndexOrThrow(RESULT))
 		);
 	}
 
-	private static String clean(String s) {
-		return s.replace("<","&lt;");
+	private static String intern(final String string) {
+		return string == null ? null : STRINGS.intern(string);
 	}
 
-	private static String blankNull(String s) {
-		return s == null ? "" : clean(s);
+	private static String readString(final DataInputStream inputStream) throws IOException {
+		return inputStream.readBoolean() ? readUtf8(inputStream) : null;
 	}
 
-	private static Data createFormFromJSONObject(JSONObject o) {
-		Data data = new Data();
-		JSONArray names = o.names();
-		for (int i = 0; i < names.length(); ++i) {
-			try {
-				String name = names.getString(i);
-				JSONArray jsonValues = o.getJSONArray(name);
-				ArrayList<String> values = new ArrayList<>(jsonValues.length());
-				for (int j = 0; j < jsonValues.length(); ++j) {
-					values.add(jsonValues.getString(j));
-				}
-				data.put(name, values);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+	private static void writeString(final DataOutputStream outputStream, final String string) throws IOException {
+		outputStream.writeBoolean(string != null);
+		if (string != null) {
+			writeUtf8(outputStream, string);
 		}
-		return data;
 	}
 
-	private static JSONObject createJSONFromForm(Data data) {
-		JSONObject object = new JSONObject();
-		for (Field field : data.getFields()) {
-			try {
-				JSONArray jsonValues = new JSONArray();
-				for (String value : field.getValues()) {
-					jsonValues.put(value);
-				}
-				object.put(field.getFieldName(), jsonValues);
-			} catch (Exception e) {
-				e.printStackTrace();
-			}
+	// unlike readUTF()/writeUTF() not limited to 64 KiB; the content comes from remote entities
+	private static String readUtf8(final DataInputStream inputStream) throws IOException {
+		final int length = inputStream.readInt();
+		if (length < 0 || length > inputStream.available()) {
+			throw new IOException("invalid string length");
 		}
-		try {
-			JSONArray jsonValues = new JSONArray();
-			jsonValues.put(data.getFormType());
-			object.put(Data.FORM_TYPE, jsonValues);
-		} catch (Exception e) {
-			e.printStackTrace();
-		}
-		return object;
+		final byte[] bytes = new byte[length];
+		inputStream.readFully(bytes);
+		return new String(bytes, StandardCharsets.UTF_8);
+	}
+
+	private static void writeUtf8(final DataOutputStream outputStream, final String string) throws IOException {
+		final byte[] bytes = string.getBytes(StandardCharsets.UTF_8);
+		outputStream.writeInt(bytes.length);
+		outputStream.write(bytes);
+	}
+
+	private static String clean(String s) {
+		return s.replace("<","&lt;");
+	}
+
+	private static String blankNull(String s) {
+		return s == null ? "" : clean(s);
+	}
+
+	public String getHash() {
+		return this.hash;
 	}
 
 	public String getVer() {
@@ -242,36 +262,44 @@ public class ServiceDiscoveryResult {
         return md.digest(s.toString().getBytes(StandardCharsets.UTF_8));
     }
 
-	private JSONObject toJSON() {
-		try {
-			JSONObject o = new JSONObject();
-
-			JSONArray ids = new JSONArray();
-			for (Identity id : this.getIdentities()) {
-				ids.put(id.toJSON());
+	private byte[] serialize() throws IOException {
+		final ByteArrayOutputStream byteArrayOutputStream = new ByteArrayOutputStream();
+		try (final DataOutputStream outputStream = new DataOutputStream(byteArrayOutputStream)) {
+			outputStream.writeByte(SERIALIZATION_VERSION);
+			outputStream.writeInt(this.identities.size());
+			for (final Identity id : this.identities) {
+				writeString(outputStream, id.getCategory());
+				writeString(outputStream, id.getType());
+				writeString(outputStream, id.getLang());
+				writeString(outputStream, id.getName());
 			}
-			o.put("identities", ids);
-
-			o.put("features", new JSONArray(this.getFeatures()));
-
-			JSONArray forms = new JSONArray();
-			for (Data data : this.forms) {
-				forms.put(createJSONFromForm(data));
+			outputStream.writeInt(this.features.size());
+			for (final String feature : this.features) {
+				writeUtf8(outputStream, feature);
+			}
+			outputStream.writeInt(this.forms.size());
+			for (final Data data : this.forms) {
+				writeString(outputStream, data.getFormType());
+				final List<Field> fields = data.getFields();
+				outputStream.writeInt(fields.size());
+				for (final Field field : fields) {
+					writeString(outputStream, field.getFieldName());
+					final List<String> values = field.getValues();
+					outputStream.writeInt(values.size());
+					for (final String value : values) {
+						writeString(outputStream, value);
+					}
+				}
 			}
-			o.put("forms", forms);
-
-			return o;
-		} catch (JSONException e) {
-			return null;
 		}
+		return byteArrayOutputStream.toByteArray();
 	}
 
-	public ContentValues getContentValues() {
+	public ContentValues getContentValues() throws IOException {
 		final ContentValues values = new ContentValues();
 		values.put(HASH, this.hash);
 		values.put(VER, getVer());
-		JSONObject jsonObject = toJSON();
-		values.put(RESULT, jsonObject == null ? "" : jsonObject.toString());
+		values.put(RESULT, serialize());
 		return values;
 	}
 
@@ -288,24 +316,6 @@ public class ServiceDiscoveryResult {
 			this.name = name;
 		}
 
-		Identity(final Element el) {
-			this(
-					el.getAttribute("category"),
-					el.getAttribute("type"),
-					el.getAttribute("xml:lang"),
-					el.getAttribute("name")
-			);
-		}
-
-		Identity(final JSONObject o) {
-
-			this(
-					o.optString("category", null),
-					o.optString("type", null),
-					o.optString("lang", null),
-					o.optString("name", null)
-			);
-		}
 
 		public String getCategory() {
 			return this.category;
@@ -323,19 +333,6 @@ public class ServiceDiscoveryResult {
 			return this.name;
 		}
 
-		JSONObject toJSON() {
-			try {
-				JSONObject o = new JSONObject();
-				o.put("category", this.getCategory());
-				o.put("type", this.getType());
-				o.put("lang", this.getLang());
-				o.put("name", this.getName());
-				return o;
-			} catch (JSONException e) {
-				return null;
-			}
-		}
-
 		@Override
 		public int compareTo(final Identity o) {
 			int r = blankNull(this.getCategory()).compareTo(blankNull(o.getCategory()));
@@ -13,6 +13,7 @@ import eu.siacs.conversations.entities.Account;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.services.AbstractConnectionManager;
 import eu.siacs.conversations.services.XmppConnectionService;
+import eu.siacs.conversations.utils.Resolver;
 import eu.siacs.conversations.utils.TLSSocketFactory;
 
 import okhttp3.HttpUrl;
@@ -59,6 +60,8 @@ public class HttpConnectionManager extends AbstractConnectionManager {
                             .build();
                     return chain.proceed(modified);
                 })
+                // shares the TTL aware cache with the XMPP connections
+                .dns(Resolver::lookup)
                 .build();
     }
 
@@ -8,6 +8,8 @@ import com.google.common.base.Strings;
 import com.google.common.io.ByteStreams;
 import com.google.common.primitives.Longs;
 
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
 import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
@@ -46,6 +48,7 @@ public class HttpDownloadConnection implements Transferable {
     private boolean acceptedAutomatically = false;
     private int mProgress = 0;
     private Call mostRecentCall;
+    private volatile SegmentedDownload segmentedDownload;
 
     HttpDownloadConnection(Message message, HttpConnectionManager manager) {
         this.message = message;
@@ -149,6 +152,10 @@ public class HttpDownloadConnection implements Transferable {
         if (call != null && !call.isCanceled()) {
             call.cancel();
         }
+        final SegmentedDownload segmentedDownload = this.segmentedDownload;
+        if (segmentedDownload != null) {
+            segmentedDownload.cancel();
+        }
         mHttpConnectionManager.finishConnection(this);
         message.setTransferable(null);
         if (message.isFileOrImage()) {
@@ -168,11 +175,11 @@ public class HttpDownloadConnection implements Transferable {
             Log.w(Config.LOGTAG, "unable to create output file " + outputFile.getAbsolutePath());
         }
 
-        final InputStream is = new FileInputStream(this.file);
+        final InputStream is = new BufferedInputStream(new FileInputStream(this.file), SegmentedDownload.BUFFER_SIZE);
 
         outputFile.setKey(this.file.getKey());
         outputFile.setIv(this.file.getIv());
-        final OutputStream os = AbstractConnectionManager.createOutputStream(outputFile, false, true);
+        final OutputStream os = new BufferedOutputStream(AbstractConnectionManager.createOutputStream(outputFile, false, true), SegmentedDownload.BUFFER_SIZE);
 
         ByteStreams.copy(is, os);
 
@@ -394,9 +401,35 @@ public class HttpDownloadConnection implements Transferable {
                     interactive
             );
 
+            final long expected = file.getExpectedSize();
+            if (SegmentedDownload.isApplicable(expected)) {
+                final SegmentedDownload segmentedDownload = new SegmentedDownload(
+                        client,
+                        mUrl,
+                        file,
+                        expected,
+                        (transmitted, size) -> updateProgress(Math.round(((double) transmitted / size) * 100))
+                );
+                HttpDownloadConnection.this.segmentedDownload = segmentedDownload;
+                try {
+                    segmentedDownload.execute();
+                    return;
+                } catch (final SegmentedDownload.RangesNotSupportedException e) {
+                    Log.d(Config.LOGTAG, e.getMessage() + ". falling back to single stream download");
+                } finally {
+                    HttpDownloadConnection.this.segmentedDownload = null;
+                }
+            }
+            // a preallocated file left by a segmented download can not be resumed as a prefix
+            if (SegmentedDownload.hasCheckpoint(file)) {
+                SegmentedDownload.discardCheckpoint(file);
+                if (file.exists() && !file.delete()) {
+                    throw new FileWriterException(file);
+                }
+            }
+
             final Request.Builder requestBuilder = new Request.Builder().url(URL.stripFragment(mUrl));
 
-            final long expected = file.getExpectedSize();
             final boolean tryResume = file.exists() && file.getSize() > 0 && file.getSize() < expected;
             final long resumeSize;
             if (tryResume) {
@@ -434,7 +467,7 @@ public class HttpDownloadConnection implements Transferable {
                 outputStream = AbstractConnectionManager.createOutputStream(file, false, false);
             }
             int count;
-            final byte[] buffer = new byte[4096];
+            final byte[] buffer = new byte[SegmentedDownload.BUFFER_SIZE];
             while ((count = inputStream.read(buffer)) != -1) {
                 transmitted += count;
                 try {
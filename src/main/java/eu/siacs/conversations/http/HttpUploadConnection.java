@@ -7,6 +7,7 @@ import android.util.Log;
 import androidx.annotation.NonNull;
 import androidx.annotation.Nullable;
 
+import com.google.common.io.BaseEncoding;
 import com.google.common.util.concurrent.FutureCallback;
 import com.google.common.util.concurrent.Futures;
 import com.google.common.util.concurrent.ListenableFuture;
@@ -29,7 +30,6 @@ import okhttp3.Call;
 import okhttp3.Callback;
 import okhttp3.OkHttpClient;
 import okhttp3.Request;
-import okhttp3.RequestBody;
 import okhttp3.Response;
 
 public class HttpUploadConnection implements Transferable, AbstractConnectionManager.ProgressListener {
@@ -160,7 +160,7 @@ public class HttpUploadConnection implements Transferable, AbstractConnectionMan
                 0,
                 true
         );
-        final RequestBody requestBody = AbstractConnectionManager.requestBody(file, this);
+        final AbstractConnectionManager.UploadRequestBody requestBody = AbstractConnectionManager.requestBody(file, this);
         final Request request = new Request.Builder()
                 .url(slot.put)
                 .put(requestBody)
@@ -179,7 +179,8 @@ public class HttpUploadConnection implements Transferable, AbstractConnectionMan
             public void onResponse(@NonNull Call call, @NonNull Response response)  {
                 final int code = response.code();
                 if (code == 200 || code == 201) {
-                    Log.d(Config.LOGTAG, "finished uploading file");
+                    final byte[] sha256 = requestBody.getSha256();
+                    Log.d(Config.LOGTAG, "finished uploading file. sha-256=" + (sha256 == null ? null : BaseEncoding.base64().encode(sha256)));
                     final String get;
                     if (key != null) {
                         get = AesGcmURL.toAesGcmUrl(slot.get.newBuilder().fragment(CryptoHelper.bytesToHex(key)).build());
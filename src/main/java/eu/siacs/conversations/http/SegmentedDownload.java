@@ -0,0 +1,435 @@
+package eu.siacs.conversations.http;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import com.google.common.collect.ImmutableList;
+import com.google.common.primitives.Longs;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.utils.FileWriterException;
+
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+import okhttp3.Call;
+import okhttp3.HttpUrl;
+import okhttp3.OkHttpClient;
+import okhttp3.Request;
+import okhttp3.Response;
+import okhttp3.ResponseBody;
+
+/**
+ * Downloads a file of known size as a number of byte ranges over parallel connections. Every
+ * segment writes straight to its position in the preallocated target file. How far each segment
+ * got is checkpointed next to the file, so an interrupted download resumes every segment where it
+ * left off.
+ *
+ * <p>Only the first segment is requested before the others are started; if the server does not
+ * answer it with a partial response {@link RangesNotSupportedException} is thrown before any
+ * content has been written, and the caller is expected to discard the file and fall back to a
+ * plain download. The same happens if any response reports a complete length other than the
+ * expected size, so that the plain download can enforce the size limit.
+ *
+ * <p>A segment that fails cancels all others, and its exception is the one that is thrown.
+ */
+class SegmentedDownload {
+
+    static final int BUFFER_SIZE = 64 * 1024;
+
+    // below that a single connection is as fast as it gets
+    private static final long MIN_SEGMENTED_SIZE = 4 * 1024 * 1024;
+    private static final long MIN_SEGMENT_SIZE = 1024 * 1024;
+    private static final int MAX_SEGMENTS = 4;
+    private static final long CHECKPOINT_INTERVAL = 2 * 1024 * 1024;
+    private static final int CHECKPOINT_VERSION = 1;
+
+    private static final ExecutorService SEGMENT_EXECUTOR = Executors.newCachedThreadPool();
+
+    private final OkHttpClient client;
+    private final HttpUrl url;
+    private final File file;
+    private final File checkpointFile;
+    private final long size;
+    private final ProgressListener progressListener;
+    private final List<Call> calls = new CopyOnWriteArrayList<>();
+    private final AtomicLong transmitted = new AtomicLong();
+    private final AtomicReference<Exception> failure = new AtomicReference<>();
+    private volatile boolean cancelled = false;
+    private List<Segment> segments;
+
+    SegmentedDownload(
+            final OkHttpClient client,
+            final HttpUrl url,
+            final File file,
+            final long size,
+            final ProgressListener progressListener) {
+        this.client = client;
+        this.url = url;
+        this.file = file;
+        this.checkpointFile = new File(file.getAbsolutePath() + ".segments");
+        this.size = size;
+        this.progressListener = progressListener;
+    }
+
+    static boolean isApplicable(final long size) {
+        return size >= MIN_SEGMENTED_SIZE;
+    }
+
+    /**
+     * @return true if there is a checkpoint for this file, which means a previous segmented
+     *     download has been interrupted and the file must not be treated as a partial download
+     */
+    static boolean hasCheckpoint(final File file) {
+        return new File(file.getAbsolutePath() + ".segments").exists();
+    }
+
+    static void discardCheckpoint(final File file) {
+        final File checkpoint = new File(file.getAbsolutePath() + ".segments");
+        if (checkpoint.exists() && !checkpoint.delete()) {
+            Log.w(Config.LOGTAG, "unable to delete " + checkpoint.getAbsolutePath());
+        }
+    }
+
+    void execute() throws IOException {
+        this.segments = restoreOrCreateSegments();
+        for (final Segment segment : segments) {
+            transmitted.addAndGet(segment.written);
+        }
+        if (file.getParentFile() != null) {
+            file.getParentFile().mkdirs();
+        }
+        try (final RandomAccessFile randomAccessFile = new RandomAccessFile(file, "rw")) {
+            if (randomAccessFile.length() != size) {
+                randomAccessFile.setLength(size);
+            }
+            final FileChannel channel = randomAccessFile.getChannel();
+            final List<Segment> pending = new ArrayList<>();
+            for (final Segment segment : segments) {
+                if (!segment.isComplete()) {
+                    pending.add(segment);
+                }
+            }
+            if (pending.isEmpty()) {
+                return;
+            }
+            checkpoint(channel);
+            // the first request doubles as probe for range support
+            final Segment first = pending.get(0);
+            final Response firstResponse = request(first);
+            final List<Future<?>> futures = new ArrayList<>();
+            try {
+                for (final Segment segment : pending.subList(1, pending.size())) {
+                    futures.add(
+                            SEGMENT_EXECUTOR.submit(
+                                    () -> {
+                                        try {
+                                            transfer(segment, request(segment), channel);
+                                        } catch (final IOException | RuntimeException e) {
+                                            // fail fast instead of waiting for the first segment
+                                            if (failure.compareAndSet(null, e)) {
+                                                cancel();
+                                            }
+                                            throw e;
+                                        }
+                                        return null;
+                                    }));
+                }
+                transfer(first, firstResponse, channel);
+                for (final Future<?> future : futures) {
+                    await(future);
+                }
+            } catch (final IOException | RuntimeException e) {
+                // whichever segment failed first has cancelled the others; report that failure
+                failure.compareAndSet(null, e);
+                cancel();
+                final Exception cause = failure.get();
+                if (cause instanceof IOException ioException) {
+                    throw ioException;
+                } else if (cause instanceof RuntimeException runtimeException) {
+                    throw runtimeException;
+                }
+                throw e;
+            } finally {
+                for (final Future<?> future : futures) {
+                    future.cancel(true);
+                }
+            }
+            channel.force(false);
+        }
+        discardCheckpoint(file);
+    }
+
+    void cancel() {
+        this.cancelled = true;
+        for (final Call call : calls) {
+            call.cancel();
+        }
+    }
+
+    private Response request(final Segment segment) throws IOException {
+        final Request request =
+                new Request.Builder()
+                        .url(URL.stripFragment(url))
+                        .addHeader("Accept-Encoding", "identity")
+                        .addHeader(
+                                "Range",
+                                String.format(
+                                        Locale.ENGLISH,
+                                        "bytes=%d-%d",
+                                        segment.position(),
+                                        segment.end - 1))
+                        .build();
+        final Call call = client.newCall(request);
+        calls.add(call);
+        if (cancelled) {
+            call.cancel();
+        }
+        final Response response = call.execute();
+        final String contentRange = response.header("Content-Range");
+        if (response.code() != 206
+                || contentRange == null
+                || !contentRange.startsWith("bytes " + segment.position() + "-")) {
+            response.close();
+            if (response.isSuccessful()) {
+                throw new RangesNotSupportedException();
+            }
+            throw new IOException(
+                    String.format(Locale.ENGLISH, "HTTP Status code was %d", response.code()));
+        }
+        final long completeLength = getCompleteLength(contentRange);
+        if (completeLength != size) {
+            response.close();
+            throw new RangesNotSupportedException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "server reported a size of %d instead of %d",
+                            completeLength,
+                            size));
+        }
+        return response;
+    }
+
+    /**
+     * @return the complete length of a Content-Range like {@code bytes 0-499/1234} or -1 if it is
+     *     missing or unknown
+     */
+    private static long getCompleteLength(final String contentRange) {
+        final int slash = contentRange.lastIndexOf('/');
+        if (slash < 0) {
+            return -1;
+        }
+        final Long completeLength = Longs.tryParse(contentRange.substring(slash + 1).trim());
+        return completeLength == null ? -1 : completeLength;
+    }
+
+    private void transfer(final Segment segment, final Response response, final FileChannel channel)
+            throws IOException {
+        final long start = SystemClock.elapsedRealtime();
+        final long startPosition = segment.position();
+        try (final ResponseBody body = response.body()) {
+            if (body == null) {
+                throw new IOException("no response body");
+            }
+            final InputStream inputStream = body.byteStream();
+            final byte[] buffer = new byte[BUFFER_SIZE];
+            long sinceCheckpoint = 0;
+            int count;
+            while ((count = inputStream.read(buffer)) != -1) {
+                if (segment.position() + count > segment.end) {
+                    throw new IOException("server sent more than the requested range");
+                }
+                final ByteBuffer byteBuffer = ByteBuffer.wrap(buffer, 0, count);
+                try {
+                    while (byteBuffer.hasRemaining()) {
+                        channel.write(byteBuffer, segment.position() + byteBuffer.position());
+                    }
+                } catch (final IOException e) {
+                    throw new FileWriterException(file);
+                }
+                segment.written += count;
+                sinceCheckpoint += count;
+                progressListener.onProgress(transmitted.addAndGet(count), size);
+                if (sinceCheckpoint >= CHECKPOINT_INTERVAL) {
+                    sinceCheckpoint = 0;
+                    checkpoint(channel);
+                }
+            }
+        }
+        if (!segment.isComplete()) {
+            throw new IOException(
+                    String.format(
+                            Locale.ENGLISH,
+                            "segment %d-%d ended after %d bytes",
+                            segment.start,
+                            segment.end,
+                            segment.written));
+        }
+        checkpoint(channel);
+        final long bytes = segment.position() - startPosition;
+        final long elapsed = Math.max(1, SystemClock.elapsedRealtime() - start);
+        Log.d(
+                Config.LOGTAG,
+                String.format(
+                        Locale.ENGLISH,
+                        "downloaded segment %d-%d (%d bytes) in %dms. %d KiB/s",
+                        segment.start,
+                        segment.end,
+                        bytes,
+                        elapsed,
+                        bytes * 1000 / 1024 / elapsed));
+    }
+
+    private List<Segment> restoreOrCreateSegments() {
+        if (checkpointFile.exists() && file.length() == size) {
+            try {
+                final List<Segment> restored = readCheckpoint();
+                Log.d(Config.LOGTAG, "resuming segmented download " + restored);
+                return restored;
+            } catch (final IOException e) {
+                Log.d(Config.LOGTAG, "unable to restore download checkpoint", e);
+            }
+        }
+        final int count = (int) Math.min(MAX_SEGMENTS, size / MIN_SEGMENT_SIZE);
+        final long segmentSize = size / count;
+        final ImmutableList.Builder<Segment> builder = new ImmutableList.Builder<>();
+        for (int i = 0; i < count; ++i) {
+            final long start = i * segmentSize;
+            final long end = i == count - 1 ? size : start + segmentSize;
+            builder.add(new Segment(start, end, 0));
+        }
+        return builder.build();
+    }
+
+    private List<Segment> readCheckpoint() throws IOException {
+        try (final DataInputStream inputStream =
+                new DataInputStream(new FileInputStream(checkpointFile))) {
+            if (inputStream.readInt() != CHECKPOINT_VERSION || inputStream.readLong() != size) {
+                throw new IOException("checkpoint does not match download");
+            }
+            final int count = inputStream.readInt();
+            if (count <= 0 || count > MAX_SEGMENTS) {
+                throw new IOException("invalid number of segments");
+            }
+            final ImmutableList.Builder<Segment> builder = new ImmutableList.Builder<>();
+            long expectedStart = 0;
+            for (int i = 0; i < count; ++i) {
+                final long start = inputStream.readLong();
+                final long end = inputStream.readLong();
+                final long written = inputStream.readLong();
+                if (start != expectedStart || end <= start || written < 0 || written > end - start) {
+                    throw new IOException("invalid segment");
+                }
+                expectedStart = end;
+                builder.add(new Segment(start, end, written));
+            }
+            if (expectedStart != size) {
+                throw new IOException("segments do not cover file");
+            }
+            return builder.build();
+        }
+    }
+
+    /**
+     * Persists how far each segment got. The progress is taken before the file is forced, so that
+     * the checkpoint never claims bytes of another segment that have not reached the disk yet.
+     */
+    private synchronized void checkpoint(final FileChannel channel) throws IOException {
+        final long[] written = new long[segments.size()];
+        for (int i = 0; i < written.length; ++i) {
+            written[i] = segments.get(i).written;
+        }
+        channel.force(false);
+        final File temporary = new File(checkpointFile.getAbsolutePath() + ".tmp");
+        final FileOutputStream fileOutputStream = new FileOutputStream(temporary);
+        try (final DataOutputStream outputStream = new DataOutputStream(fileOutputStream)) {
+            outputStream.writeInt(CHECKPOINT_VERSION);
+            outputStream.writeLong(size);
+            outputStream.writeInt(segments.size());
+            for (int i = 0; i < written.length; ++i) {
+                final Segment segment = segments.get(i);
+                outputStream.writeLong(segment.start);
+                outputStream.writeLong(segment.end);
+                outputStream.writeLong(written[i]);
+            }
+            outputStream.flush();
+            fileOutputStream.getFD().sync();
+        }
+        if (!temporary.renameTo(checkpointFile)) {
+            throw new IOException("unable to store download checkpoint");
+        }
+    }
+
+    private static void await(final Future<?> future) throws IOException {
+        try {
+            future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    private static class Segment {
+        private final long start;
+        private final long end;
+        // only written by the thread transferring the segment; read under the checkpoint lock
+        private volatile long written;
+
+        private Segment(final long start, final long end, final long written) {
+            this.start = start;
+            this.end = end;
+            this.written = written;
+        }
+
+        private long position() {
+            return start + written;
+        }
+
+        private boolean isComplete() {
+            return position() >= end;
+        }
+
+        @Override
+        public String toString() {
+            return start + "-" + end + "@" + written;
+        }
+    }
+
+    interface ProgressListener {
+        void onProgress(long transmitted, long size);
+    }
+
+    static class RangesNotSupportedException extends IOException {
+        private RangesNotSupportedException() {
+            super("server does not support range requests");
+        }
+
+        private RangesNotSupportedException(final String message) {
+            super(message);
+        }
+    }
+}
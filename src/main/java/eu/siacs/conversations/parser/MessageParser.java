@@ -145,7 +145,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
         if (xmppAxolotlMessage.hasPayload()) {
             final XmppAxolotlMessage.XmppAxolotlPlaintextMessage plaintextMessage;
             try {
-                plaintextMessage = service.processReceivingPayloadMessage(xmppAxolotlMessage, postpone);
+                plaintextMessage = service.processReceivingPayloadMessage(axolotlMessage, xmppAxolotlMessage, postpone);
             } catch (BrokenSessionException e) {
                 if (checkedForDuplicates) {
                     if (service.trustedOrPreviouslyResponded(from.asBareJid())) {
@@ -172,7 +172,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
             }
         } else {
             Log.d(Config.LOGTAG, conversation.getAccount().getJid().asBareJid() + ": received OMEMO key transport message");
-            service.processReceivingKeyTransportMessage(xmppAxolotlMessage, postpone);
+            service.processReceivingKeyTransportMessage(axolotlMessage, xmppAxolotlMessage, postpone);
         }
         return null;
     }
@@ -396,6 +396,88 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
         return false;
     }
 
+    /**
+     * Starts decrypting the OMEMO payload of a message before it is handed to {@link #accept}.
+     * Only messages in one-to-one conversations qualify; in group chats the sender device can
+     * only be looked up once everything that came before the message has been processed.
+     *
+     * <p>This runs on the reader thread while earlier messages may still be parsed. Whether the
+     * counterpart is a group chat therefore must not depend on anything those messages change.
+     * Messages that may create or join group chats are barriers themselves, so they have been
+     * processed by the time a later message is looked at. Processing one-to-one messages only ever
+     * creates one-to-one conversations, which does not change the outcome. The list of group chat
+     * services is filled from disco#info responses, and those are not messages.
+     *
+     * @return false if the message has to be processed strictly after all messages preceding it,
+     *     either because it may create a group chat or because it carries OMEMO that could not be
+     *     prefetched
+     */
+    public boolean prefetchDecryption(final im.conversations.android.xmpp.model.stanza.Message original) {
+        if (mayCreateGroupChat(original)) {
+            return false;
+        }
+        final im.conversations.android.xmpp.model.stanza.Message packet;
+        final Element result = MessageArchiveService.Version.findResult(original);
+        final String queryId = result == null ? null : result.getAttribute("queryid");
+        final MessageArchiveService.Query query = queryId == null ? null : mXmppConnectionService.getMessageArchiveService().findQuery(queryId);
+        if (query != null) {
+            final var f = query.validFrom(original.getFrom()) ? getForwardedMessagePacket(original, "result", query.version.namespace) : null;
+            if (f == null) {
+                return true;
+            }
+            packet = f.first;
+        } else if (original.fromServer(account)) {
+            Pair<im.conversations.android.xmpp.model.stanza.Message, Long> f;
+            f = getForwardedMessagePacket(original, Received.class);
+            f = f == null ? getForwardedMessagePacket(original, Sent.class) : f;
+            packet = f != null ? f.first : original;
+        } else {
+            packet = original;
+        }
+        if (packet != original && mayCreateGroupChat(packet)) {
+            return false;
+        }
+        final AxolotlService service = account.getAxolotlService();
+        if (service == null || !Config.supportOmemo()) {
+            return true;
+        }
+        final Element axolotlEncrypted = packet.findChildEnsureSingle(XmppAxolotlMessage.CONTAINERTAG, AxolotlService.PEP_PREFIX);
+        if (axolotlEncrypted == null) {
+            return true;
+        }
+        final Jid to = packet.getTo();
+        final Jid from = packet.getFrom();
+        if (from == null || !InvalidJid.isValid(from) || !InvalidJid.isValid(to)) {
+            return true;
+        }
+        final Jid counterpart;
+        if (packet.fromAccount(account) && to != null && !account.getJid().asBareJid().equals(to.asBareJid())) {
+            counterpart = to;
+        } else {
+            counterpart = from;
+        }
+        if (account.getXmppConnection().getMucServersWithholdAccount().contains(counterpart.getDomain().toEscapedString())) {
+            return false;
+        }
+        final Conversation conversation = mXmppConnectionService.find(account, counterpart.asBareJid());
+        if (conversation != null && conversation.getMode() == Conversation.MODE_MULTI) {
+            return false;
+        }
+        service.prefetchDecryption(axolotlEncrypted, from);
+        return true;
+    }
+
+    /**
+     * @return true for group chat messages, invites and pubsub events (which include bookmarks),
+     *     all of which may create a group chat conversation or join a room when processed
+     */
+    private static boolean mayCreateGroupChat(final im.conversations.android.xmpp.model.stanza.Message packet) {
+        return packet.getType() == im.conversations.android.xmpp.model.stanza.Message.Type.GROUPCHAT
+                || packet.hasChild("x", Namespace.MUC_USER)
+                || packet.hasChild("x", "jabber:x:conference")
+                || packet.hasChild("event", Namespace.PUBSUB_EVENT);
+    }
+
     @Override
     public void accept(final im.conversations.android.xmpp.model.stanza.Message original) {
         if (handleErrorMessage(account, original)) {
@@ -589,8 +671,11 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                     message = trial;
                 }
                 if (message == null) {
-                    if (query == null && extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet)) {
-                        mXmppConnectionService.updateConversationUi();
+                    if (query == null) {
+                        final Conversation chatStateConversation = mXmppConnectionService.find(account, counterpart.asBareJid());
+                        if (extractChatState(chatStateConversation, isTypeGroupChat, packet)) {
+                            mXmppConnectionService.updateConversationUi(chatStateConversation);
+                        }
                     }
                     if (query != null && status == Message.STATUS_SEND && remoteMsgId != null) {
                         Message previouslySent = conversation.findSentMessageWithUuid(remoteMsgId);
@@ -700,7 +785,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                                 conversation.getAccount().getPgpDecryptionService().decrypt(replacedMessage, false);
                             }
                         }
-                        mXmppConnectionService.getNotificationService().updateNotification();
+                        mXmppConnectionService.getNotificationService().updateNotification(conversation);
                         return;
                     } else {
                         Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": received message correction but verification didn't check out");
@@ -770,7 +855,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
 
             if (query == null) {
                 extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet);
-                mXmppConnectionService.updateConversationUi();
+                mXmppConnectionService.updateConversationUi(conversation);
             }
 
             if (mXmppConnectionService.confirmMessages()
@@ -782,7 +867,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                 processMessageReceipts(account, packet, remoteMsgId, query);
             }
 
-            mXmppConnectionService.databaseBackend.createMessage(message);
+            mXmppConnectionService.createMessageAsync(message);
             final HttpConnectionManager manager = this.mXmppConnectionService.getHttpConnectionManager();
             if (message.trusted() && message.treatAsDownloadable() && manager.getAutoAcceptFileSize() > 0) {
                 manager.createNewDownloadConnection(message);
@@ -812,7 +897,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                 }
                 try {
                     final XmppAxolotlMessage xmppAxolotlMessage = XmppAxolotlMessage.fromElement(axolotlEncrypted, origin.asBareJid());
-                    account.getAxolotlService().processReceivingKeyTransportMessage(xmppAxolotlMessage, query != null);
+                    account.getAxolotlService().processReceivingKeyTransportMessage(axolotlEncrypted, xmppAxolotlMessage, query != null);
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": omemo key transport message received from " + origin);
                 } catch (Exception e) {
                     Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": invalid omemo key transport message received " + e.getMessage());
@@ -820,8 +905,11 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                 }
             }
 
-            if (query == null && extractChatState(mXmppConnectionService.find(account, counterpart.asBareJid()), isTypeGroupChat, packet)) {
-                mXmppConnectionService.updateConversationUi();
+            if (query == null) {
+                final Conversation chatStateConversation = mXmppConnectionService.find(account, counterpart.asBareJid());
+                if (extractChatState(chatStateConversation, isTypeGroupChat, packet)) {
+                    mXmppConnectionService.updateConversationUi(chatStateConversation);
+                }
             }
 
             if (isTypeGroupChat) {
@@ -832,7 +920,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                         if (subject != null && conversation.getMucOptions().setSubject(subject.content)) {
                             mXmppConnectionService.updateConversation(conversation);
                         }
-                        mXmppConnectionService.updateConversationUi();
+                        mXmppConnectionService.updateConversationUi(conversation);
                         return;
                     }
                 }
@@ -858,7 +946,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                             boolean isNew = conversation.getMucOptions().updateUser(user);
                             mXmppConnectionService.getAvatarService().clear(conversation);
                             mXmppConnectionService.updateMucRosterUi();
-                            mXmppConnectionService.updateConversationUi();
+                            mXmppConnectionService.updateConversationUi(conversation);
                             Contact contact = user.getContact();
                             if (!user.getAffiliation().ranks(MucOptions.Affiliation.MEMBER)) {
                                 Jid jid = user.getRealJid();
@@ -1228,7 +1316,7 @@ public class MessageParser extends AbstractParser implements Consumer<im.convers
                     mXmppConnectionService.databaseBackend.updateConversation(conversation);
                     mXmppConnectionService.joinMuc(
                             conversation, contact != null && contact.showInContactList());
-                    mXmppConnectionService.updateConversationUi();
+                    mXmppConnectionService.updateConversationUi(conversation);
                 }
                 return true;
             } else {
@@ -11,9 +11,12 @@ import android.os.SystemClock;
 import android.util.Base64;
 import android.util.Log;
 
+import androidx.annotation.Nullable;
+
 import com.google.common.base.Stopwatch;
+import com.google.common.collect.ImmutableList;
+import com.google.common.collect.ImmutableMap;
 
-import org.json.JSONException;
 import org.json.JSONObject;
 import org.whispersystems.libsignal.IdentityKey;
 import org.whispersystems.libsignal.IdentityKeyPair;
@@ -31,8 +34,10 @@ import java.security.cert.CertificateException;
 import java.security.cert.CertificateFactory;
 import java.security.cert.X509Certificate;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
@@ -64,10 +69,11 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 public class DatabaseBackend extends SQLiteOpenHelper {
 
     private static final String DATABASE_NAME = "history";
-    private static final int DATABASE_VERSION = 51;
+    private static final int DATABASE_VERSION = 57;
 
     private static boolean requiresMessageIndexRebuild = false;
     private static DatabaseBackend instance = null;
+    private final LinkedHashMap<String, Message> pendingMessages = new LinkedHashMap<>();
     private static final String CREATE_CONTATCS_STATEMENT = "create table "
             + Contact.TABLENAME + "(" + Contact.ACCOUNT + " TEXT, "
             + Contact.SERVERNAME + " TEXT, " + Contact.SYSTEMNAME + " TEXT,"
@@ -86,7 +92,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + ServiceDiscoveryResult.TABLENAME + "("
             + ServiceDiscoveryResult.HASH + " TEXT, "
             + ServiceDiscoveryResult.VER + " TEXT, "
-            + ServiceDiscoveryResult.RESULT + " TEXT, "
+            + ServiceDiscoveryResult.RESULT + " BLOB, "
             + "UNIQUE(" + ServiceDiscoveryResult.HASH + ", "
             + ServiceDiscoveryResult.VER + ") ON CONFLICT REPLACE);";
 
@@ -127,7 +133,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + SQLiteAxolotlStore.ACCOUNT + " TEXT,  "
             + SQLiteAxolotlStore.NAME + " TEXT, "
             + SQLiteAxolotlStore.DEVICE_ID + " INTEGER, "
-            + SQLiteAxolotlStore.KEY + " TEXT, FOREIGN KEY("
+            + SQLiteAxolotlStore.KEY + " BLOB, FOREIGN KEY("
             + SQLiteAxolotlStore.ACCOUNT
             + ") REFERENCES " + Account.TABLENAME + "(" + Account.UUID + ") ON DELETE CASCADE, "
             + "UNIQUE( " + SQLiteAxolotlStore.ACCOUNT + ", "
@@ -165,14 +171,41 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             + Resolver.Result.DIRECT_TLS + " NUMBER,"
             + Resolver.Result.AUTHENTICATED + " NUMBER,"
             + Resolver.Result.PORT + " NUMBER,"
-            + "UNIQUE(" + Resolver.Result.DOMAIN + ") ON CONFLICT REPLACE"
+            + Resolver.Result.CANDIDATE + " TEXT,"
+            + Resolver.Result.CONNECT_TIME + " NUMBER,"
+            + Resolver.Result.LAST_SUCCESS + " NUMBER DEFAULT 0,"
+            + "UNIQUE(" + Resolver.Result.DOMAIN + "," + Resolver.Result.CANDIDATE + ") ON CONFLICT REPLACE"
             + ");";
 
+    private static final String RESOLVER_CACHE_TABLENAME = "resolver_cache";
+
+    private static final String RESOLVER_CACHE_EXPIRES = "expires";
+
+    private static final String CREATE_RESOLVER_CACHE_TABLE = "create table " + RESOLVER_CACHE_TABLENAME + "("
+            + Resolver.Result.DOMAIN + " TEXT,"
+            + Resolver.Result.HOSTNAME + " TEXT,"
+            + Resolver.Result.IP + " BLOB,"
+            + Resolver.Result.PRIORITY + " NUMBER,"
+            + Resolver.Result.DIRECT_TLS + " NUMBER,"
+            + Resolver.Result.AUTHENTICATED + " NUMBER,"
+            + Resolver.Result.PORT + " NUMBER,"
+            + RESOLVER_CACHE_EXPIRES + " NUMBER"
+            + ");";
+
+    private static final String CREATE_RESOLVER_CACHE_DOMAIN_INDEX = "CREATE INDEX resolver_cache_domain_index ON " + RESOLVER_CACHE_TABLENAME + "(" + Resolver.Result.DOMAIN + ")";
+
     private static final String CREATE_MESSAGE_TIME_INDEX = "CREATE INDEX message_time_index ON " + Message.TABLENAME + "(" + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_CONVERSATION_INDEX = "CREATE INDEX message_conversation_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + ")";
+    private static final String CREATE_MESSAGE_CONVERSATION_TIME_INDEX = "CREATE INDEX message_conversation_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ")";
     private static final String CREATE_MESSAGE_DELETED_INDEX = "CREATE INDEX message_deleted_index ON " + Message.TABLENAME + "(" + Message.DELETED + ")";
     private static final String CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX = "CREATE INDEX message_file_path_index ON " + Message.TABLENAME + "(" + Message.RELATIVE_FILE_PATH + ")";
     private static final String CREATE_MESSAGE_TYPE_INDEX = "CREATE INDEX message_type_index ON " + Message.TABLENAME + "(" + Message.TYPE + ")";
+    // partial indexes; their WHERE clauses must be implied by the queries they are meant to serve
+    private static final String CREATE_MESSAGE_RECEIVED_TIME_INDEX = "CREATE INDEX message_received_time_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + ") WHERE " + Message.STATUS + "=0 OR " + Message.CARBON + "=1 OR " + Message.SERVER_MSG_ID + " NOT NULL";
+    private static final String CREATE_MESSAGE_CONVERSATION_FILE_INDEX = "CREATE INDEX message_conversation_file_index ON " + Message.TABLENAME + "(" + Message.CONVERSATION + "," + Message.TIME_SENT + "," + Message.TYPE + "," + Message.DELETED + "," + Message.UUID + "," + Message.RELATIVE_FILE_PATH + ") WHERE " + Message.RELATIVE_FILE_PATH + " NOT NULL";
+    private static final String CREATE_MESSAGE_TYPE_FILE_PATH_INDEX = "CREATE INDEX message_type_file_path_index ON " + Message.TABLENAME + "(" + Message.TYPE + "," + Message.RELATIVE_FILE_PATH + "," + Message.DELETED + "," + Message.UUID + ") WHERE " + Message.RELATIVE_FILE_PATH + " NOT NULL";
+    private static final String CREATE_MESSAGE_FINGERPRINT_INDEX = "CREATE INDEX message_fingerprint_index ON " + Message.TABLENAME + "(" + Message.FINGERPRINT + "," + Message.TIME_SENT + ") WHERE " + Message.FINGERPRINT + " NOT NULL";
+    private static final String CREATE_CONVERSATION_ACCOUNT_INDEX = "CREATE INDEX conversation_account_index ON " + Conversation.TABLENAME + "(" + Conversation.ACCOUNT + ")";
 
     private static final String CREATE_MESSAGE_INDEX_TABLE = "CREATE VIRTUAL TABLE messages_index USING fts4 (uuid,body,notindexed=\"uuid\",content=\"" + Message.TABLENAME + "\",tokenize='unicode61')";
     private static final String CREATE_MESSAGE_INSERT_TRIGGER = "CREATE TRIGGER after_message_insert AFTER INSERT ON " + Message.TABLENAME + " BEGIN INSERT INTO messages_index(rowid,uuid,body) VALUES(NEW.rowid,NEW.uuid,NEW.body); END;";
@@ -267,10 +300,14 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 + Conversation.TABLENAME + "(" + Conversation.UUID
                 + ") ON DELETE CASCADE);");
         db.execSQL(CREATE_MESSAGE_TIME_INDEX);
-        db.execSQL(CREATE_MESSAGE_CONVERSATION_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
         db.execSQL(CREATE_MESSAGE_DELETED_INDEX);
-        db.execSQL(CREATE_MESSAGE_RELATIVE_FILE_PATH_INDEX);
         db.execSQL(CREATE_MESSAGE_TYPE_INDEX);
+        db.execSQL(CREATE_MESSAGE_RECEIVED_TIME_INDEX);
+        db.execSQL(CREATE_MESSAGE_CONVERSATION_FILE_INDEX);
+        db.execSQL(CREATE_MESSAGE_TYPE_FILE_PATH_INDEX);
+        db.execSQL(CREATE_MESSAGE_FINGERPRINT_INDEX);
+        db.execSQL(CREATE_CONVERSATION_ACCOUNT_INDEX);
         db.execSQL(CREATE_CONTATCS_STATEMENT);
         db.execSQL(CREATE_DISCOVERY_RESULTS_STATEMENT);
         db.execSQL(CREATE_SESSIONS_STATEMENT);
@@ -279,6 +316,8 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.execSQL(CREATE_IDENTITIES_STATEMENT);
         db.execSQL(CREATE_PRESENCE_TEMPLATES_STATEMENT);
         db.execSQL(CREATE_RESOLVER_RESULTS_TABLE);
+        db.execSQL(CREATE_RESOLVER_CACHE_TABLE);
+        db.execSQL(CREATE_RESOLVER_CACHE_DOMAIN_INDEX);
         db.execSQL(CREATE_MESSAGE_INDEX_TABLE);
         db.execSQL(CREATE_MESSAGE_INSERT_TRIGGER);
         db.execSQL(CREATE_MESSAGE_UPDATE_TRIGGER);
@@ -601,6 +640,77 @@ public class DatabaseBackend extends SQLiteOpenHelper {
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.FAST_MECHANISM + " TEXT");
             db.execSQL("ALTER TABLE " + Account.TABLENAME + " ADD COLUMN " + Account.FAST_TOKEN + " TEXT");
         }
+        if (oldVersion < 52 && newVersion >= 52) {
+            // the composite index serves every lookup the conversation index was used for
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_TIME_INDEX);
+            db.execSQL("DROP INDEX IF EXISTS message_conversation_index");
+        }
+
+        if (oldVersion < 53 && newVersion >= 53) {
+            db.execSQL(CREATE_MESSAGE_RECEIVED_TIME_INDEX);
+            db.execSQL(CREATE_MESSAGE_CONVERSATION_FILE_INDEX);
+            // leads with type so the 'type in (1,2,5)' lookups do not fall back to message_type_index
+            db.execSQL(CREATE_MESSAGE_TYPE_FILE_PATH_INDEX);
+            db.execSQL("DROP INDEX IF EXISTS message_file_path_index");
+            db.execSQL(CREATE_MESSAGE_FINGERPRINT_INDEX);
+            db.execSQL(CREATE_CONVERSATION_ACCOUNT_INDEX);
+        }
+
+        if (oldVersion < 54 && newVersion >= 54) {
+            // only held the last successful result per domain which is relearned on the next connect
+            db.execSQL("DROP TABLE IF EXISTS " + RESOLVER_RESULTS_TABLENAME);
+            db.execSQL(CREATE_RESOLVER_RESULTS_TABLE);
+        }
+
+        if (oldVersion < 55 && newVersion >= 55) {
+            db.execSQL(CREATE_RESOLVER_CACHE_TABLE);
+            db.execSQL(CREATE_RESOLVER_CACHE_DOMAIN_INDEX);
+        }
+
+        if (oldVersion < 56 && newVersion >= 56) {
+            convertSessionsToBlob(db);
+        }
+
+        if (oldVersion < 57 && newVersion >= 57) {
+            // results used to be stored as JSON. they are only a cache and get fetched again
+            db.execSQL("DROP TABLE IF EXISTS " + ServiceDiscoveryResult.TABLENAME);
+            db.execSQL(CREATE_DISCOVERY_RESULTS_STATEMENT);
+        }
+    }
+
+    private static void convertSessionsToBlob(final SQLiteDatabase db) {
+        // the column keeps its TEXT declaration; TEXT affinity never converts BLOB values
+        final long start = SystemClock.elapsedRealtime();
+        final Map<Long, byte[]> sessions = new HashMap<>();
+        try (final Cursor cursor =
+                db.query(
+                        SQLiteAxolotlStore.SESSION_TABLENAME,
+                        new String[] {"rowid", SQLiteAxolotlStore.KEY},
+                        "typeof(" + SQLiteAxolotlStore.KEY + ")='text'",
+                        null,
+                        null,
+                        null,
+                        null)) {
+            while (cursor.moveToNext()) {
+                sessions.put(cursor.getLong(0), Base64.decode(cursor.getString(1), Base64.DEFAULT));
+            }
+        }
+        db.beginTransaction();
+        try {
+            for (final Map.Entry<Long, byte[]> session : sessions.entrySet()) {
+                final ContentValues values = new ContentValues();
+                values.put(SQLiteAxolotlStore.KEY, session.getValue());
+                db.update(
+                        SQLiteAxolotlStore.SESSION_TABLENAME,
+                        values,
+                        "rowid=?",
+                        new String[] {String.valueOf(session.getKey())});
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+        Log.d(Config.LOGTAG, "converted " + sessions.size() + " sessions to blob in " + (SystemClock.elapsedRealtime() - start) + "ms");
     }
 
     private void canonicalizeJids(SQLiteDatabase db) {
@@ -692,14 +802,65 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(Message.TABLENAME, null, message.getContentValues());
     }
 
+    /**
+     * Queues a message for insertion with the next call to {@link #flushPendingMessages()}.
+     * Until then the in-memory {@link Message} is the source of truth; updates to it are picked up
+     * by the insert and every method that reads or modifies the messages table flushes first.
+     *
+     * @return the number of messages waiting to be inserted
+     */
+    public int createMessageDeferred(final Message message) {
+        synchronized (this.pendingMessages) {
+            this.pendingMessages.put(message.getUuid(), message);
+            return this.pendingMessages.size();
+        }
+    }
+
+    /** Inserts all pending messages in a single transaction. */
+    public void flushPendingMessages() {
+        synchronized (this.pendingMessages) {
+            if (this.pendingMessages.isEmpty()) {
+                return;
+            }
+            final long start = SystemClock.elapsedRealtime();
+            final SQLiteDatabase db = this.getWritableDatabase();
+            db.beginTransaction();
+            try {
+                for (final Message message : this.pendingMessages.values()) {
+                    db.insert(Message.TABLENAME, null, message.getContentValues());
+                }
+                db.setTransactionSuccessful();
+            } finally {
+                db.endTransaction();
+            }
+            if (this.pendingMessages.size() > 1) {
+                Log.d(Config.LOGTAG, "inserted " + this.pendingMessages.size() + " messages in " + (SystemClock.elapsedRealtime() - start) + "ms");
+            }
+            this.pendingMessages.clear();
+        }
+    }
+
+    private boolean isPendingMessage(final Message message) {
+        synchronized (this.pendingMessages) {
+            return this.pendingMessages.get(message.getUuid()) == message;
+        }
+    }
+
     public void createAccount(Account account) {
         SQLiteDatabase db = this.getWritableDatabase();
         db.insert(Account.TABLENAME, null, account.getContentValues());
     }
 
     public void insertDiscoveryResult(ServiceDiscoveryResult result) {
+        final ContentValues contentValues;
+        try {
+            contentValues = result.getContentValues();
+        } catch (final IOException e) {
+            Log.d(Config.LOGTAG, "unable to serialize discovery result", e);
+            return;
+        }
         SQLiteDatabase db = this.getWritableDatabase();
-        db.insert(ServiceDiscoveryResult.TABLENAME, null, result.getContentValues());
+        db.insert(ServiceDiscoveryResult.TABLENAME, null, contentValues);
     }
 
     public ServiceDiscoveryResult findDiscoveryResult(final String hash, final String ver) {
@@ -717,24 +878,66 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         ServiceDiscoveryResult result = null;
         try {
             result = new ServiceDiscoveryResult(cursor);
-        } catch (JSONException e) { /* result is still null */ }
+        } catch (IOException e) { /* result is still null */ }
 
         cursor.close();
         return result;
     }
 
-    public void saveResolverResult(String domain, Resolver.Result result) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues contentValues = result.toContentValues();
-        contentValues.put(Resolver.Result.DOMAIN, domain);
-        db.insert(RESOLVER_RESULTS_TABLENAME, null, contentValues);
+    /**
+     * @return up to {@code limit} discovery results, most recently stored first. Storing a result
+     *     again replaces its row (ON CONFLICT REPLACE) and with that assigns a new rowid, so a
+     *     result that has been fetched again counts as recent even if it was first seen long ago.
+     */
+    public List<ServiceDiscoveryResult> readDiscoveryResults(final int limit) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final List<ServiceDiscoveryResult> results = new ArrayList<>();
+        try (final Cursor cursor = db.query(ServiceDiscoveryResult.TABLENAME, null,
+                null, null, null, null, "rowid desc", String.valueOf(limit))) {
+            while (cursor.moveToNext()) {
+                try {
+                    results.add(new ServiceDiscoveryResult(cursor));
+                } catch (final IOException e) {
+                    Log.d(Config.LOGTAG, "unable to read discovery result", e);
+                }
+            }
+        }
+        return results;
+    }
+
+    /**
+     * Records the outcome of connecting to a resolver result. Successful results are remembered
+     * as backup for when DNS fails; connect times are used to order future attempts.
+     *
+     * @param connectTime time it took to connect in milliseconds or -1 if the attempt failed
+     */
+    public void saveResolverResult(final String domain, final Resolver.Result result, final long connectTime) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        final String where = Resolver.Result.DOMAIN + "=? and " + Resolver.Result.CANDIDATE + "=?";
+        final String[] whereArgs = {domain, result.getCandidate()};
+        final ContentValues contentValues = result.toContentValues();
+        contentValues.put(Resolver.Result.CONNECT_TIME, connectTime);
+        if (connectTime >= 0) {
+            contentValues.put(Resolver.Result.LAST_SUCCESS, System.currentTimeMillis());
+        }
+        db.beginTransaction();
+        try {
+            // update first to not lose the time of the last success when an attempt fails
+            if (db.update(RESOLVER_RESULTS_TABLENAME, contentValues, where, whereArgs) == 0) {
+                contentValues.put(Resolver.Result.DOMAIN, domain);
+                db.insert(RESOLVER_RESULTS_TABLENAME, null, contentValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public synchronized Resolver.Result findResolverResult(String domain) {
         SQLiteDatabase db = this.getReadableDatabase();
-        String where = Resolver.Result.DOMAIN + "=?";
+        String where = Resolver.Result.DOMAIN + "=? and " + Resolver.Result.LAST_SUCCESS + ">0";
         String[] whereArgs = {domain};
-        final Cursor cursor = db.query(RESOLVER_RESULTS_TABLENAME, null, where, whereArgs, null, null, null);
+        final Cursor cursor = db.query(RESOLVER_RESULTS_TABLENAME, null, where, whereArgs, null, null, Resolver.Result.LAST_SUCCESS + " desc", "1");
         Resolver.Result result = null;
         if (cursor != null) {
             try {
@@ -751,6 +954,60 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return result;
     }
 
+    public void saveResolverCacheEntry(final String domain, final Resolver.CacheEntry<List<Resolver.Result>> entry) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            db.delete(RESOLVER_CACHE_TABLENAME, Resolver.Result.DOMAIN + "=?", new String[] {domain});
+            for (final Resolver.Result result : entry.value) {
+                final ContentValues contentValues = result.toContentValues();
+                contentValues.remove(Resolver.Result.CANDIDATE);
+                contentValues.put(Resolver.Result.DOMAIN, domain);
+                contentValues.put(RESOLVER_CACHE_EXPIRES, entry.expires);
+                db.insert(RESOLVER_CACHE_TABLENAME, null, contentValues);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
+    public Resolver.CacheEntry<List<Resolver.Result>> findResolverCacheEntry(final String domain) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final ImmutableList.Builder<Resolver.Result> results = new ImmutableList.Builder<>();
+        long expires = Long.MAX_VALUE;
+        // rowid keeps the order the resolver sorted the results in
+        try (final Cursor cursor = db.query(RESOLVER_CACHE_TABLENAME, null, Resolver.Result.DOMAIN + "=?", new String[] {domain}, null, null, "rowid")) {
+            final int expiresIndex = cursor.getColumnIndexOrThrow(RESOLVER_CACHE_EXPIRES);
+            while (cursor.moveToNext()) {
+                results.add(Resolver.Result.fromCursor(cursor));
+                expires = Math.min(expires, cursor.getLong(expiresIndex));
+            }
+        } catch (final Exception e) {
+            Log.d(Config.LOGTAG, "unable to find cached resolver results in database " + e.getMessage());
+            return null;
+        }
+        final List<Resolver.Result> list = results.build();
+        return list.isEmpty() ? null : new Resolver.CacheEntry<>(list, expires);
+    }
+
+    public Map<Resolver.Result, Long> getResolverConnectTimes(final String domain) {
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String where = Resolver.Result.DOMAIN + "=? and " + Resolver.Result.CONNECT_TIME + " not null";
+        final String[] whereArgs = {domain};
+        final ImmutableMap.Builder<Resolver.Result, Long> builder = new ImmutableMap.Builder<>();
+        try (final Cursor cursor = db.query(RESOLVER_RESULTS_TABLENAME, null, where, whereArgs, null, null, null)) {
+            final int connectTime = cursor.getColumnIndexOrThrow(Resolver.Result.CONNECT_TIME);
+            while (cursor.moveToNext()) {
+                builder.put(Resolver.Result.fromCursor(cursor), cursor.getLong(connectTime));
+            }
+        } catch (final Exception e) {
+            Log.d(Config.LOGTAG, "unable to load resolver connect times from database " + e.getMessage());
+            return Collections.emptyMap();
+        }
+        return builder.buildKeepingLast();
+    }
+
     public void insertPresenceTemplate(PresenceTemplate template) {
         SQLiteDatabase db = this.getWritableDatabase();
         String whereToDelete = PresenceTemplate.MESSAGE + "=?";
@@ -794,35 +1051,49 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public ArrayList<Message> getMessages(Conversation conversation, int limit, long timestamp) {
-        ArrayList<Message> list = new ArrayList<>();
-        SQLiteDatabase db = this.getReadableDatabase();
-        Cursor cursor;
+        return getMessagesBefore(conversation, limit, timestamp, null);
+    }
+
+    /**
+     * Loads the page of messages that precedes the given anchor, oldest first. The anchor is the
+     * (timeSent, rowid) position of the message identified by uuid; messages that share its
+     * timestamp but were inserted before it are included. Without uuid all messages older than
+     * timestamp are considered, and with a timestamp of -1 the newest page is returned.
+     */
+    public ArrayList<Message> getMessagesBefore(final Conversation conversation, final int limit, final long timestamp, @Nullable final String uuid) {
+        flushPendingMessages();
+        final SQLiteDatabase db = this.getReadableDatabase();
+        final String selection;
+        final String[] selectionArgs;
         if (timestamp == -1) {
-            String[] selectionArgs = {conversation.getUuid()};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                    + "=?", selectionArgs, null, null, Message.TIME_SENT
-                    + " DESC", String.valueOf(limit));
+            selection = Message.CONVERSATION + "=?";
+            selectionArgs = new String[]{conversation.getUuid()};
+        } else if (uuid == null) {
+            selection = Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<?";
+            selectionArgs = new String[]{conversation.getUuid(), Long.toString(timestamp)};
         } else {
-            String[] selectionArgs = {conversation.getUuid(),
-                    Long.toString(timestamp)};
-            cursor = db.query(Message.TABLENAME, null, Message.CONVERSATION
-                            + "=? and " + Message.TIME_SENT + "<?", selectionArgs,
-                    null, null, Message.TIME_SENT + " DESC",
-                    String.valueOf(limit));
-        }
-        CursorUtils.upgradeCursorWindowSize(cursor);
-        while (cursor.moveToNext()) {
-            try {
-                list.add(0, Message.fromCursor(cursor, conversation));
-            } catch (Exception e) {
-                Log.e(Config.LOGTAG, "unable to restore message");
+            // the redundant upper bound lets sqlite seek message_conversation_time_index to the anchor
+            selection = Message.CONVERSATION + "=? and " + Message.TIME_SENT + "<=? and (" + Message.TIME_SENT + "<? or rowid<(select rowid from " + Message.TABLENAME + " where " + Message.UUID + "=?))";
+            selectionArgs = new String[]{conversation.getUuid(), Long.toString(timestamp), Long.toString(timestamp), uuid};
+        }
+        final ArrayList<Message> list;
+        try (final Cursor cursor = db.query(Message.TABLENAME, null, selection, selectionArgs, null, null, Message.TIME_SENT + " DESC, rowid DESC", String.valueOf(limit))) {
+            CursorUtils.upgradeCursorWindowSize(cursor);
+            list = new ArrayList<>(cursor.getCount());
+            while (cursor.moveToNext()) {
+                try {
+                    list.add(Message.fromCursor(cursor, conversation));
+                } catch (Exception e) {
+                    Log.e(Config.LOGTAG, "unable to restore message");
+                }
             }
         }
-        cursor.close();
+        Collections.reverse(list);
         return list;
     }
 
     public Cursor getMessageSearchCursor(final List<String> term, final String uuid) {
+        flushPendingMessages();
         final SQLiteDatabase db = this.getReadableDatabase();
         final StringBuilder SQL = new StringBuilder();
         final String[] selectionArgs;
@@ -839,6 +1110,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<String> markFileAsDeleted(final File file, final boolean internal) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         String selection;
         String[] selectionArgs;
@@ -868,6 +1140,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void markFileAsDeleted(List<String> uuids) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final ContentValues contentValues = new ContentValues();
         final String where = Message.UUID + "=?";
@@ -881,6 +1154,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void markFilesAsChanged(List<FilePathInfo> files) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String where = Message.UUID + "=?";
         db.beginTransaction();
@@ -894,6 +1168,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<FilePathInfo> getFilePathInfo() {
+        flushPendingMessages();
         final SQLiteDatabase db = this.getReadableDatabase();
         final Cursor cursor = db.query(Message.TABLENAME, new String[]{Message.UUID, Message.RELATIVE_FILE_PATH, Message.DELETED}, "type in (1,2,5) and " + Message.RELATIVE_FILE_PATH + " is not null", null, null, null, null);
         final List<FilePathInfo> list = new ArrayList<>();
@@ -907,6 +1182,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<FilePath> getRelativeFilePaths(String account, Jid jid, int limit) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select uuid,relativeFilePath from messages where type in (1,2,5) and deleted=0 and " + Message.RELATIVE_FILE_PATH + " is not null and conversationUuid=(select uuid from conversations where accountUuid=? and (contactJid=? or contactJid like ?)) order by timeSent desc";
         final String[] args = {account, jid.toString(), jid.toString() + "/%"};
@@ -1018,6 +1294,11 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, boolean includeBody) {
+        if (isPendingMessage(message)) {
+            // the deferred insert will serialize the current state of the message
+            return true;
+        }
+        flushPendingMessages();
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {message.getUuid()};
         ContentValues contentValues = message.getContentValues();
@@ -1029,6 +1310,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public boolean updateMessage(Message message, String uuid) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {uuid};
         return db.update(Message.TABLENAME, message.getContentValues(), Message.UUID + "=?", args) == 1;
@@ -1068,6 +1350,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void deleteMessagesInConversation(Conversation conversation) {
+        flushPendingMessages();
         long start = SystemClock.elapsedRealtime();
         final SQLiteDatabase db = this.getWritableDatabase();
         db.beginTransaction();
@@ -1079,6 +1362,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public void expireOldMessages(long timestamp) {
+        flushPendingMessages();
         final String[] args = {String.valueOf(timestamp)};
         SQLiteDatabase db = this.getReadableDatabase();
         db.beginTransaction();
@@ -1088,6 +1372,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public MamReference getLastMessageReceived(Account account) {
+        flushPendingMessages();
         Cursor cursor = null;
         try {
             SQLiteDatabase db = this.getReadableDatabase();
@@ -1110,6 +1395,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public long getLastTimeFingerprintUsed(Account account, String fingerprint) {
+        flushPendingMessages();
         String SQL = "select messages.timeSent from accounts join conversations on accounts.uuid=conversations.accountUuid join messages on conversations.uuid=messages.conversationUuid where accounts.uuid=? and messages.axolotl_fingerprint=? order by messages.timesent desc limit 1";
         String[] args = {account.getUuid(), fingerprint};
         Cursor cursor = getReadableDatabase().rawQuery(SQL, args);
@@ -1156,20 +1442,22 @@ public class DatabaseBackend extends SQLiteOpenHelper {
                 null, null, null);
     }
 
-    public SessionRecord loadSession(Account account, SignalProtocolAddress contact) {
-        SessionRecord session = null;
-        Cursor cursor = getCursorForSession(account, contact);
-        if (cursor.getCount() != 0) {
-            cursor.moveToFirst();
-            try {
-                session = new SessionRecord(Base64.decode(cursor.getString(cursor.getColumnIndex(SQLiteAxolotlStore.KEY)), Base64.DEFAULT));
-            } catch (IOException e) {
-                cursor.close();
-                throw new AssertionError(e);
+    /**
+     * @return the serialized {@link SessionRecord} or null if there is no session with that address
+     */
+    @Nullable
+    public byte[] loadSession(Account account, SignalProtocolAddress contact) {
+        try (final Cursor cursor = getCursorForSession(account, contact)) {
+            if (!cursor.moveToFirst()) {
+                return null;
+            }
+            final int index = cursor.getColumnIndexOrThrow(SQLiteAxolotlStore.KEY);
+            // rows written before version 56 or restored from a backup still hold Base64
+            if (cursor.getType(index) == Cursor.FIELD_TYPE_STRING) {
+                return Base64.decode(cursor.getString(index), Base64.DEFAULT);
             }
+            return cursor.getBlob(index);
         }
-        cursor.close();
-        return session;
     }
 
     public List<Integer> getSubDeviceSessions(Account account, SignalProtocolAddress contact) {
@@ -1215,21 +1503,23 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         return addresses;
     }
 
-    public boolean containsSession(Account account, SignalProtocolAddress contact) {
-        Cursor cursor = getCursorForSession(account, contact);
-        int count = cursor.getCount();
-        cursor.close();
-        return count != 0;
-    }
-
-    public void storeSession(Account account, SignalProtocolAddress contact, SessionRecord session) {
-        SQLiteDatabase db = this.getWritableDatabase();
-        ContentValues values = new ContentValues();
-        values.put(SQLiteAxolotlStore.NAME, contact.getName());
-        values.put(SQLiteAxolotlStore.DEVICE_ID, contact.getDeviceId());
-        values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(session.serialize(), Base64.DEFAULT));
-        values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
-        db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+    /** Writes the serialized {@link SessionRecord}s of an account in a single transaction. */
+    public void storeSessions(final Account account, final Map<SignalProtocolAddress, byte[]> sessions) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final Map.Entry<SignalProtocolAddress, byte[]> entry : sessions.entrySet()) {
+                final ContentValues values = new ContentValues();
+                values.put(SQLiteAxolotlStore.NAME, entry.getKey().getName());
+                values.put(SQLiteAxolotlStore.DEVICE_ID, entry.getKey().getDeviceId());
+                values.put(SQLiteAxolotlStore.KEY, entry.getValue());
+                values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
+                db.insert(SQLiteAxolotlStore.SESSION_TABLENAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
     }
 
     public void deleteSession(Account account, SignalProtocolAddress contact) {
@@ -1302,6 +1592,23 @@ public class DatabaseBackend extends SQLiteOpenHelper {
         db.insert(SQLiteAxolotlStore.PREKEY_TABLENAME, null, values);
     }
 
+    public void storePreKeys(final Account account, final List<PreKeyRecord> records) {
+        final SQLiteDatabase db = this.getWritableDatabase();
+        db.beginTransaction();
+        try {
+            for (final PreKeyRecord record : records) {
+                final ContentValues values = new ContentValues();
+                values.put(SQLiteAxolotlStore.ID, record.getId());
+                values.put(SQLiteAxolotlStore.KEY, Base64.encodeToString(record.serialize(), Base64.DEFAULT));
+                values.put(SQLiteAxolotlStore.ACCOUNT, account.getUuid());
+                db.insert(SQLiteAxolotlStore.PREKEY_TABLENAME, null, values);
+            }
+            db.setTransactionSuccessful();
+        } finally {
+            db.endTransaction();
+        }
+    }
+
     public int deletePreKey(Account account, int preKeyId) {
         SQLiteDatabase db = this.getWritableDatabase();
         String[] args = {account.getUuid(), Integer.toString(preKeyId)};
@@ -1667,6 +1974,7 @@ public class DatabaseBackend extends SQLiteOpenHelper {
     }
 
     public List<ShortcutService.FrequentContact> getFrequentContacts(int days) {
+        flushPendingMessages();
         SQLiteDatabase db = this.getReadableDatabase();
         final String SQL = "select " + Conversation.TABLENAME + "." + Conversation.ACCOUNT + "," + Conversation.TABLENAME + "." + Conversation.CONTACTJID + " from " + Conversation.TABLENAME + " join " + Message.TABLENAME + " on conversations.uuid=messages.conversationUuid where messages.status!=0 and carbon==0  and conversations.mode=0 and messages.timeSent>=? group by conversations.uuid order by count(body) desc limit 4;";
         String[] whereArgs = new String[]{String.valueOf(System.currentTimeMillis() - (Config.MILLISECONDS_IN_DAY * days))};
@@ -41,6 +41,7 @@ import eu.siacs.conversations.R;
 import eu.siacs.conversations.entities.DownloadableFile;
 import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.services.AttachFileToConversationRunnable;
+import eu.siacs.conversations.services.BitmapCache;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.ui.adapter.MediaAdapter;
 import eu.siacs.conversations.ui.util.Attachment;
@@ -245,13 +246,6 @@ public class FileBackend {
         return false;
     }
 
-    private static int calcSampleSize(File image, int size) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inJustDecodeBounds = true;
-        BitmapFactory.decodeFile(image.getAbsolutePath(), options);
-        return calcSampleSize(options, size);
-    }
-
     private static int calcSampleSize(BitmapFactory.Options options, int size) {
         int height = options.outHeight;
         int width = options.outWidth;
@@ -434,7 +428,8 @@ public class FileBackend {
 
     public Bitmap getPreviewForUri(Attachment attachment, int size, boolean cacheOnly) {
         final String key = "attachment_" + attachment.getUuid().toString() + "_" + size;
-        final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
+        final LruCache<String, Bitmap> cache =
+                mXmppConnectionService.getBitmapCache().getPreviews();
         Bitmap bitmap = cache.get(key);
         if (bitmap != null || cacheOnly) {
             return bitmap;
@@ -596,6 +591,14 @@ public class FileBackend {
     }
 
     private Bitmap resize(final Bitmap originalBitmap, int size) throws IOException {
+        final Bitmap result = scaleDown(originalBitmap, size);
+        if (result != originalBitmap && !originalBitmap.isRecycled()) {
+            originalBitmap.recycle();
+        }
+        return result;
+    }
+
+    private static Bitmap scaleDown(final Bitmap originalBitmap, int size) throws IOException {
         int w = originalBitmap.getWidth();
         int h = originalBitmap.getHeight();
         if (w <= 0 || h <= 0) {
@@ -610,12 +613,7 @@ public class FileBackend {
                 scalledW = size;
                 scalledH = Math.max((int) (h / ((double) w / size)), 1);
             }
-            final Bitmap result =
-                    Bitmap.createScaledBitmap(originalBitmap, scalledW, scalledH, true);
-            if (!originalBitmap.isRecycled()) {
-                originalBitmap.recycle();
-            }
-            return result;
+            return Bitmap.createScaledBitmap(originalBitmap, scalledW, scalledH, true);
         } else {
             return originalBitmap;
         }
@@ -963,7 +961,8 @@ public class FileBackend {
 
     public Bitmap getThumbnail(Message message, int size, boolean cacheOnly) throws IOException {
         final String uuid = message.getUuid();
-        final LruCache<String, Bitmap> cache = mXmppConnectionService.getBitmapCache();
+        final BitmapCache bitmapCache = mXmppConnectionService.getBitmapCache();
+        final LruCache<String, Bitmap> cache = bitmapCache.getThumbnails();
         Bitmap thumbnail = cache.get(uuid);
         if ((thumbnail == null) && (!cacheOnly)) {
             synchronized (THUMBNAIL_LOCK) {
@@ -971,30 +970,11 @@ public class FileBackend {
                 if (thumbnail != null) {
                     return thumbnail;
                 }
-                DownloadableFile file = getFile(message);
-                final String mime = file.getMimeType();
-                if ("application/pdf".equals(mime)) {
-                    thumbnail = getPdfDocumentPreview(file, size);
-                } else if (mime.startsWith("video/")) {
-                    thumbnail = getVideoPreview(file, size);
-                } else {
-                    final Bitmap fullSize = getFullSizeImagePreview(file, size);
-                    if (fullSize == null) {
-                        throw new FileNotFoundException();
-                    }
-                    thumbnail = resize(fullSize, size);
-                    thumbnail = rotate(thumbnail, getRotation(file));
-                    if (mime.equals("image/gif")) {
-                        Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
-                        drawOverlay(
-                                withGifOverlay,
-                                paintOverlayBlack(withGifOverlay)
-                                        ? R.drawable.play_gif_black
-                                        : R.drawable.play_gif_white,
-                                1.0f);
-                        thumbnail.recycle();
-                        thumbnail = withGifOverlay;
-                    }
+                final DownloadableFile file = getFile(message);
+                thumbnail = bitmapCache.getDiskThumbnail(file, size);
+                if (thumbnail == null) {
+                    thumbnail = createThumbnail(file, size);
+                    bitmapCache.putDiskThumbnail(file, size, thumbnail);
                 }
                 cache.put(uuid, thumbnail);
             }
@@ -1002,14 +982,49 @@ public class FileBackend {
         return thumbnail;
     }
 
+    private Bitmap createThumbnail(final DownloadableFile file, final int size)
+            throws IOException {
+        final BitmapCache bitmapCache = mXmppConnectionService.getBitmapCache();
+        final String mime = file.getMimeType();
+        if ("application/pdf".equals(mime)) {
+            return getPdfDocumentPreview(file, size);
+        } else if (mime.startsWith("video/")) {
+            return getVideoPreview(file, size);
+        }
+        final Bitmap fullSize = getFullSizeImagePreview(file, size);
+        if (fullSize == null) {
+            throw new FileNotFoundException();
+        }
+        Bitmap thumbnail = scaleDown(fullSize, size);
+        if (thumbnail != fullSize) {
+            bitmapCache.release(fullSize);
+        }
+        thumbnail = rotate(thumbnail, getRotation(file));
+        if (mime.equals("image/gif")) {
+            Bitmap withGifOverlay = thumbnail.copy(Bitmap.Config.ARGB_8888, true);
+            drawOverlay(
+                    withGifOverlay,
+                    paintOverlayBlack(withGifOverlay)
+                            ? R.drawable.play_gif_black
+                            : R.drawable.play_gif_white,
+                    1.0f);
+            bitmapCache.release(thumbnail);
+            thumbnail = withGifOverlay;
+        }
+        return thumbnail;
+    }
+
     private Bitmap getFullSizeImagePreview(File file, int size) {
-        BitmapFactory.Options options = new BitmapFactory.Options();
-        options.inSampleSize = calcSampleSize(file, size);
+        final BitmapFactory.Options options = new BitmapFactory.Options();
+        options.inJustDecodeBounds = true;
+        BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        options.inSampleSize = calcSampleSize(options, size);
+        final BitmapCache bitmapCache = mXmppConnectionService.getBitmapCache();
         try {
-            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            return bitmapCache.decodeFile(file, options);
         } catch (OutOfMemoryError e) {
             options.inSampleSize *= 2;
-            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+            return bitmapCache.decodeFile(file, options);
         }
     }
 
@@ -5,10 +5,11 @@ import android.os.PowerManager;
 import android.os.SystemClock;
 import android.util.Log;
 
+import androidx.annotation.NonNull;
 import androidx.core.content.ContextCompat;
 
+import org.bouncycastle.crypto.InvalidCipherTextException;
 import org.bouncycastle.crypto.engines.AESEngine;
-import org.bouncycastle.crypto.io.CipherInputStream;
 import org.bouncycastle.crypto.io.CipherOutputStream;
 import org.bouncycastle.crypto.modes.AEADBlockCipher;
 import org.bouncycastle.crypto.modes.GCMBlockCipher;
@@ -19,8 +20,11 @@ import java.io.FileInputStream;
 import java.io.FileNotFoundException;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.InputStream;
 import java.io.OutputStream;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
 import java.util.concurrent.atomic.AtomicLong;
 
 import javax.annotation.Nullable;
@@ -32,8 +36,6 @@ import eu.siacs.conversations.utils.Compatibility;
 import okhttp3.MediaType;
 import okhttp3.RequestBody;
 import okio.BufferedSink;
-import okio.Okio;
-import okio.Source;
 
 import static eu.siacs.conversations.entities.Transferable.VALID_CRYPTO_EXTENSIONS;
 
@@ -47,47 +49,108 @@ public class AbstractConnectionManager {
         this.mXmppConnectionService = service;
     }
 
-    public static InputStream upgrade(DownloadableFile file, InputStream is) {
-        if (file.getKey() != null && file.getIv() != null) {
-            AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
-            cipher.init(true, new AEADParameters(new KeyParameter(file.getKey()), 128, file.getIv()));
-            return new CipherInputStream(is, cipher);
-        } else {
-            return is;
-        }
+    //For progress tracking see:
+    //https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/okhttp3/recipes/Progress.java
+
+    public static UploadRequestBody requestBody(final DownloadableFile file, final ProgressListener progressListener) {
+        return new UploadRequestBody(file, progressListener);
     }
 
+    /**
+     * Streams a file to OkHttp, encrypting it with AES-GCM on the fly if the file has a key. The
+     * source is read once through a {@link FileChannel} into a fixed size buffer that is encrypted
+     * into a second fixed size buffer, so memory usage does not depend on the size of the file.
+     * The SHA-256 of the plain text is computed in the same pass.
+     *
+     * <p>OkHttp may call {@link #writeTo(BufferedSink)} more than once when retrying; every call
+     * starts over with a fresh cipher and digest.
+     */
+    public static class UploadRequestBody extends RequestBody {
+
+        private static final int BUFFER_SIZE = 64 * 1024;
+        private static final int MAC_SIZE = 16;
+
+        private final DownloadableFile file;
+        private final ProgressListener progressListener;
+        private volatile byte[] sha256;
+
+        private UploadRequestBody(final DownloadableFile file, final ProgressListener progressListener) {
+            this.file = file;
+            this.progressListener = progressListener;
+        }
 
-    //For progress tracking see:
-    //https://github.com/square/okhttp/blob/master/samples/guide/src/main/java/okhttp3/recipes/Progress.java
+        @Override
+        public long contentLength() {
+            return file.getSize() + (file.getKey() != null ? MAC_SIZE : 0);
+        }
 
-    public static RequestBody requestBody(final DownloadableFile file, final ProgressListener progressListener) {
-        return new RequestBody() {
+        @Nullable
+        @Override
+        public MediaType contentType() {
+            return MediaType.parse(file.getMimeType());
+        }
 
-            @Override
-            public long contentLength() {
-                return file.getSize() + (file.getKey() != null ? 16 : 0);
+        @Override
+        public void writeTo(@NonNull final BufferedSink sink) throws IOException {
+            final AEADBlockCipher cipher;
+            if (file.getKey() != null && file.getIv() != null) {
+                cipher = new GCMBlockCipher(new AESEngine());
+                cipher.init(true, new AEADParameters(new KeyParameter(file.getKey()), MAC_SIZE * 8, file.getIv()));
+            } else {
+                cipher = null;
             }
-
-            @Nullable
-            @Override
-            public MediaType contentType() {
-                return MediaType.parse(file.getMimeType());
+            final MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (final NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
             }
-
-            @Override
-            public void writeTo(final BufferedSink sink) throws IOException {
-                long transmitted = 0;
-                try (final Source source = Okio.source(upgrade(file, new FileInputStream(file)))) {
-                    long read;
-                    while ((read = source.read(sink.buffer(), 8196)) != -1) {
-                        transmitted += read;
-                        sink.flush();
-                        progressListener.onProgress(transmitted);
+            final byte[] input = new byte[BUFFER_SIZE];
+            // up to one block of the previous update can still be buffered in the cipher
+            final byte[] output = cipher == null ? null : new byte[cipher.getUpdateOutputSize(BUFFER_SIZE + 15)];
+            final ByteBuffer inputBuffer = ByteBuffer.wrap(input);
+            long transmitted = 0;
+            try (final FileInputStream fileInputStream = new FileInputStream(file);
+                 final FileChannel channel = fileInputStream.getChannel()) {
+                int read;
+                while ((read = channel.read(inputBuffer)) != -1) {
+                    if (read == 0) {
+                        continue;
                     }
+                    inputBuffer.clear();
+                    digest.update(input, 0, read);
+                    if (cipher == null) {
+                        sink.write(input, 0, read);
+                    } else {
+                        final int length = cipher.processBytes(input, 0, read, output, 0);
+                        sink.write(output, 0, length);
+                    }
+                    transmitted += read;
+                    sink.flush();
+                    progressListener.onProgress(transmitted);
                 }
             }
-        };
+            if (cipher != null) {
+                final byte[] last = new byte[cipher.getOutputSize(0)];
+                try {
+                    final int length = cipher.doFinal(last, 0);
+                    sink.write(last, 0, length);
+                } catch (final InvalidCipherTextException e) {
+                    throw new IOException(e);
+                }
+                sink.flush();
+                progressListener.onProgress(transmitted + MAC_SIZE);
+            }
+            this.sha256 = digest.digest();
+        }
+
+        /**
+         * @return the SHA-256 of the plain text or null if the body has not been written completely
+         */
+        @Nullable
+        public byte[] getSha256() {
+            return sha256;
+        }
     }
 
     public interface ProgressListener {
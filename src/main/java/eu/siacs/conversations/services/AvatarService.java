@@ -104,7 +104,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 			return get(contact.getAccount(), size, cachedOnly);
 		}
 		final String KEY = key(contact, size);
-		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().getAvatars().get(KEY);
 		if (avatar != null || cachedOnly) {
 			return avatar;
 		}
@@ -120,7 +120,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		if (avatar == null) {
 			avatar = get(contact.getDisplayName(), contact.getJid().asBareJid().toString(), size, false);
 		}
-		this.mXmppConnectionService.getBitmapCache().put(KEY, avatar);
+		this.mXmppConnectionService.getBitmapCache().getAvatars().put(KEY, avatar);
 		return avatar;
 	}
 
@@ -213,7 +213,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	private Bitmap getImpl(final MucOptions.User user, final int size, boolean cachedOnly) {
 		final String KEY = key(user, size);
-		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap avatar = this.mXmppConnectionService.getBitmapCache().getAvatars().get(KEY);
 		if (avatar != null || cachedOnly) {
 			return avatar;
 		}
@@ -229,14 +229,14 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 				avatar = get(user.getName(), seed, size, false);
 			}
 		}
-		this.mXmppConnectionService.getBitmapCache().put(KEY, avatar);
+		this.mXmppConnectionService.getBitmapCache().getAvatars().put(KEY, avatar);
 		return avatar;
 	}
 
 	public void clear(Contact contact) {
 		synchronized (this.sizes) {
 			for (final Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(contact, size));
+				this.mXmppConnectionService.getBitmapCache().getAvatars().remove(key(contact, size));
 			}
 		}
 		for (Conversation conversation : mXmppConnectionService.findAllConferencesWith(contact)) {
@@ -327,7 +327,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 				if (keys == null) {
 					return;
 				}
-				LruCache<String, Bitmap> cache = this.mXmppConnectionService.getBitmapCache();
+				LruCache<String, Bitmap> cache = this.mXmppConnectionService.getBitmapCache().getAvatars();
 				for (String key : keys) {
 					cache.remove(key);
 				}
@@ -338,7 +338,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	private Bitmap get(MucOptions mucOptions, int size, boolean cachedOnly) {
 		final String KEY = key(mucOptions, size);
-		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().getAvatars().get(KEY);
 		if (bitmap != null || cachedOnly) {
 			return bitmap;
 		}
@@ -359,19 +359,19 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 			}
 		}
 
-		this.mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
+		this.mXmppConnectionService.getBitmapCache().getAvatars().put(KEY, bitmap);
 
 		return bitmap;
 	}
 
 	private Bitmap get(List<MucOptions.User> users, int size, boolean cachedOnly) {
 		final String KEY = key(users, size);
-		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap bitmap = this.mXmppConnectionService.getBitmapCache().getAvatars().get(KEY);
 		if (bitmap != null || cachedOnly) {
 			return bitmap;
 		}
 		bitmap = getImpl(users, size);
-		this.mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
+		this.mXmppConnectionService.getBitmapCache().getAvatars().put(KEY, bitmap);
 		return bitmap;
 	}
 
@@ -415,7 +415,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 		}
 		synchronized (this.sizes) {
 			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(options, size));
+				this.mXmppConnectionService.getBitmapCache().getAvatars().remove(key(options, size));
 			}
 		}
 	}
@@ -460,7 +460,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	public Bitmap get(Account account, int size, boolean cachedOnly) {
 		final String KEY = key(account, size);
-		Bitmap avatar = mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap avatar = mXmppConnectionService.getBitmapCache().getAvatars().get(KEY);
 		if (avatar != null || cachedOnly) {
 			return avatar;
 		}
@@ -474,7 +474,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 				avatar = get(jid, null, size, false);
 			}
 		}
-		mXmppConnectionService.getBitmapCache().put(KEY, avatar);
+		mXmppConnectionService.getBitmapCache().getAvatars().put(KEY, avatar);
 		return avatar;
 	}
 
@@ -512,7 +512,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	public void clear(Account account) {
 		synchronized (this.sizes) {
 			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(account, size));
+				this.mXmppConnectionService.getBitmapCache().getAvatars().remove(key(account, size));
 			}
 		}
 	}
@@ -520,7 +520,7 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 	public void clear(MucOptions.User user) {
 		synchronized (this.sizes) {
 			for (Integer size : sizes) {
-				this.mXmppConnectionService.getBitmapCache().remove(key(user, size));
+				this.mXmppConnectionService.getBitmapCache().getAvatars().remove(key(user, size));
 			}
 		}
 	}
@@ -539,12 +539,12 @@ public class AvatarService implements OnAdvancedStreamFeaturesLoaded {
 
 	public Bitmap get(final String name, String seed, final int size, boolean cachedOnly) {
 		final String KEY = key(seed == null ? name : name+"\0"+seed, size);
-		Bitmap bitmap = mXmppConnectionService.getBitmapCache().get(KEY);
+		Bitmap bitmap = mXmppConnectionService.getBitmapCache().getAvatars().get(KEY);
 		if (bitmap != null || cachedOnly) {
 			return bitmap;
 		}
 		bitmap = getImpl(name, seed, size);
-		mXmppConnectionService.getBitmapCache().put(KEY, bitmap);
+		mXmppConnectionService.getBitmapCache().getAvatars().put(KEY, bitmap);
 		return bitmap;
 	}
 
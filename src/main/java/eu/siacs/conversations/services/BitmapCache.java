@@ -0,0 +1,402 @@
+package eu.siacs.conversations.services;
+
+import android.content.ComponentCallbacks2;
+import android.graphics.Bitmap;
+import android.graphics.BitmapFactory;
+import android.os.Build;
+import android.util.Log;
+import android.util.LruCache;
+
+import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
+
+import com.google.common.base.Charsets;
+import com.google.common.hash.Hashing;
+
+import eu.siacs.conversations.Config;
+
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Locale;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * In-memory bitmap caches with a separate budget for every class of bitmap, backed by a disk cache
+ * of scaled down thumbnails. Avatars are small but shown on every screen; with a shared budget a
+ * single scroll through a media heavy conversation would push them out and the conversation list
+ * would have to render them again.
+ *
+ * <p>Bitmaps that have only been needed as intermediate decoding steps are kept in a small pool
+ * and handed to {@link BitmapFactory} as {@link BitmapFactory.Options#inBitmap} for the next
+ * decode. Bitmaps evicted from the memory caches never go to that pool because they might still be
+ * attached to a view.
+ */
+public class BitmapCache {
+
+    private static final String DISK_CACHE_DIRECTORY = "thumbnails";
+    private static final long DISK_CACHE_SIZE = 32 * 1024 * 1024;
+    private static final int DISK_CACHE_QUALITY = 85;
+
+    private final Tier avatars;
+    private final Tier thumbnails;
+    private final Tier previews;
+    private final ReusePool reusePool;
+    private final File diskCacheDirectory;
+    private final Object diskCacheLock = new Object();
+    private long diskCacheSize = -1;
+    private final AtomicInteger diskHits = new AtomicInteger();
+    private final AtomicInteger diskMisses = new AtomicInteger();
+
+    /**
+     * @param maxMemory total memory budget of all in-memory caches in bytes
+     * @param cacheDirectory the directory the disk cache will be placed in
+     */
+    public BitmapCache(final long maxMemory, final File cacheDirectory) {
+        final int budget = (int) (maxMemory / 1024);
+        this.avatars = new Tier("avatars", budget / 4);
+        this.thumbnails = new Tier("thumbnails", budget / 2);
+        this.previews = new Tier("previews", budget / 4);
+        this.reusePool = new ReusePool(maxMemory / 8);
+        this.diskCacheDirectory = new File(cacheDirectory, DISK_CACHE_DIRECTORY);
+    }
+
+    /**
+     * @return cache for contact, account, conference and user avatars of every size
+     */
+    public LruCache<String, Bitmap> getAvatars() {
+        return avatars;
+    }
+
+    /**
+     * @return cache for thumbnails of files attached to messages, keyed by message uuid
+     */
+    public LruCache<String, Bitmap> getThumbnails() {
+        return thumbnails;
+    }
+
+    /**
+     * @return cache for previews of attachments that have not been sent yet
+     */
+    public LruCache<String, Bitmap> getPreviews() {
+        return previews;
+    }
+
+    public void evictAll() {
+        avatars.evictAll();
+        thumbnails.evictAll();
+        previews.evictAll();
+        reusePool.clear();
+    }
+
+    /**
+     * Drops the bitmaps that are the cheapest to bring back first. Previews and pooled bitmaps go
+     * as soon as the app is in the background, everything else only when memory is critical.
+     */
+    public void trimMemory(final int level) {
+        Log.d(Config.LOGTAG, "trim bitmap cache (level=" + level + ") " + getStatistics());
+        if (level >= ComponentCallbacks2.TRIM_MEMORY_COMPLETE) {
+            evictAll();
+        } else if (level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) {
+            reusePool.clear();
+            previews.evictAll();
+            thumbnails.trimToSize(thumbnails.maxSize() / 2);
+        }
+    }
+
+    public String getStatistics() {
+        return String.format(
+                Locale.ENGLISH,
+                "%s %s %s disk[hits=%d,misses=%d] %s",
+                avatars.describe(),
+                thumbnails.describe(),
+                previews.describe(),
+                diskHits.get(),
+                diskMisses.get(),
+                reusePool);
+    }
+
+    /**
+     * Decodes a file into a pooled bitmap if there is one large enough. The bounds of the image
+     * must have been decoded into {@code options} already.
+     */
+    public Bitmap decodeFile(final File file, final BitmapFactory.Options options) {
+        final int sampleSize = Math.max(1, options.inSampleSize);
+        // decoders round up when sub sampling
+        final int width = (options.outWidth + sampleSize - 1) / sampleSize;
+        final int height = (options.outHeight + sampleSize - 1) / sampleSize;
+        final Bitmap reusable;
+        if (width > 0 && height > 0) {
+            reusable = reusePool.take(width, height, options.inPreferredConfig);
+        } else {
+            reusable = null;
+        }
+        options.inJustDecodeBounds = false;
+        options.inMutable = true;
+        options.inBitmap = reusable;
+        final Bitmap bitmap;
+        try {
+            bitmap = BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        } catch (final IllegalArgumentException e) {
+            if (reusable == null) {
+                throw e;
+            }
+            // the pooled bitmap turned out not to be compatible with the image
+            options.inBitmap = null;
+            reusePool.offer(reusable);
+            return BitmapFactory.decodeFile(file.getAbsolutePath(), options);
+        }
+        if (bitmap == null && reusable != null) {
+            reusePool.offer(reusable);
+        }
+        return bitmap;
+    }
+
+    /**
+     * Hands a bitmap that is not referenced anywhere else anymore to the reuse pool. Use instead of
+     * {@link Bitmap#recycle()}; bitmaps that can not be reused will be recycled.
+     */
+    public void release(final Bitmap bitmap) {
+        reusePool.offer(bitmap);
+    }
+
+    @Nullable
+    public Bitmap getDiskThumbnail(final File file, final int size) {
+        if (!file.exists()) {
+            return null;
+        }
+        final File cached = getDiskCacheFile(file, size);
+        synchronized (diskCacheLock) {
+            if (!cached.exists()) {
+                diskMisses.incrementAndGet();
+                return null;
+            }
+            final BitmapFactory.Options options = new BitmapFactory.Options();
+            options.inJustDecodeBounds = true;
+            BitmapFactory.decodeFile(cached.getAbsolutePath(), options);
+            final Bitmap bitmap = decodeFile(cached, options);
+            if (bitmap == null) {
+                Log.d(Config.LOGTAG, "unable to decode cached thumbnail. deleting");
+                deleteDiskCacheFile(cached);
+                diskMisses.incrementAndGet();
+                return null;
+            }
+            // the modification time doubles as last access time when trimming
+            cached.setLastModified(System.currentTimeMillis());
+            diskHits.incrementAndGet();
+            return bitmap;
+        }
+    }
+
+    public void putDiskThumbnail(final File file, final int size, final Bitmap bitmap) {
+        if (bitmap == null || !file.exists()) {
+            return;
+        }
+        final File cached = getDiskCacheFile(file, size);
+        synchronized (diskCacheLock) {
+            if (!diskCacheDirectory.exists() && !diskCacheDirectory.mkdirs()) {
+                Log.d(Config.LOGTAG, "unable to create thumbnail cache directory");
+                return;
+            }
+            final File temporary = new File(cached.getAbsolutePath() + ".tmp");
+            try (final FileOutputStream outputStream = new FileOutputStream(temporary)) {
+                if (!bitmap.compress(getDiskCacheFormat(), DISK_CACHE_QUALITY, outputStream)) {
+                    throw new IOException("unable to compress thumbnail");
+                }
+            } catch (final IOException e) {
+                Log.d(Config.LOGTAG, "unable to write thumbnail to disk cache", e);
+                deleteDiskCacheFile(temporary);
+                return;
+            }
+            final long previousSize = cached.length();
+            if (!temporary.renameTo(cached)) {
+                deleteDiskCacheFile(temporary);
+                return;
+            }
+            if (diskCacheSize < 0) {
+                diskCacheSize = 0;
+                for (final File entry : listDiskCacheFiles()) {
+                    diskCacheSize += entry.length();
+                }
+            } else {
+                diskCacheSize += cached.length() - previousSize;
+            }
+            if (diskCacheSize > DISK_CACHE_SIZE) {
+                trimDiskCache();
+            }
+        }
+    }
+
+    private void trimDiskCache() {
+        final File[] files = listDiskCacheFiles();
+        Arrays.sort(files, Comparator.comparingLong(File::lastModified));
+        int deleted = 0;
+        for (final File file : files) {
+            if (diskCacheSize <= DISK_CACHE_SIZE * 3 / 4) {
+                break;
+            }
+            final long length = file.length();
+            if (file.delete()) {
+                diskCacheSize -= length;
+                ++deleted;
+            }
+        }
+        Log.d(Config.LOGTAG, "deleted " + deleted + " files from thumbnail cache");
+    }
+
+    private File[] listDiskCacheFiles() {
+        final File[] files = diskCacheDirectory.listFiles();
+        return files == null ? new File[0] : files;
+    }
+
+    /**
+     * Hashing the content would cost about as much as decoding the original file again. Path,
+     * length and modification time identify a file just as well for as long as the file exists.
+     */
+    private File getDiskCacheFile(final File file, final int size) {
+        final String fingerprint =
+                String.format(
+                        Locale.ENGLISH,
+                        "%s\0%d\0%d\0%d",
+                        file.getAbsolutePath(),
+                        file.length(),
+                        file.lastModified(),
+                        size);
+        return new File(
+                diskCacheDirectory,
+                Hashing.sha256().hashString(fingerprint, Charsets.UTF_8).toString());
+    }
+
+    private static void deleteDiskCacheFile(final File file) {
+        if (file.exists() && !file.delete()) {
+            Log.d(Config.LOGTAG, "unable to delete " + file.getAbsolutePath());
+        }
+    }
+
+    @SuppressWarnings("deprecation")
+    private static Bitmap.CompressFormat getDiskCacheFormat() {
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.R) {
+            return Bitmap.CompressFormat.WEBP_LOSSY;
+        }
+        return Bitmap.CompressFormat.WEBP;
+    }
+
+    private static class Tier extends LruCache<String, Bitmap> {
+
+        private final String name;
+
+        private Tier(final String name, final int maxSize) {
+            super(Math.max(1, maxSize));
+            this.name = name;
+        }
+
+        @Override
+        protected int sizeOf(final String key, final Bitmap bitmap) {
+            return bitmap.getAllocationByteCount() / 1024;
+        }
+
+        // LruCache.toString() is final
+        private String describe() {
+            return String.format(
+                    Locale.ENGLISH,
+                    "%s[size=%dK/%dK,hits=%d,misses=%d,evictions=%d]",
+                    name,
+                    size(),
+                    maxSize(),
+                    hitCount(),
+                    missCount(),
+                    evictionCount());
+        }
+    }
+
+    private static class ReusePool {
+
+        private final long maxSize;
+        private final List<Bitmap> bitmaps = new ArrayList<>();
+        private long size = 0;
+        private int hits = 0;
+        private int misses = 0;
+
+        private ReusePool(final long maxSize) {
+            this.maxSize = maxSize;
+        }
+
+        /**
+         * @return the smallest pooled bitmap that can hold an image of the given dimensions
+         */
+        private synchronized Bitmap take(
+                final int width, final int height, final Bitmap.Config config) {
+            final long required = (long) width * height * getBytesPerPixel(config);
+            Bitmap candidate = null;
+            for (final Bitmap bitmap : bitmaps) {
+                final int allocated = bitmap.getAllocationByteCount();
+                if (allocated >= required
+                        && (candidate == null || allocated < candidate.getAllocationByteCount())) {
+                    candidate = bitmap;
+                }
+            }
+            if (candidate == null) {
+                ++misses;
+                return null;
+            }
+            bitmaps.remove(candidate);
+            size -= candidate.getAllocationByteCount();
+            ++hits;
+            return candidate;
+        }
+
+        private synchronized void offer(final Bitmap bitmap) {
+            if (bitmap == null || bitmap.isRecycled()) {
+                return;
+            }
+            final int allocated = bitmap.getAllocationByteCount();
+            if (!bitmap.isMutable() || allocated > maxSize) {
+                bitmap.recycle();
+                return;
+            }
+            bitmaps.add(bitmap);
+            size += allocated;
+            while (size > maxSize) {
+                final Bitmap eldest = bitmaps.remove(0);
+                size -= eldest.getAllocationByteCount();
+                eldest.recycle();
+            }
+        }
+
+        private synchronized void clear() {
+            for (final Bitmap bitmap : bitmaps) {
+                bitmap.recycle();
+            }
+            bitmaps.clear();
+            size = 0;
+        }
+
+        private static int getBytesPerPixel(final Bitmap.Config config) {
+            if (config == Bitmap.Config.ALPHA_8) {
+                return 1;
+            } else if (config == Bitmap.Config.RGB_565) {
+                return 2;
+            } else if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.O
+                    && config == Bitmap.Config.RGBA_F16) {
+                return 8;
+            }
+            return 4;
+        }
+
+        @NonNull
+        @Override
+        public synchronized String toString() {
+            return String.format(
+                    Locale.ENGLISH,
+                    "pool[bitmaps=%d,size=%dK,hits=%d,misses=%d]",
+                    bitmaps.size(),
+                    size / 1024,
+                    hits,
+                    misses);
+        }
+    }
+}
@@ -28,6 +28,7 @@ import android.text.SpannableString;
 import android.text.style.StyleSpan;
 import android.util.DisplayMetrics;
 import android.util.Log;
+import android.util.LruCache;
 
 import androidx.annotation.Nullable;
 import androidx.annotation.RequiresApi;
@@ -77,11 +78,16 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collections;
 import java.util.HashMap;
+import java.util.HashSet;
 import java.util.Iterator;
 import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicInteger;
 import java.util.regex.Matcher;
 import java.util.regex.Pattern;
@@ -106,8 +112,21 @@ public class NotificationService {
     private static final int DELIVERY_FAILED_NOTIFICATION_ID = NOTIFICATION_ID_MULTIPLIER * 13;
     public static final int ONGOING_VIDEO_TRANSCODING_NOTIFICATION_ID =
             NOTIFICATION_ID_MULTIPLIER * 14;
+    // a single backlog drain can easily produce more updates than the system is willing to accept
+    private static final long MIN_SILENT_UPDATE_INTERVAL = 1000;
+
+    private static final ScheduledExecutorService DEFERRED_UPDATE_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor();
+
+    private static final LruCache<String, Pattern> NICK_HIGHLIGHT_PATTERNS = new LruCache<>(32);
+
     private final XmppConnectionService mXmppConnectionService;
     private final LinkedHashMap<String, ArrayList<Message>> notifications = new LinkedHashMap<>();
+    // conversations whose notification does not reflect the messages in the stack yet
+    private final Set<String> dirtyConversations = new HashSet<>();
+    private final HashMap<String, MessagingStyleCache> messagingStyleCache = new HashMap<>();
+    private long mLastMessagesUpdate = 0;
+    private ScheduledFuture<?> mDeferredUpdate;
     private final HashMap<Conversation, AtomicInteger> mBacklogMessageCounter = new HashMap<>();
     private final LinkedHashMap<Conversational, MissedCallsInfo> mMissedCalls =
             new LinkedHashMap<>();
@@ -137,7 +156,14 @@ public class NotificationService {
     }
 
     public static Pattern generateNickHighlightPattern(final String nick) {
-        return Pattern.compile("(?<=(^|\\s))" + Pattern.quote(nick) + "(?=\\s|$|\\p{Punct})");
+        Pattern pattern = NICK_HIGHLIGHT_PATTERNS.get(nick);
+        if (pattern == null) {
+            pattern =
+                    Pattern.compile(
+                            "(?<=(^|\\s))" + Pattern.quote(nick) + "(?=\\s|$|\\p{Punct})");
+            NICK_HIGHLIGHT_PATTERNS.put(nick, pattern);
+        }
+        return pattern;
     }
 
     private static boolean isImageMessage(Message message) {
@@ -474,6 +500,7 @@ public class NotificationService {
 
     private void pushToStack(final Message message) {
         final String conversationUuid = message.getConversationUuid();
+        dirtyConversations.add(conversationUuid);
         if (notifications.containsKey(conversationUuid)) {
             notifications.get(conversationUuid).add(message);
         } else {
@@ -789,6 +816,8 @@ public class NotificationService {
                 markAsReadIfHasDirectReply(messages);
             }
             notifications.clear();
+            dirtyConversations.clear();
+            messagingStyleCache.clear();
             updateNotification(false);
         }
     }
@@ -799,6 +828,8 @@ public class NotificationService {
         }
         synchronized (notifications) {
             markAsReadIfHasDirectReply(conversation);
+            dirtyConversations.remove(conversation.getUuid());
+            messagingStyleCache.remove(conversation.getUuid());
             if (notifications.remove(conversation.getUuid()) != null) {
                 cancel(conversation.getUuid(), NOTIFICATION_ID);
                 updateNotification(false, null, true);
@@ -869,10 +900,23 @@ public class NotificationService {
 
     public void updateNotification() {
         synchronized (notifications) {
+            dirtyConversations.addAll(notifications.keySet());
+            messagingStyleCache.clear();
             updateNotification(false);
         }
     }
 
+    /** Rebuilds the notification of a conversation, for example after a message was corrected. */
+    public void updateNotification(final Conversation conversation) {
+        synchronized (notifications) {
+            if (notifications.containsKey(conversation.getUuid())) {
+                dirtyConversations.add(conversation.getUuid());
+                messagingStyleCache.remove(conversation.getUuid());
+                updateNotification(false);
+            }
+        }
+    }
+
     private void updateNotification(final boolean notify) {
         updateNotification(notify, null, false);
     }
@@ -898,7 +942,10 @@ public class NotificationService {
         } else {
             if (notify) {
                 this.markLastNotification();
+            } else if (deferSilentUpdate()) {
+                return;
             }
+            this.mLastMessagesUpdate = SystemClock.elapsedRealtime();
             final Builder mBuilder;
             if (notifications.size() == 1 && Build.VERSION.SDK_INT < Build.VERSION_CODES.N) {
                 mBuilder =
@@ -914,6 +961,10 @@ public class NotificationService {
                 if (!summaryOnly) {
                     for (Map.Entry<String, ArrayList<Message>> entry : notifications.entrySet()) {
                         String uuid = entry.getKey();
+                        // unchanged notifications are left alone; the summary does the alerting
+                        if (!dirtyConversations.remove(uuid)) {
+                            continue;
+                        }
                         final boolean notifyThis =
                                 notifyOnlyOneChild ? conversations.contains(uuid) : notify;
                         Builder singleBuilder =
@@ -933,6 +984,33 @@ public class NotificationService {
         }
     }
 
+    /**
+     * Postpones updates without sound or vibration that would follow the previous one too closely.
+     * Changes keep being collected in the meantime and go out with the deferred update.
+     *
+     * @return true if the update has been deferred
+     */
+    private boolean deferSilentUpdate() {
+        final long wait =
+                mLastMessagesUpdate + MIN_SILENT_UPDATE_INTERVAL - SystemClock.elapsedRealtime();
+        if (wait <= 0) {
+            return false;
+        }
+        if (mDeferredUpdate == null) {
+            mDeferredUpdate =
+                    DEFERRED_UPDATE_SCHEDULER.schedule(
+                            () -> {
+                                synchronized (notifications) {
+                                    mDeferredUpdate = null;
+                                    updateNotification(false);
+                                }
+                            },
+                            wait,
+                            TimeUnit.MILLISECONDS);
+        }
+        return true;
+    }
+
     private void updateMissedCallNotifications(final Set<Conversational> update) {
         if (mMissedCalls.isEmpty()) {
             cancel(MISSED_CALL_NOTIFICATION_ID);
@@ -1427,31 +1505,55 @@ public class NotificationService {
         return builder.build();
     }
 
+    private Person getMe(final Conversation conversation) {
+        final Person.Builder meBuilder =
+                new Person.Builder().setName(mXmppConnectionService.getString(R.string.me));
+        if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
+            meBuilder.setIcon(
+                    IconCompat.createWithBitmap(
+                            mXmppConnectionService
+                                    .getAvatarService()
+                                    .get(
+                                            conversation.getAccount(),
+                                            AvatarService.getSystemUiAvatarSize(
+                                                    mXmppConnectionService))));
+        }
+        return meBuilder.build();
+    }
+
+    /**
+     * @return the parts of the messaging style that have been built for the messages of this
+     *     conversation before, or an empty cache if messages have been removed from the stack since
+     */
+    private MessagingStyleCache getMessagingStyleCache(
+            final Conversation conversation, final List<Message> messages) {
+        final MessagingStyleCache cache = messagingStyleCache.get(conversation.getUuid());
+        if (cache != null && cache.isPrefixOf(messages)) {
+            return cache;
+        }
+        final MessagingStyleCache fresh = new MessagingStyleCache();
+        messagingStyleCache.put(conversation.getUuid(), fresh);
+        return fresh;
+    }
+
     private void modifyForTextOnly(final Builder builder, final ArrayList<Message> messages) {
         if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.N) {
             final Conversation conversation = (Conversation) messages.get(0).getConversation();
-            final Person.Builder meBuilder =
-                    new Person.Builder().setName(mXmppConnectionService.getString(R.string.me));
-            if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P) {
-                meBuilder.setIcon(
-                        IconCompat.createWithBitmap(
-                                mXmppConnectionService
-                                        .getAvatarService()
-                                        .get(
-                                                conversation.getAccount(),
-                                                AvatarService.getSystemUiAvatarSize(
-                                                        mXmppConnectionService))));
+            final MessagingStyleCache cache = getMessagingStyleCache(conversation, messages);
+            if (cache.me == null) {
+                cache.me = getMe(conversation);
             }
-            final Person me = meBuilder.build();
             NotificationCompat.MessagingStyle messagingStyle =
-                    new NotificationCompat.MessagingStyle(me);
+                    new NotificationCompat.MessagingStyle(cache.me);
             final boolean multiple = conversation.getMode() == Conversation.MODE_MULTI;
             if (multiple) {
                 messagingStyle.setConversationTitle(conversation.getName());
             }
-            for (Message message : messages) {
+            for (final Message message : messages.subList(cache.size(), messages.size())) {
                 final Person sender =
-                        message.getStatus() == Message.STATUS_RECEIVED ? getPerson(message) : null;
+                        message.getStatus() == Message.STATUS_RECEIVED
+                                ? cache.getPerson(message)
+                                : null;
                 if (Build.VERSION.SDK_INT >= Build.VERSION_CODES.P && isImageMessage(message)) {
                     final Uri dataUri =
                             FileBackend.getMediaUri(
@@ -1466,14 +1568,20 @@ public class NotificationService {
                     if (dataUri != null) {
                         imageMessage.setData(message.getMimeType(), dataUri);
                     }
-                    messagingStyle.addMessage(imageMessage);
+                    cache.add(message, imageMessage);
                 } else {
-                    messagingStyle.addMessage(
-                            UIHelper.getMessagePreview(mXmppConnectionService, message).first,
-                            message.getTimeSent(),
-                            sender);
+                    cache.add(
+                            message,
+                            new NotificationCompat.MessagingStyle.Message(
+                                    UIHelper.getMessagePreview(mXmppConnectionService, message)
+                                            .first,
+                                    message.getTimeSent(),
+                                    sender));
                 }
             }
+            for (final NotificationCompat.MessagingStyle.Message message : cache.messages) {
+                messagingStyle.addMessage(message);
+            }
             messagingStyle.setGroupConversation(multiple);
             builder.setStyle(messagingStyle);
         } else {
@@ -1740,10 +1848,10 @@ public class NotificationService {
     private boolean wasHighlightedOrPrivate(final Message message) {
         if (message.getConversation() instanceof Conversation conversation) {
             final String nick = conversation.getMucOptions().getActualNick();
-            final Pattern highlight = generateNickHighlightPattern(nick);
             if (message.getBody() == null || nick == null) {
                 return false;
             }
+            final Pattern highlight = generateNickHighlightPattern(nick);
             final Matcher m = highlight.matcher(message.getBody());
             return (m.find() || message.isPrivateMessage());
         } else {
@@ -2035,6 +2143,44 @@ public class NotificationService {
         }
     }
 
+    /**
+     * The messaging style of a conversation notification is rebuilt for every update but the
+     * messages in the stack only ever get appended to. Messages that have been converted already
+     * and the senders (including their avatars) are kept around.
+     */
+    private class MessagingStyleCache {
+        private final List<NotificationCompat.MessagingStyle.Message> messages =
+                new ArrayList<>();
+        private final Map<String, Person> senders = new HashMap<>();
+        private Message last;
+        private Person me;
+
+        private int size() {
+            return messages.size();
+        }
+
+        private boolean isPrefixOf(final List<Message> stack) {
+            return messages.size() <= stack.size()
+                    && (last == null || stack.get(messages.size() - 1) == last);
+        }
+
+        private void add(
+                final Message message, final NotificationCompat.MessagingStyle.Message converted) {
+            messages.add(converted);
+            last = message;
+        }
+
+        private Person getPerson(final Message message) {
+            final String key = String.valueOf(message.getCounterpart());
+            Person person = senders.get(key);
+            if (person == null) {
+                person = NotificationService.this.getPerson(message);
+                senders.put(key, person);
+            }
+            return person;
+        }
+    }
+
     private static class MissedCallsInfo {
         private int numberOfCalls;
         private long lastTime;
@@ -0,0 +1,91 @@
+package eu.siacs.conversations.services;
+
+import android.os.Handler;
+import android.os.Looper;
+
+import androidx.annotation.Nullable;
+
+import com.google.common.collect.ImmutableSet;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.entities.Conversation;
+
+import java.util.HashSet;
+import java.util.Set;
+
+/**
+ * Merges bursts of conversation and account UI updates, for example while catching up with the
+ * archive, into a single dispatch per {@link Config#UI_UPDATE_INTERVAL}. Updates can be requested
+ * from any thread; listeners are notified on the main thread.
+ */
+final class UiUpdateCoalescer {
+
+    private final Handler handler = new Handler(Looper.getMainLooper());
+    private final Runnable flushRunnable = this::flush;
+    private final Dispatcher dispatcher;
+
+    private final Set<Conversation> dirtyConversations = new HashSet<>();
+    private boolean allConversationsDirty = false;
+    private boolean accountsDirty = false;
+    private boolean scheduled = false;
+
+    UiUpdateCoalescer(final Dispatcher dispatcher) {
+        this.dispatcher = dispatcher;
+    }
+
+    public synchronized void conversationChanged(final Conversation conversation) {
+        if (!allConversationsDirty) {
+            dirtyConversations.add(conversation);
+        }
+        schedule();
+    }
+
+    public synchronized void allConversationsChanged() {
+        allConversationsDirty = true;
+        dirtyConversations.clear();
+        schedule();
+    }
+
+    public synchronized void accountsChanged() {
+        accountsDirty = true;
+        schedule();
+    }
+
+    private void schedule() {
+        if (!scheduled) {
+            scheduled = true;
+            handler.postDelayed(flushRunnable, Config.UI_UPDATE_INTERVAL);
+        }
+    }
+
+    private void flush() {
+        final boolean accounts;
+        final boolean conversations;
+        final Set<Conversation> changed;
+        synchronized (this) {
+            scheduled = false;
+            accounts = accountsDirty;
+            conversations = allConversationsDirty || !dirtyConversations.isEmpty();
+            changed = allConversationsDirty ? null : ImmutableSet.copyOf(dirtyConversations);
+            accountsDirty = false;
+            allConversationsDirty = false;
+            dirtyConversations.clear();
+        }
+        if (accounts) {
+            dispatcher.dispatchAccountUpdate();
+        }
+        if (conversations) {
+            dispatcher.dispatchConversationUpdate(changed);
+        }
+    }
+
+    interface Dispatcher {
+
+        /**
+         * @param conversations the conversations that changed or null if all of them might have
+         */
+        void dispatchConversationUpdate(@Nullable Set<Conversation> conversations);
+
+        void dispatchAccountUpdate();
+    }
+}
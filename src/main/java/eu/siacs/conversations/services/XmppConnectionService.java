@@ -60,7 +60,6 @@ import com.google.common.collect.Collections2;
 import com.google.common.collect.Iterables;
 
 import org.conscrypt.Conscrypt;
-import org.jxmpp.stringprep.libidn.LibIdnXmppStringprep;
 import org.openintents.openpgp.IOpenPgpService2;
 import org.openintents.openpgp.util.OpenPgpApi;
 import org.openintents.openpgp.util.OpenPgpServiceConnection;
@@ -73,6 +72,7 @@ import java.util.ArrayList;
 import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
+import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
 import java.util.Iterator;
@@ -153,6 +153,7 @@ import eu.siacs.conversations.utils.XmppUri;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.LocalizedContent;
 import eu.siacs.conversations.xml.Namespace;
+import eu.siacs.conversations.xmpp.AsciiXmppStringprep;
 import eu.siacs.conversations.xmpp.InvalidJid;
 import eu.siacs.conversations.xmpp.Jid;
 import eu.siacs.conversations.xmpp.OnBindListener;
@@ -200,10 +201,15 @@ public class XmppConnectionService extends Service {
     public static final String ACTION_QUICK_LOG = "eu.siacs.conversations.QUICK_LOG";
 
     private static final String SETTING_LAST_ACTIVITY_TS = "last_activity_timestamp";
+    // distinct caps versions in use by a large roster; results are a few hundred bytes each
+    private static final int DISCO_CACHE_SIZE = 256;
+    // a caps request whose response got lost (e.g. across a reconnect) no longer suppresses others
+    private static final long CAPS_REQUEST_EXPIRY = 60_000;
 
     public final CountDownLatch restoredFromDatabaseLatch = new CountDownLatch(1);
     private final static Executor FILE_OBSERVER_EXECUTOR = Executors.newSingleThreadExecutor();
     private final static Executor FILE_ATTACHMENT_EXECUTOR = Executors.newSingleThreadExecutor();
+    private final static ScheduledExecutorService DATABASE_FLUSH_SCHEDULER = Executors.newSingleThreadScheduledExecutor();
 
     private final ScheduledExecutorService internalPingExecutor = Executors.newSingleThreadScheduledExecutor();
     private final static SerialSingleThreadExecutor VIDEO_COMPRESSION_EXECUTOR = new SerialSingleThreadExecutor("VideoCompression");
@@ -308,6 +314,17 @@ public class XmppConnectionService extends Service {
     private final Set<OnConversationUpdate> mOnConversationUpdates = Collections.newSetFromMap(new WeakHashMap<OnConversationUpdate, Boolean>());
     private final Set<OnShowErrorToast> mOnShowErrorToasts = Collections.newSetFromMap(new WeakHashMap<OnShowErrorToast, Boolean>());
     private final Set<OnAccountUpdate> mOnAccountUpdates = Collections.newSetFromMap(new WeakHashMap<OnAccountUpdate, Boolean>());
+    private final UiUpdateCoalescer uiUpdateCoalescer = new UiUpdateCoalescer(new UiUpdateCoalescer.Dispatcher() {
+        @Override
+        public void dispatchConversationUpdate(@Nullable final Set<Conversation> conversations) {
+            XmppConnectionService.this.dispatchConversationUpdate(conversations);
+        }
+
+        @Override
+        public void dispatchAccountUpdate() {
+            XmppConnectionService.this.dispatchAccountUpdate();
+        }
+    });
     private final Set<OnCaptchaRequested> mOnCaptchaRequested = Collections.newSetFromMap(new WeakHashMap<OnCaptchaRequested, Boolean>());
     private final Set<OnRosterUpdate> mOnRosterUpdates = Collections.newSetFromMap(new WeakHashMap<OnRosterUpdate, Boolean>());
     private final Set<OnUpdateBlocklist> mOnUpdateBlocklist = Collections.newSetFromMap(new WeakHashMap<OnUpdateBlocklist, Boolean>());
@@ -323,7 +340,8 @@ public class XmppConnectionService extends Service {
 
 
     private final AtomicLong mLastExpiryRun = new AtomicLong(0);
-    private final LruCache<Pair<String, String>, ServiceDiscoveryResult> discoCache = new LruCache<>(20);
+    private final LruCache<Pair<String, String>, ServiceDiscoveryResult> discoCache = new LruCache<>(DISCO_CACHE_SIZE);
+    private final Map<String, Long> pendingCapsRequests = new HashMap<>();
     private final OnStatusChanged statusListener = new OnStatusChanged() {
 
         @Override
@@ -430,7 +448,7 @@ public class XmppConnectionService extends Service {
     private OpenPgpServiceConnection pgpServiceConnection;
     private PgpEngine mPgpEngine = null;
     private WakeLock wakeLock;
-    private LruCache<String, Bitmap> mBitmapCache;
+    private BitmapCache mBitmapCache;
     private final BroadcastReceiver mInternalEventReceiver = new InternalEventReceiver();
     private final BroadcastReceiver mInternalRestrictedEventReceiver = new RestrictedEventReceiver(Arrays.asList(TorServiceUtils.ACTION_STATUS));
     private final BroadcastReceiver mInternalScreenEventReceiver = new InternalEventReceiver();
@@ -838,7 +856,7 @@ public class XmppConnectionService extends Service {
         report.setStatus(Message.STATUS_RECEIVED);
         conversation.add(report);
         databaseBackend.createMessage(report);
-        updateConversationUi();
+        updateConversationUi(conversation);
     }
 
     private void manageAccountConnectionStatesInternal() {
@@ -1174,7 +1192,7 @@ public class XmppConnectionService extends Service {
     @SuppressLint("TrulyRandom")
     @Override
     public void onCreate() {
-        LibIdnXmppStringprep.setup();
+        AsciiXmppStringprep.setup();
         if (Compatibility.runsTwentySix()) {
             mNotificationService.initializeChannels();
         }
@@ -1189,14 +1207,7 @@ public class XmppConnectionService extends Service {
             Log.e(Config.LOGTAG, "unable to initialize security provider", throwable);
         }
         updateMemorizingTrustManager();
-        final int maxMemory = (int) (Runtime.getRuntime().maxMemory() / 1024);
-        final int cacheSize = maxMemory / 8;
-        this.mBitmapCache = new LruCache<String, Bitmap>(cacheSize) {
-            @Override
-            protected int sizeOf(final String key, final Bitmap bitmap) {
-                return bitmap.getByteCount() / 1024;
-            }
-        };
+        this.mBitmapCache = new BitmapCache(Runtime.getRuntime().maxMemory() / 8, getCacheDir());
         if (mLastActivity == 0) {
             mLastActivity = getPreferences().getLong(SETTING_LAST_ACTIVITY_TS, System.currentTimeMillis());
         }
@@ -1331,10 +1342,7 @@ public class XmppConnectionService extends Service {
     @Override
     public void onTrimMemory(int level) {
         super.onTrimMemory(level);
-        if (level >= TRIM_MEMORY_COMPLETE) {
-            Log.d(Config.LOGTAG, "clear cache due to low memory");
-            getBitmapCache().evictAll();
-        }
+        getBitmapCache().trimMemory(level);
     }
 
     @Override
@@ -1349,6 +1357,7 @@ public class XmppConnectionService extends Service {
         destroyed = false;
         fileObserver.stopWatching();
         internalPingExecutor.shutdown();
+        databaseBackend.flushPendingMessages();
         super.onDestroy();
     }
 
@@ -1481,8 +1490,13 @@ public class XmppConnectionService extends Service {
     }
 
     private void logoutAndSave(boolean stop) {
+        databaseBackend.flushPendingMessages();
         int activeAccounts = 0;
         for (final Account account : accounts) {
+            final AxolotlService axolotlService = account.getAxolotlService();
+            if (axolotlService != null) {
+                axolotlService.flushSessions();
+            }
             if (account.isConnectionEnabled()) {
                 databaseBackend.writeRoster(account.getRoster());
                 activeAccounts++;
@@ -1696,7 +1710,7 @@ public class XmppConnectionService extends Service {
                             if (!databaseBackend.updateMessage(message, message.getEditedId())) {
                                 Log.e(Config.LOGTAG, "error updated message in DB after edit");
                             }
-                            updateConversationUi();
+                            updateConversationUi(conversation);
                             return;
                         } else {
                             databaseBackend.createMessage(message);
@@ -1737,7 +1751,7 @@ public class XmppConnectionService extends Service {
                     Log.e(Config.LOGTAG, "error updated message in DB after edit");
                 }
             }
-            updateConversationUi();
+            updateConversationUi(conversation);
         }
         if (packet != null) {
             if (delay) {
@@ -2097,6 +2111,7 @@ public class XmppConnectionService extends Service {
                     Log.d(Config.LOGTAG, "deleting messages that are older than " + AbstractGenerator.getTimestamp(deletionDate));
                     databaseBackend.expireOldMessages(deletionDate);
                 }
+                preloadServiceDiscoveryResults();
                 Log.d(Config.LOGTAG, "restoring roster...");
                 for (final Account account : accounts) {
                     databaseBackend.readRoster(account.getRoster());
@@ -2254,7 +2269,8 @@ public class XmppConnectionService extends Service {
         }
     }
 
-    public void loadMoreMessages(final Conversation conversation, final long timestamp, final OnMoreMessagesLoaded callback) {
+    public void loadMoreMessages(final Conversation conversation, final Message oldest, final OnMoreMessagesLoaded callback) {
+        final long timestamp = oldest.getTimeSent();
         if (XmppConnectionService.this.getMessageArchiveService().queryInProgress(conversation, callback)) {
             return;
         } else if (timestamp == 0) {
@@ -2263,7 +2279,7 @@ public class XmppConnectionService extends Service {
         Log.d(Config.LOGTAG, "load more messages for " + conversation.getName() + " prior to " + MessageGenerator.getTimestamp(timestamp));
         final Runnable runnable = () -> {
             final Account account = conversation.getAccount();
-            List<Message> messages = databaseBackend.getMessages(conversation, 50, timestamp);
+            List<Message> messages = databaseBackend.getMessagesBefore(conversation, Config.PAGE_SIZE, timestamp, oldest.getUuid());
             if (messages.size() > 0) {
                 conversation.addAll(0, messages);
                 callback.onMoreMessagesLoaded(messages.size(), conversation);
@@ -2403,7 +2419,7 @@ public class XmppConnectionService extends Service {
             final Runnable runnable = () -> {
                 if (loadMessagesFromDb) {
                     c.addAll(0, databaseBackend.getMessages(c, Config.PAGE_SIZE));
-                    updateConversationUi();
+                    updateConversationUi(c);
                     c.messagesLoaded.set(true);
                 }
                 if (account.getXmppConnection() != null
@@ -3052,7 +3068,7 @@ public class XmppConnectionService extends Service {
                             account.inProgressConferenceJoins.remove(conversation);
                         }
                         mucOptions.setError(MucOptions.Error.NON_ANONYMOUS);
-                        updateConversationUi();
+                        updateConversationUi(conversation);
                         if (onConferenceJoined != null) {
                             onConferenceJoined.onConferenceJoined(conversation);
                         }
@@ -3128,21 +3144,21 @@ public class XmppConnectionService extends Service {
                             account.inProgressConferenceJoins.remove(conversation);
                         }
                         conversation.getMucOptions().setError(MucOptions.Error.SERVER_NOT_FOUND);
-                        updateConversationUi();
+                        updateConversationUi(conversation);
                     } else {
                         join(conversation);
                         fetchConferenceConfiguration(conversation);
                     }
                 }
             });
-            updateConversationUi();
+            updateConversationUi(conversation);
         } else {
             synchronized (account.pendingConferenceJoins) {
                 account.pendingConferenceJoins.add(conversation);
             }
             conversation.resetMucOptions();
             conversation.setHasMessagesLeftOnServer(false);
-            updateConversationUi();
+            updateConversationUi(conversation);
         }
     }
 
@@ -3201,7 +3217,7 @@ public class XmppConnectionService extends Service {
                     }
                     getAvatarService().clear(conversation);
                     updateMucRosterUi();
-                    updateConversationUi();
+                    updateConversationUi(conversation);
                 }
             }
         };
@@ -3545,7 +3561,7 @@ public class XmppConnectionService extends Service {
                 }
 
 
-                updateConversationUi();
+                updateConversationUi(conversation);
             } else if (response.getType() == Iq.Type.TIMEOUT) {
                 Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": received timeout waiting for conference configuration fetch");
             } else {
@@ -3713,18 +3729,30 @@ public class XmppConnectionService extends Service {
 
     public void updateMessage(Message message, boolean includeBody) {
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(message.getConversation());
     }
 
     public void createMessageAsync(final Message message) {
-        mDatabaseWriterExecutor.execute(() -> databaseBackend.createMessage(message));
+        final int pending = databaseBackend.createMessageDeferred(message);
+        if (pending == Config.MESSAGE_WRITE_BATCH_SIZE) {
+            flushPendingMessagesAsync();
+        } else if (pending == 1) {
+            DATABASE_FLUSH_SCHEDULER.schedule(
+                    this::flushPendingMessagesAsync,
+                    Config.MESSAGE_WRITE_DELAY,
+                    TimeUnit.MILLISECONDS);
+        }
+    }
+
+    private void flushPendingMessagesAsync() {
+        mDatabaseWriterExecutor.execute(databaseBackend::flushPendingMessages);
     }
 
     public void updateMessage(Message message, String uuid) {
         if (!databaseBackend.updateMessage(message, uuid)) {
             Log.e(Config.LOGTAG, "error updated message in DB after edit");
         }
-        updateConversationUi();
+        updateConversationUi(message.getConversation());
     }
 
     public void syncDirtyContacts(Account account) {
@@ -4096,7 +4124,7 @@ public class XmppConnectionService extends Service {
                                 if (user != null) {
                                     if (user.setAvatar(avatar)) {
                                         getAvatarService().clear(user);
-                                        updateConversationUi();
+                                        updateConversationUi(conversation);
                                         updateMucRosterUi();
                                     }
                                     if (user.getRealJid() != null) {
@@ -4322,7 +4350,7 @@ public class XmppConnectionService extends Service {
         message.setErrorMessage(errorMessage);
         message.setStatus(status);
         databaseBackend.updateMessage(message, includeBody);
-        updateConversationUi();
+        updateConversationUi(message.getConversation());
         if (oldStatus != status && status == Message.STATUS_SEND_FAILED) {
             mNotificationService.pushFailedDelivery(message);
         }
@@ -4396,8 +4424,24 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateConversationUi() {
-        for (OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
-            listener.onConversationUpdate();
+        uiUpdateCoalescer.allConversationsChanged();
+    }
+
+    public void updateConversationUi(final Conversational conversational) {
+        if (conversational instanceof Conversation conversation) {
+            uiUpdateCoalescer.conversationChanged(conversation);
+        } else {
+            uiUpdateCoalescer.allConversationsChanged();
+        }
+    }
+
+    private void dispatchConversationUpdate(@Nullable final Set<Conversation> conversations) {
+        for (final OnConversationUpdate listener : threadSafeList(this.mOnConversationUpdates)) {
+            if (conversations == null) {
+                listener.onConversationUpdate();
+            } else {
+                listener.onConversationUpdate(conversations);
+            }
         }
     }
 
@@ -4414,6 +4458,10 @@ public class XmppConnectionService extends Service {
     }
 
     public void updateAccountUi() {
+        uiUpdateCoalescer.accountsChanged();
+    }
+
+    private void dispatchAccountUpdate() {
         for (final OnAccountUpdate listener : threadSafeList(this.mOnAccountUpdates)) {
             listener.onAccountUpdate();
         }
@@ -4544,7 +4592,7 @@ public class XmppConnectionService extends Service {
         }
         final var account = conversation.getAccount();
         final var connection = account.getXmppConnection();
-        updateConversationUi();
+        updateConversationUi(conversation);
         final var last =
                 Iterables.getLast(
                         Collections2.filter(
@@ -4647,7 +4695,7 @@ public class XmppConnectionService extends Service {
         setMemorizingTrustManager(trustManager);
     }
 
-    public LruCache<String, Bitmap> getBitmapCache() {
+    public BitmapCache getBitmapCache() {
         return this.mBitmapCache;
     }
 
@@ -4946,6 +4994,22 @@ public class XmppConnectionService extends Service {
         });
     }
 
+    private void preloadServiceDiscoveryResults() {
+        final long start = SystemClock.elapsedRealtime();
+        final List<ServiceDiscoveryResult> results = databaseBackend.readDiscoveryResults(DISCO_CACHE_SIZE);
+        // read most recent first; put them in reverse so those are the last to be evicted
+        for (int i = results.size() - 1; i >= 0; --i) {
+            final ServiceDiscoveryResult result = results.get(i);
+            discoCache.put(new Pair<>(result.getHash(), result.getVer()), result);
+        }
+        Log.d(Config.LOGTAG, "preloaded " + results.size() + " service discovery results in " + (SystemClock.elapsedRealtime() - start) + "ms");
+    }
+
+    public void storeServiceDiscoveryResult(final ServiceDiscoveryResult result) {
+        databaseBackend.insertDiscoveryResult(result);
+        discoCache.put(new Pair<>(result.getHash(), result.getVer()), result);
+    }
+
     public ServiceDiscoveryResult getCachedServiceDiscoveryResult(Pair<String, String> key) {
         ServiceDiscoveryResult result = discoCache.get(key);
         if (result != null) {
@@ -4969,28 +5033,84 @@ public class XmppConnectionService extends Service {
                 syncRoster(account);
             }
         } else {
-            final Iq request = new Iq(Iq.Type.GET);
-            request.setTo(jid);
-            final String node = presence.getNode();
-            final String ver = presence.getVer();
-            final Element query = request.query(Namespace.DISCO_INFO);
-            if (node != null && ver != null) {
-                query.setAttribute("node", node + "#" + ver);
-            }
-            Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": making disco request for " + key.second + " to " + jid);
-            sendIqPacket(account, request, (response) -> {
-                if (response.getType() == Iq.Type.RESULT) {
-                    final ServiceDiscoveryResult discoveryResult = new ServiceDiscoveryResult(response);
-                    if (presence.getVer().equals(discoveryResult.getVer())) {
-                        databaseBackend.insertDiscoveryResult(discoveryResult);
-                        injectServiceDiscoveryResult(account.getRoster(), presence.getHash(), presence.getVer(), discoveryResult);
-                    } else {
-                        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": mismatch in caps for contact " + jid + " " + presence.getVer() + " vs " + discoveryResult.getVer());
-                    }
+            // the result is injected into every presence announcing the same caps once it arrives
+            final String pendingKey = account.getUuid() + "/" + key.first + "/" + key.second;
+            synchronized (pendingCapsRequests) {
+                final long now = SystemClock.elapsedRealtime();
+                final Long requested = pendingCapsRequests.get(pendingKey);
+                if (requested != null && now - requested < CAPS_REQUEST_EXPIRY) {
+                    return;
+                }
+                pendingCapsRequests.put(pendingKey, now);
+            }
+            fetchCaps(account, jid, presence, pendingKey, new HashSet<>());
+        }
+    }
+
+    private void fetchCaps(final Account account, final Jid jid, final Presence presence, final String pendingKey, final Set<Jid> asked) {
+        asked.add(jid);
+        final Iq request = new Iq(Iq.Type.GET);
+        request.setTo(jid);
+        final String node = presence.getNode();
+        final String ver = presence.getVer();
+        final Element query = request.query(Namespace.DISCO_INFO);
+        if (node != null && ver != null) {
+            query.setAttribute("node", node + "#" + ver);
+        }
+        Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": making disco request for " + ver + " to " + jid);
+        sendIqPacket(account, request, (response) -> {
+            final Pair<String, String> key = new Pair<>(presence.getHash(), presence.getVer());
+            final ServiceDiscoveryResult cached = getCachedServiceDiscoveryResult(key);
+            if (cached != null) {
+                // resolved in the meantime, for example by another account; no need to verify again
+                finishCapsRequest(pendingKey);
+                injectServiceDiscoveryResult(account.getRoster(), key.first, key.second, cached);
+            } else if (response.getType() == Iq.Type.RESULT) {
+                final ServiceDiscoveryResult discoveryResult = new ServiceDiscoveryResult(response);
+                if (presence.getVer().equals(discoveryResult.getVer())) {
+                    finishCapsRequest(pendingKey);
+                    storeServiceDiscoveryResult(discoveryResult);
+                    injectServiceDiscoveryResult(account.getRoster(), key.first, key.second, discoveryResult);
                 } else {
-                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to fetch caps from " + jid);
+                    Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": mismatch in caps for contact " + jid + " " + presence.getVer() + " vs " + discoveryResult.getVer());
+                    fetchCapsFromNextPresence(account, key, pendingKey, asked);
                 }
-            });
+            } else {
+                Log.d(Config.LOGTAG, account.getJid().asBareJid() + ": unable to fetch caps from " + jid);
+                fetchCapsFromNextPresence(account, key, pendingKey, asked);
+            }
+        });
+    }
+
+    /**
+     * Asks the next entity that announces the same caps after one answered with a wrong or no
+     * result, so that a single misbehaving contact does not keep that caps version unresolved for
+     * everyone else.
+     */
+    private void fetchCapsFromNextPresence(final Account account, final Pair<String, String> key, final String pendingKey, final Set<Jid> asked) {
+        for (final Contact contact : account.getRoster().getContacts()) {
+            for (final Map.Entry<String, Presence> entry : contact.getPresences().getPresencesMap().entrySet()) {
+                final Presence presence = entry.getValue();
+                if (!key.first.equals(presence.getHash()) || !key.second.equals(presence.getVer())) {
+                    continue;
+                }
+                final String resource = entry.getKey();
+                final Jid jid = resource.isEmpty() ? contact.getJid() : contact.getJid().withResource(resource);
+                if (!asked.contains(jid)) {
+                    synchronized (pendingCapsRequests) {
+                        pendingCapsRequests.put(pendingKey, SystemClock.elapsedRealtime());
+                    }
+                    fetchCaps(account, jid, presence, pendingKey, asked);
+                    return;
+                }
+            }
+        }
+        finishCapsRequest(pendingKey);
+    }
+
+    private void finishCapsRequest(final String pendingKey) {
+        synchronized (pendingCapsRequests) {
+            pendingCapsRequests.remove(pendingKey);
         }
     }
 
@@ -5124,7 +5244,7 @@ public class XmppConnectionService extends Service {
     }
 
     public void evictPreview(String uuid) {
-        if (mBitmapCache.remove(uuid) != null) {
+        if (mBitmapCache.getThumbnails().remove(uuid) != null) {
             Log.d(Config.LOGTAG, "deleted cached preview");
         }
     }
@@ -5167,6 +5287,14 @@ public class XmppConnectionService extends Service {
 
     public interface OnConversationUpdate {
         void onConversationUpdate();
+
+        /**
+         * Called instead of {@link #onConversationUpdate()} when only the given conversations
+         * have changed since the last update.
+         */
+        default void onConversationUpdate(final Set<Conversation> conversations) {
+            onConversationUpdate();
+        }
     }
 
     public interface OnJingleRtpConnectionUpdate {
@@ -270,16 +270,16 @@ public class ConversationFragment extends XmppFragment
                                 && conversation != null
                                 && conversation.messagesLoaded.compareAndSet(true, false)
                                 && messageList.size() > 0) {
-                            long timestamp;
+                            final Message oldest;
                             if (messageList.get(0).getType() == Message.TYPE_STATUS
                                     && messageList.size() >= 2) {
-                                timestamp = messageList.get(1).getTimeSent();
+                                oldest = messageList.get(1);
                             } else {
-                                timestamp = messageList.get(0).getTimeSent();
+                                oldest = messageList.get(0);
                             }
                             activity.xmppConnectionService.loadMoreMessages(
                                     conversation,
-                                    timestamp,
+                                    oldest,
                                     new XmppConnectionService.OnMoreMessagesLoaded() {
                                         @Override
                                         public void onMoreMessagesLoaded(
@@ -2807,6 +2807,13 @@ public class ConversationFragment extends XmppFragment
         this.refresh(true);
     }
 
+    @Override
+    void refresh(final Set<Conversation> changed) {
+        if (this.conversation == null || changed.contains(this.conversation)) {
+            refresh();
+        }
+    }
+
     private void refresh(boolean notifyConversationRead) {
         synchronized (this.messageList) {
             if (this.conversation != null) {
@@ -54,17 +54,21 @@ import android.widget.Toast;
 
 import androidx.annotation.IdRes;
 import androidx.annotation.NonNull;
+import androidx.annotation.Nullable;
 import androidx.appcompat.app.ActionBar;
 import androidx.appcompat.app.AlertDialog;
 import androidx.core.app.ActivityCompat;
 import androidx.databinding.DataBindingUtil;
 
 import com.google.android.material.dialog.MaterialAlertDialogBuilder;
+import com.google.common.collect.ImmutableSet;
 
 import org.openintents.openpgp.util.OpenPgpApi;
 
 import java.util.Arrays;
+import java.util.HashSet;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicBoolean;
 
 import eu.siacs.conversations.Config;
@@ -122,6 +126,8 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
     private ActivityConversationsBinding binding;
     private boolean mActivityPaused = true;
     private final AtomicBoolean mRedirectInProcess = new AtomicBoolean(false);
+    private final Set<Conversation> conversationsPendingRefresh = new HashSet<>();
+    private boolean fullRefreshPending = false;
 
     private static boolean isViewOrShareIntent(Intent i) {
         Log.d(Config.LOGTAG, "action: " + (i == null ? null : i.getAction()));
@@ -137,9 +143,25 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
 
     @Override
     protected void refreshUiReal() {
+        final Set<Conversation> changed;
+        synchronized (conversationsPendingRefresh) {
+            changed =
+                    fullRefreshPending || conversationsPendingRefresh.isEmpty()
+                            ? null
+                            : ImmutableSet.copyOf(conversationsPendingRefresh);
+            fullRefreshPending = false;
+            conversationsPendingRefresh.clear();
+        }
         invalidateOptionsMenu();
         for (@IdRes int id : FRAGMENT_ID_NOTIFICATION_ORDER) {
-            refreshFragment(id);
+            refreshFragment(id, changed);
+        }
+    }
+
+    @Override
+    protected void onFullRefreshRequested() {
+        synchronized (conversationsPendingRefresh) {
+            fullRefreshPending = true;
         }
     }
 
@@ -264,10 +286,14 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
         }
     }
 
-    private void refreshFragment(@IdRes int id) {
+    private void refreshFragment(@IdRes int id, @Nullable final Set<Conversation> changed) {
         final Fragment fragment = getFragmentManager().findFragmentById(id);
         if (fragment instanceof XmppFragment xmppFragment) {
-            xmppFragment.refresh();
+            if (changed == null) {
+                xmppFragment.refresh();
+            } else {
+                xmppFragment.refresh(changed);
+            }
         }
     }
 
@@ -290,6 +316,7 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
             if (grantResults[0] == PackageManager.PERMISSION_GRANTED) {
                 switch (requestCode) {
                     case REQUEST_OPEN_MESSAGE:
+                        onFullRefreshRequested();
                         refreshUiReal();
                         ConversationFragment.openPendingMessage(this);
                         break;
@@ -465,7 +492,7 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
         }
         conversationFragment.reInit(conversation, extras == null ? new Bundle() : extras);
         if (mainNeedsRefresh) {
-            refreshFragment(R.id.main_fragment);
+            refreshFragment(R.id.main_fragment, null);
         }
         invalidateActionBarTitle();
     }
@@ -725,6 +752,17 @@ public class ConversationsActivity extends XmppActivity implements OnConversatio
         this.refreshUi();
     }
 
+    @Override
+    public void onConversationUpdate(final Set<Conversation> conversations) {
+        if (performRedirectIfNecessary(false)) {
+            return;
+        }
+        synchronized (conversationsPendingRefresh) {
+            conversationsPendingRefresh.addAll(conversations);
+        }
+        this.scheduleRefreshUi();
+    }
+
     @Override
     public void onRosterUpdate() {
         this.refreshUi();
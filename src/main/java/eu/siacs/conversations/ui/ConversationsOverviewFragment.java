@@ -58,6 +58,7 @@ import com.google.common.collect.Collections2;
 
 import java.util.ArrayList;
 import java.util.List;
+import java.util.Set;
 import java.util.concurrent.atomic.AtomicReference;
 
 import eu.siacs.conversations.BuildConfig;
@@ -417,6 +418,26 @@ public class ConversationsOverviewFragment extends XmppFragment {
 		}
 	}
 
+	@Override
+	void refresh(final Set<Conversation> changed) {
+		if (this.binding == null || this.activity == null || this.swipedConversation.peek() != null) {
+			refresh();
+			return;
+		}
+		final List<Conversation> ordered = new ArrayList<>();
+		this.activity.xmppConnectionService.populateWithOrderedConversations(ordered);
+		if (!ordered.equals(this.conversations)) {
+			refresh();
+			return;
+		}
+		// same conversations in the same order; only rebind the rows that changed
+		for (int i = 0; i < this.conversations.size(); ++i) {
+			if (changed.contains(this.conversations.get(i))) {
+				this.conversationsAdapter.notifyItemChanged(i);
+			}
+		}
+	}
+
 	private void setScrollPosition(ScrollState scrollPosition) {
 		if (scrollPosition != null) {
 			LinearLayoutManager layoutManager = (LinearLayoutManager) binding.list.getLayoutManager();
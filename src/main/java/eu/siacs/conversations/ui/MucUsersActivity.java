@@ -17,8 +17,8 @@ import androidx.annotation.NonNull;
 import androidx.databinding.DataBindingUtil;
 
 import com.google.common.collect.Collections2;
+import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
-import com.google.common.collect.Ordering;
 
 import java.util.ArrayList;
 import java.util.Collections;
@@ -60,34 +60,33 @@ public class MucUsersActivity extends XmppActivity implements XmppConnectionServ
 
     private void loadAndSubmitUsers() {
         if (mConversation != null) {
-            allUsers = mConversation.getMucOptions().getUsers();
+            allUsers = mConversation.getMucOptions().getUsersSorted();
             submitFilteredList(mSearchEditText != null ? mSearchEditText.getText().toString() : null);
         }
     }
 
     private void submitFilteredList(final String search) {
         if (TextUtils.isEmpty(search)) {
-            userAdapter.submitList(Ordering.natural().immutableSortedCopy(allUsers));
+            userAdapter.submitList(ImmutableList.copyOf(allUsers));
         } else {
             final String needle = search.toLowerCase(Locale.getDefault());
             userAdapter.submitList(
-                    Ordering.natural()
-                            .immutableSortedCopy(
-                                    Collections2.filter(
-                                            this.allUsers,
-                                            user -> {
-                                                final String name = user.getName();
-                                                final Contact contact = user.getContact();
-                                                return name != null
-                                                                && name.toLowerCase(
-                                                                                Locale.getDefault())
-                                                                        .contains(needle)
-                                                        || contact != null
-                                                                && contact.getDisplayName()
-                                                                        .toLowerCase(
-                                                                                Locale.getDefault())
-                                                                        .contains(needle);
-                                            })));
+                    ImmutableList.copyOf(
+                            Collections2.filter(
+                                    this.allUsers,
+                                    user -> {
+                                        final String name = user.getName();
+                                        final Contact contact = user.getContact();
+                                        return name != null
+                                                        && name.toLowerCase(
+                                                                        Locale.getDefault())
+                                                                .contains(needle)
+                                                || contact != null
+                                                        && contact.getDisplayName()
+                                                                .toLowerCase(
+                                                                        Locale.getDefault())
+                                                                .contains(needle);
+                                    })));
         }
     }
 
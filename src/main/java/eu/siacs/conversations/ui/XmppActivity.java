@@ -195,6 +195,15 @@ public abstract class XmppActivity extends ActionBarActivity {
     }
 
     protected final void refreshUi() {
+        onFullRefreshRequested();
+        scheduleRefreshUi();
+    }
+
+    /**
+     * Schedules {@link #refreshUiReal()} like {@link #refreshUi()} does but leaves it to the
+     * activity to decide how much of it needs to be refreshed.
+     */
+    protected final void scheduleRefreshUi() {
         final long diff = SystemClock.elapsedRealtime() - mLastUiRefresh;
         if (diff > Config.REFRESH_UI_INTERVAL) {
             mRefreshUiHandler.removeCallbacks(mRefreshUiRunnable);
@@ -206,6 +215,10 @@ public abstract class XmppActivity extends ActionBarActivity {
         }
     }
 
+    /** Called whenever {@link #refreshUi()} asks for everything to be refreshed. */
+    protected void onFullRefreshRequested() {
+    }
+
     abstract protected void refreshUiReal();
 
     @Override
@@ -32,12 +32,23 @@ package eu.siacs.conversations.ui;
 import android.app.Activity;
 import android.app.Fragment;
 
+import java.util.Set;
+
+import eu.siacs.conversations.entities.Conversation;
 import eu.siacs.conversations.ui.interfaces.OnBackendConnected;
 
 public abstract class XmppFragment extends Fragment implements OnBackendConnected {
 
 	abstract void refresh();
 
+	/**
+	 * Refresh after only the given conversations have changed. Fragments that can update
+	 * themselves incrementally override this; by default it falls back to {@link #refresh()}.
+	 */
+	void refresh(final Set<Conversation> changed) {
+		refresh();
+	}
+
 	protected void runOnUiThread(Runnable runnable) {
 		final Activity activity = getActivity();
 		if (activity != null) {
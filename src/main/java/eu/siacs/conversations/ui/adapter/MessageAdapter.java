@@ -41,7 +41,6 @@ import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
 
 import eu.siacs.conversations.AppSettings;
-import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
 import eu.siacs.conversations.crypto.axolotl.FingerprintStatus;
 import eu.siacs.conversations.entities.Account;
@@ -54,18 +53,13 @@ import eu.siacs.conversations.entities.RtpSessionStatus;
 import eu.siacs.conversations.entities.Transferable;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.services.MessageArchiveService;
-import eu.siacs.conversations.services.NotificationService;
 import eu.siacs.conversations.ui.Activities;
 import eu.siacs.conversations.ui.ConversationFragment;
 import eu.siacs.conversations.ui.ConversationsActivity;
 import eu.siacs.conversations.ui.XmppActivity;
 import eu.siacs.conversations.ui.service.AudioPlayer;
-import eu.siacs.conversations.ui.text.DividerSpan;
-import eu.siacs.conversations.ui.text.QuoteSpan;
 import eu.siacs.conversations.ui.util.Attachment;
 import eu.siacs.conversations.ui.util.AvatarWorkerTask;
-import eu.siacs.conversations.ui.util.MyLinkify;
-import eu.siacs.conversations.ui.util.QuoteHelper;
 import eu.siacs.conversations.ui.util.ViewUtil;
 import eu.siacs.conversations.ui.widget.ClickableMovementMethod;
 import eu.siacs.conversations.utils.CryptoHelper;
@@ -81,10 +75,10 @@ import eu.siacs.conversations.xmpp.mam.MamReference;
 import java.net.URI;
 import java.util.Arrays;
 import java.util.Collection;
+import java.util.EnumMap;
 import java.util.List;
 import java.util.Locale;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
+import java.util.Map;
 
 public class MessageAdapter extends ArrayAdapter<Message> {
 
@@ -94,6 +88,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private static final int STATUS = 2;
     private static final int DATE_SEPARATOR = 3;
     private static final int RTP_SESSION = 4;
+    private static final int PREFETCH_DISTANCE = 8;
     private final XmppActivity activity;
     private final AudioPlayer audioPlayer;
     private List<String> highlightedTerm = null;
@@ -102,6 +97,9 @@ public class MessageAdapter extends ArrayAdapter<Message> {
     private OnContactPictureLongClicked mOnContactPictureLongClickedListener;
     private BubbleDesign bubbleDesign = new BubbleDesign(false, false);
     private final boolean mForceNames;
+    private final MessageBodyRenderer bodyRenderer;
+    private final Map<BubbleColor, MessageBodyRenderer.Style> renderStyles =
+            new EnumMap<>(BubbleColor.class);
 
     public MessageAdapter(
             final XmppActivity activity, final List<Message> messages, final boolean forceNames) {
@@ -109,6 +107,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         this.audioPlayer = new AudioPlayer(this);
         this.activity = activity;
         metrics = getContext().getResources().getDisplayMetrics();
+        this.bodyRenderer = new MessageBodyRenderer(activity);
         updatePreferences();
         this.mForceNames = forceNames;
     }
@@ -378,88 +377,6 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         viewHolder.messageBody.setText(span);
     }
 
-    private void applyQuoteSpan(
-            final TextView textView,
-            SpannableStringBuilder body,
-            int start,
-            int end,
-            final BubbleColor bubbleColor) {
-        if (start > 1 && !"\n\n".equals(body.subSequence(start - 2, start).toString())) {
-            body.insert(start++, "\n");
-            body.setSpan(
-                    new DividerSpan(false), start - 2, start, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            end++;
-        }
-        if (end < body.length() - 1 && !"\n\n".equals(body.subSequence(end, end + 2).toString())) {
-            body.insert(end, "\n");
-            body.setSpan(new DividerSpan(false), end, end + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-        }
-        final DisplayMetrics metrics = getContext().getResources().getDisplayMetrics();
-        body.setSpan(
-                new QuoteSpan(bubbleToOnSurfaceVariant(textView, bubbleColor), metrics),
-                start,
-                end,
-                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-    }
-
-    /**
-     * Applies QuoteSpan to group of lines which starts with > or » characters. Appends likebreaks
-     * and applies DividerSpan to them to show a padding between quote and text.
-     */
-    private boolean handleTextQuotes(
-            final TextView textView,
-            final SpannableStringBuilder body,
-            final BubbleColor bubbleColor) {
-        boolean startsWithQuote = false;
-        int quoteDepth = 1;
-        while (QuoteHelper.bodyContainsQuoteStart(body) && quoteDepth <= Config.QUOTE_MAX_DEPTH) {
-            char previous = '\n';
-            int lineStart = -1;
-            int lineTextStart = -1;
-            int quoteStart = -1;
-            for (int i = 0; i <= body.length(); i++) {
-                char current = body.length() > i ? body.charAt(i) : '\n';
-                if (lineStart == -1) {
-                    if (previous == '\n') {
-                        if (i < body.length() && QuoteHelper.isPositionQuoteStart(body, i)) {
-                            // Line start with quote
-                            lineStart = i;
-                            if (quoteStart == -1) quoteStart = i;
-                            if (i == 0) startsWithQuote = true;
-                        } else if (quoteStart >= 0) {
-                            // Line start without quote, apply spans there
-                            applyQuoteSpan(textView, body, quoteStart, i - 1, bubbleColor);
-                            quoteStart = -1;
-                        }
-                    }
-                } else {
-                    // Remove extra spaces between > and first character in the line
-                    // > character will be removed too
-                    if (current != ' ' && lineTextStart == -1) {
-                        lineTextStart = i;
-                    }
-                    if (current == '\n') {
-                        body.delete(lineStart, lineTextStart);
-                        i -= lineTextStart - lineStart;
-                        if (i == lineStart) {
-                            // Avoid empty lines because span over empty line can be hidden
-                            body.insert(i++, " ");
-                        }
-                        lineStart = -1;
-                        lineTextStart = -1;
-                    }
-                }
-                previous = current;
-            }
-            if (quoteStart >= 0) {
-                // Apply spans to finishing open quote
-                applyQuoteSpan(textView, body, quoteStart, body.length(), bubbleColor);
-            }
-            quoteDepth++;
-        }
-        return startsWithQuote;
-    }
-
     private void displayTextMessage(
             final ViewHolder viewHolder, final Message message, final BubbleColor bubbleColor) {
         viewHolder.download_button.setVisibility(View.GONE);
@@ -471,105 +388,20 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         viewHolder.messageBody.setTypeface(null, Typeface.NORMAL);
 
         if (message.getBody() != null) {
-            final String nick = UIHelper.getMessageDisplayName(message);
-            SpannableStringBuilder body = message.getMergedBody();
-            boolean hasMeCommand = message.hasMeCommand();
-            if (hasMeCommand) {
-                body = body.replace(0, Message.ME_COMMAND.length(), nick + " ");
-            }
-            if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
-                body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
-                body.append("\u2026");
-            }
-            Message.MergeSeparator[] mergeSeparators =
-                    body.getSpans(0, body.length(), Message.MergeSeparator.class);
-            for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
-                int start = body.getSpanStart(mergeSeparator);
-                int end = body.getSpanEnd(mergeSeparator);
-                body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-            }
-            boolean startsWithQuote = handleTextQuotes(viewHolder.messageBody, body, bubbleColor);
-            if (!message.isPrivateMessage()) {
-                if (hasMeCommand) {
-                    body.setSpan(
-                            new StyleSpan(Typeface.BOLD_ITALIC),
-                            0,
-                            nick.length(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            } else {
-                String privateMarker;
-                if (message.getStatus() <= Message.STATUS_RECEIVED) {
-                    privateMarker = activity.getString(R.string.private_message);
-                } else {
-                    Jid cp = message.getCounterpart();
-                    privateMarker =
-                            activity.getString(
-                                    R.string.private_message_to,
-                                    Strings.nullToEmpty(cp == null ? null : cp.getResource()));
-                }
-                body.insert(0, privateMarker);
-                int privateMarkerIndex = privateMarker.length();
-                if (startsWithQuote) {
-                    body.insert(privateMarkerIndex, "\n\n");
-                    body.setSpan(
-                            new DividerSpan(false),
-                            privateMarkerIndex,
-                            privateMarkerIndex + 2,
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                } else {
-                    body.insert(privateMarkerIndex, " ");
-                }
-                body.setSpan(
-                        new ForegroundColorSpan(
-                                bubbleToOnSurfaceVariant(viewHolder.messageBody, bubbleColor)),
-                        0,
-                        privateMarkerIndex,
-                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                body.setSpan(
-                        new StyleSpan(Typeface.BOLD),
-                        0,
-                        privateMarkerIndex,
-                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                if (hasMeCommand) {
-                    body.setSpan(
-                            new StyleSpan(Typeface.BOLD_ITALIC),
-                            privateMarkerIndex + 1,
-                            privateMarkerIndex + 1 + nick.length(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            }
-            if (message.getConversation().getMode() == Conversation.MODE_MULTI
-                    && message.getStatus() == Message.STATUS_RECEIVED) {
-                if (message.getConversation() instanceof Conversation conversation) {
-                    Pattern pattern =
-                            NotificationService.generateNickHighlightPattern(
-                                    conversation.getMucOptions().getActualNick());
-                    Matcher matcher = pattern.matcher(body);
-                    while (matcher.find()) {
-                        body.setSpan(
-                                new StyleSpan(Typeface.BOLD),
-                                matcher.start(),
-                                matcher.end(),
-                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                    }
-                }
-            }
-            Matcher matcher = Emoticons.getEmojiPattern(body).matcher(body);
-            while (matcher.find()) {
-                if (matcher.start() < matcher.end()) {
-                    body.setSpan(
-                            new RelativeSizeSpan(1.2f),
-                            matcher.start(),
-                            matcher.end(),
-                            Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
-                }
-            }
-
-            StylingHelper.format(body, viewHolder.messageBody.getCurrentTextColor());
-            MyLinkify.addLinks(body, true);
+            final MessageBodyRenderer.Style style =
+                    new MessageBodyRenderer.Style(
+                            viewHolder.messageBody.getCurrentTextColor(),
+                            bubbleToOnSurfaceVariant(viewHolder.messageBody, bubbleColor),
+                            this.bubbleDesign.largeFont);
+            this.renderStyles.put(bubbleColor, style);
+            final Spannable rendered = bodyRenderer.get(message, style);
+            final Spannable body;
             if (highlightedTerm != null) {
-                StylingHelper.highlight(viewHolder.messageBody, body, highlightedTerm);
+                final SpannableStringBuilder highlighted = new SpannableStringBuilder(rendered);
+                StylingHelper.highlight(viewHolder.messageBody, highlighted, highlightedTerm);
+                body = highlighted;
+            } else {
+                body = rendered;
             }
             viewHolder.messageBody.setAutoLinkMask(0);
             viewHolder.messageBody.setText(body);
@@ -804,16 +636,7 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         }
 
         final boolean colorfulBackground = this.bubbleDesign.colorfulChatBubbles;
-        final BubbleColor bubbleColor;
-        if (type == RECEIVED) {
-            if (isInValidSession) {
-                bubbleColor = colorfulBackground ? BubbleColor.SECONDARY : BubbleColor.SURFACE;
-            } else {
-                bubbleColor = BubbleColor.WARNING;
-            }
-        } else {
-            bubbleColor = colorfulBackground ? BubbleColor.TERTIARY : BubbleColor.SURFACE_HIGH;
-        }
+        final BubbleColor bubbleColor = getBubbleColor(type, isInValidSession);
 
         if (type == DATE_SEPARATOR) {
             if (UIHelper.today(message.getTimeSent())) {
@@ -943,82 +766,60 @@ public class MessageAdapter extends ArrayAdapter<Message> {
                     }
                 });
 
-        final Transferable transferable = message.getTransferable();
-        final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
-        if (unInitiatedButKnownSize
-                || message.isDeleted()
-                || (transferable != null
-                        && transferable.getStatus() != Transferable.STATUS_UPLOADING)) {
-            if (unInitiatedButKnownSize
-                    || transferable != null
-                            && transferable.getStatus() == Transferable.STATUS_OFFER) {
-                displayDownloadableMessage(
-                        viewHolder,
-                        message,
-                        activity.getString(
-                                R.string.download_x_file,
-                                UIHelper.getFileDescriptionString(activity, message)),
-                        bubbleColor);
-            } else if (transferable != null
-                    && transferable.getStatus() == Transferable.STATUS_OFFER_CHECK_FILESIZE) {
-                displayDownloadableMessage(
-                        viewHolder,
-                        message,
-                        activity.getString(
-                                R.string.check_x_filesize,
-                                UIHelper.getFileDescriptionString(activity, message)),
-                        bubbleColor);
-            } else {
-                displayInfoMessage(
-                        viewHolder,
-                        UIHelper.getMessagePreview(activity, message).first,
-                        bubbleColor);
-            }
-        } else if (message.isFileOrImage()
-                && message.getEncryption() != Message.ENCRYPTION_PGP
-                && message.getEncryption() != Message.ENCRYPTION_DECRYPTION_FAILED) {
-            if (message.getFileParams().width > 0 && message.getFileParams().height > 0) {
-                displayMediaPreviewMessage(viewHolder, message, bubbleColor);
-            } else if (message.getFileParams().runtime > 0) {
-                displayAudioMessage(viewHolder, message, bubbleColor);
-            } else {
-                displayOpenableMessage(viewHolder, message, bubbleColor);
-            }
-        } else if (message.getEncryption() == Message.ENCRYPTION_PGP) {
-            if (account.isPgpDecryptionServiceConnected()) {
-                if (conversation instanceof Conversation
-                        && !account.hasPendingPgpIntent((Conversation) conversation)) {
+        switch (getContent(message)) {
+            case DOWNLOAD_OFFER -> displayDownloadableMessage(
+                    viewHolder,
+                    message,
+                    activity.getString(
+                            R.string.download_x_file,
+                            UIHelper.getFileDescriptionString(activity, message)),
+                    bubbleColor);
+            case FILE_SIZE_CHECK -> displayDownloadableMessage(
+                    viewHolder,
+                    message,
+                    activity.getString(
+                            R.string.check_x_filesize,
+                            UIHelper.getFileDescriptionString(activity, message)),
+                    bubbleColor);
+            case TRANSFER_STATUS -> displayInfoMessage(
+                    viewHolder,
+                    UIHelper.getMessagePreview(activity, message).first,
+                    bubbleColor);
+            case MEDIA_PREVIEW -> displayMediaPreviewMessage(viewHolder, message, bubbleColor);
+            case AUDIO -> displayAudioMessage(viewHolder, message, bubbleColor);
+            case OPENABLE -> displayOpenableMessage(viewHolder, message, bubbleColor);
+            case PGP -> {
+                if (account.isPgpDecryptionServiceConnected()) {
+                    if (conversation instanceof Conversation
+                            && !account.hasPendingPgpIntent((Conversation) conversation)) {
+                        displayInfoMessage(
+                                viewHolder,
+                                activity.getString(R.string.message_decrypting),
+                                bubbleColor);
+                    } else {
+                        displayInfoMessage(
+                                viewHolder, activity.getString(R.string.pgp_message), bubbleColor);
+                    }
+                } else {
                     displayInfoMessage(
                             viewHolder,
-                            activity.getString(R.string.message_decrypting),
+                            activity.getString(R.string.install_openkeychain),
                             bubbleColor);
-                } else {
-                    displayInfoMessage(
-                            viewHolder, activity.getString(R.string.pgp_message), bubbleColor);
+                    viewHolder.message_box.setOnClickListener(this::promptOpenKeychainInstall);
+                    viewHolder.messageBody.setOnClickListener(this::promptOpenKeychainInstall);
                 }
-            } else {
-                displayInfoMessage(
-                        viewHolder, activity.getString(R.string.install_openkeychain), bubbleColor);
-                viewHolder.message_box.setOnClickListener(this::promptOpenKeychainInstall);
-                viewHolder.messageBody.setOnClickListener(this::promptOpenKeychainInstall);
             }
-        } else if (message.getEncryption() == Message.ENCRYPTION_DECRYPTION_FAILED) {
-            displayInfoMessage(
+            case DECRYPTION_FAILED -> displayInfoMessage(
                     viewHolder, activity.getString(R.string.decryption_failed), bubbleColor);
-        } else if (message.getEncryption() == Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE) {
-            displayInfoMessage(
+            case NOT_ENCRYPTED_FOR_THIS_DEVICE -> displayInfoMessage(
                     viewHolder,
                     activity.getString(R.string.not_encrypted_for_this_device),
                     bubbleColor);
-        } else if (message.getEncryption() == Message.ENCRYPTION_AXOLOTL_FAILED) {
-            displayInfoMessage(
+            case OMEMO_DECRYPTION_FAILED -> displayInfoMessage(
                     viewHolder, activity.getString(R.string.omemo_decryption_failed), bubbleColor);
-        } else {
-            if (message.isGeoUri()) {
-                displayLocationMessage(viewHolder, message, bubbleColor);
-            } else if (message.bodyIsOnlyEmojis() && message.getType() != Message.TYPE_PRIVATE) {
-                displayEmojiMessage(viewHolder, message.getBody().trim(), bubbleColor);
-            } else if (message.treatAsDownloadable()) {
+            case LOCATION -> displayLocationMessage(viewHolder, message, bubbleColor);
+            case EMOJI -> displayEmojiMessage(viewHolder, message.getBody().trim(), bubbleColor);
+            case LINK_TO_FILE -> {
                 try {
                     final URI uri = new URI(message.getBody());
                     displayDownloadableMessage(
@@ -1038,9 +839,8 @@ public class MessageAdapter extends ArrayAdapter<Message> {
                                     UIHelper.getFileDescriptionString(activity, message)),
                             bubbleColor);
                 }
-            } else {
-                displayTextMessage(viewHolder, message, bubbleColor);
             }
+            case TEXT -> displayTextMessage(viewHolder, message, bubbleColor);
         }
 
         setBackgroundTint(viewHolder.message_box, bubbleColor);
@@ -1063,9 +863,105 @@ public class MessageAdapter extends ArrayAdapter<Message> {
 
         displayStatus(viewHolder, message, type, bubbleColor);
 
+        prefetchBodies(position);
+
         return view;
     }
 
+    private BubbleColor getBubbleColor(final int type, final boolean isInValidSession) {
+        final boolean colorfulBackground = this.bubbleDesign.colorfulChatBubbles;
+        if (type == RECEIVED) {
+            if (isInValidSession) {
+                return colorfulBackground ? BubbleColor.SECONDARY : BubbleColor.SURFACE;
+            } else {
+                return BubbleColor.WARNING;
+            }
+        } else {
+            return colorfulBackground ? BubbleColor.TERTIARY : BubbleColor.SURFACE_HIGH;
+        }
+    }
+
+    /**
+     * Renders the bodies of the text messages around the given position in the background so they
+     * are ready by the time they are scrolled into view.
+     */
+    private void prefetchBodies(final int position) {
+        final int end = Math.min(getCount(), position + PREFETCH_DISTANCE + 1);
+        for (int i = Math.max(0, position - PREFETCH_DISTANCE); i < end; ++i) {
+            final Message message = getItem(i);
+            if (i == position || message == null || !isDisplayedAsText(message)) {
+                continue;
+            }
+            final boolean isInValidSession =
+                    message.isValidInSession()
+                            && (message.getEncryption() != Message.ENCRYPTION_AXOLOTL
+                                    || message.isTrusted());
+            final MessageBodyRenderer.Style style =
+                    renderStyles.get(getBubbleColor(getItemViewType(message), isInValidSession));
+            // styles are only known once a bubble of that color has been displayed
+            if (style != null) {
+                bodyRenderer.prefetch(message, style);
+            }
+        }
+    }
+
+    /**
+     * @return true if getView() will end up in displayTextMessage() for this message
+     */
+    private boolean isDisplayedAsText(final Message message) {
+        final int type = getItemViewType(message);
+        return (type == SENT || type == RECEIVED)
+                && message.getBody() != null
+                && getContent(message) == Content.TEXT;
+    }
+
+    /** Decides how getView() displays the content of a sent or received message. */
+    private static Content getContent(final Message message) {
+        final Transferable transferable = message.getTransferable();
+        final boolean unInitiatedButKnownSize = MessageUtils.unInitiatedButKnownSize(message);
+        if (unInitiatedButKnownSize
+                || message.isDeleted()
+                || (transferable != null
+                        && transferable.getStatus() != Transferable.STATUS_UPLOADING)) {
+            if (unInitiatedButKnownSize
+                    || transferable != null
+                            && transferable.getStatus() == Transferable.STATUS_OFFER) {
+                return Content.DOWNLOAD_OFFER;
+            } else if (transferable != null
+                    && transferable.getStatus() == Transferable.STATUS_OFFER_CHECK_FILESIZE) {
+                return Content.FILE_SIZE_CHECK;
+            } else {
+                return Content.TRANSFER_STATUS;
+            }
+        } else if (message.isFileOrImage()
+                && message.getEncryption() != Message.ENCRYPTION_PGP
+                && message.getEncryption() != Message.ENCRYPTION_DECRYPTION_FAILED) {
+            if (message.getFileParams().width > 0 && message.getFileParams().height > 0) {
+                return Content.MEDIA_PREVIEW;
+            } else if (message.getFileParams().runtime > 0) {
+                return Content.AUDIO;
+            } else {
+                return Content.OPENABLE;
+            }
+        } else if (message.getEncryption() == Message.ENCRYPTION_PGP) {
+            return Content.PGP;
+        } else if (message.getEncryption() == Message.ENCRYPTION_DECRYPTION_FAILED) {
+            return Content.DECRYPTION_FAILED;
+        } else if (message.getEncryption() == Message.ENCRYPTION_AXOLOTL_NOT_FOR_THIS_DEVICE) {
+            return Content.NOT_ENCRYPTED_FOR_THIS_DEVICE;
+        } else if (message.getEncryption() == Message.ENCRYPTION_AXOLOTL_FAILED) {
+            return Content.OMEMO_DECRYPTION_FAILED;
+        } else if (message.isGeoUri()) {
+            return Content.LOCATION;
+        } else if (message.bodyIsOnlyEmojis() && message.getType() != Message.TYPE_PRIVATE) {
+            return Content.EMOJI;
+        } else if (message.treatAsDownloadable()) {
+            return Content.LINK_TO_FILE;
+        } else {
+            return Content.TEXT;
+        }
+    }
+
     private void promptOpenKeychainInstall(View view) {
         activity.showInstallPgpDialog();
     }
@@ -1121,6 +1017,9 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         final AppSettings appSettings = new AppSettings(activity);
         this.bubbleDesign =
                 new BubbleDesign(appSettings.isColorfulChatBubbles(), appSettings.isLargeFont());
+        // colors and font size might have changed
+        this.renderStyles.clear();
+        this.bodyRenderer.invalidate();
     }
 
     public void setHighlightedTerm(List<String> terms) {
@@ -1223,6 +1122,23 @@ public class MessageAdapter extends ArrayAdapter<Message> {
         };
     }
 
+    private enum Content {
+        DOWNLOAD_OFFER,
+        FILE_SIZE_CHECK,
+        TRANSFER_STATUS,
+        MEDIA_PREVIEW,
+        AUDIO,
+        OPENABLE,
+        PGP,
+        DECRYPTION_FAILED,
+        NOT_ENCRYPTED_FOR_THIS_DEVICE,
+        OMEMO_DECRYPTION_FAILED,
+        LOCATION,
+        EMOJI,
+        LINK_TO_FILE,
+        TEXT
+    }
+
     public enum BubbleColor {
         SURFACE,
         SURFACE_HIGH,
@@ -0,0 +1,392 @@
+package eu.siacs.conversations.ui.adapter;
+
+import android.content.Context;
+import android.graphics.Typeface;
+import android.text.Spannable;
+import android.text.SpannableStringBuilder;
+import android.text.style.ForegroundColorSpan;
+import android.text.style.RelativeSizeSpan;
+import android.text.style.StyleSpan;
+import android.util.DisplayMetrics;
+import android.util.LruCache;
+
+import androidx.annotation.ColorInt;
+
+import com.google.common.base.Objects;
+import com.google.common.base.Strings;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.R;
+import eu.siacs.conversations.entities.Conversation;
+import eu.siacs.conversations.entities.Message;
+import eu.siacs.conversations.services.NotificationService;
+import eu.siacs.conversations.ui.text.DividerSpan;
+import eu.siacs.conversations.ui.text.QuoteSpan;
+import eu.siacs.conversations.ui.util.MyLinkify;
+import eu.siacs.conversations.ui.util.QuoteHelper;
+import eu.siacs.conversations.utils.Emoticons;
+import eu.siacs.conversations.utils.StylingHelper;
+import eu.siacs.conversations.utils.UIHelper;
+import eu.siacs.conversations.xmpp.Jid;
+
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns the body of a text message into the styled text that is displayed in the message bubble
+ * (quotes, merge dividers, private message markers, nick highlights, enlarged emojis, IM styling
+ * and links) and caches the result by message uuid and edit version.
+ *
+ * <p>Everything the rendering depends on is captured in a {@link Source} on the UI thread, which
+ * allows bodies of messages that are about to be scrolled into view to be rendered on a
+ * background thread. A cached body is only used if it has been rendered from an identical source
+ * with an identical {@link Style}; anything else, for example a merged follow up message or a
+ * changed theme, causes it to be rendered again.
+ */
+final class MessageBodyRenderer {
+
+    // counted in chars of the rendered bodies
+    private static final int MAX_CACHE_SIZE = 512 * 1024;
+
+    private static final ExecutorService RENDER_EXECUTOR = Executors.newSingleThreadExecutor();
+
+    private final Context context;
+    private final LruCache<String, Rendered> cache =
+            new LruCache<>(MAX_CACHE_SIZE) {
+                @Override
+                protected int sizeOf(final String key, final Rendered rendered) {
+                    return rendered.body.length() + 1;
+                }
+            };
+    private final Set<String> pending = ConcurrentHashMap.newKeySet();
+
+    MessageBodyRenderer(final Context context) {
+        this.context = context;
+    }
+
+    /**
+     * @return the rendered body of the message. Rendered synchronously if there is no up to date
+     *     cached version.
+     */
+    Spannable get(final Message message, final Style style) {
+        final String key = key(message);
+        final Source source = Source.of(message);
+        final Rendered cached = cache.get(key);
+        if (cached != null && cached.source.equals(source) && cached.style.equals(style)) {
+            return cached.body;
+        }
+        final Rendered rendered = render(source, style);
+        cache.put(key, rendered);
+        return rendered.body;
+    }
+
+    /** Renders the body of the message on a background thread unless it has been cached. */
+    void prefetch(final Message message, final Style style) {
+        final String key = key(message);
+        final Rendered cached = cache.get(key);
+        if ((cached != null && cached.style.equals(style)) || !pending.add(key)) {
+            return;
+        }
+        final Source source = Source.of(message);
+        RENDER_EXECUTOR.execute(
+                () -> {
+                    try {
+                        cache.put(key, render(source, style));
+                    } finally {
+                        pending.remove(key);
+                    }
+                });
+    }
+
+    void invalidate() {
+        cache.evictAll();
+    }
+
+    private static String key(final Message message) {
+        return message.getUuid() + ':' + message.getEditCount();
+    }
+
+    private Rendered render(final Source source, final Style style) {
+        SpannableStringBuilder body = new SpannableStringBuilder(source.body);
+        if (source.meCommand) {
+            body = body.replace(0, Message.ME_COMMAND.length(), source.nick + " ");
+        }
+        if (body.length() > Config.MAX_DISPLAY_MESSAGE_CHARS) {
+            body = new SpannableStringBuilder(body, 0, Config.MAX_DISPLAY_MESSAGE_CHARS);
+            body.append("\u2026");
+        }
+        Message.MergeSeparator[] mergeSeparators =
+                body.getSpans(0, body.length(), Message.MergeSeparator.class);
+        for (Message.MergeSeparator mergeSeparator : mergeSeparators) {
+            int start = body.getSpanStart(mergeSeparator);
+            int end = body.getSpanEnd(mergeSeparator);
+            body.setSpan(new DividerSpan(true), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        boolean startsWithQuote = handleTextQuotes(body, style.variantColor);
+        if (!source.privateMessage) {
+            if (source.meCommand) {
+                body.setSpan(
+                        new StyleSpan(Typeface.BOLD_ITALIC),
+                        0,
+                        source.nick.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        } else {
+            String privateMarker;
+            if (source.received) {
+                privateMarker = context.getString(R.string.private_message);
+            } else {
+                privateMarker =
+                        context.getString(
+                                R.string.private_message_to,
+                                Strings.nullToEmpty(source.counterpartResource));
+            }
+            body.insert(0, privateMarker);
+            int privateMarkerIndex = privateMarker.length();
+            if (startsWithQuote) {
+                body.insert(privateMarkerIndex, "\n\n");
+                body.setSpan(
+                        new DividerSpan(false),
+                        privateMarkerIndex,
+                        privateMarkerIndex + 2,
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            } else {
+                body.insert(privateMarkerIndex, " ");
+            }
+            body.setSpan(
+                    new ForegroundColorSpan(style.variantColor),
+                    0,
+                    privateMarkerIndex,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            body.setSpan(
+                    new StyleSpan(Typeface.BOLD),
+                    0,
+                    privateMarkerIndex,
+                    Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            if (source.meCommand) {
+                body.setSpan(
+                        new StyleSpan(Typeface.BOLD_ITALIC),
+                        privateMarkerIndex + 1,
+                        privateMarkerIndex + 1 + source.nick.length(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        if (source.highlightedNick != null) {
+            Pattern pattern =
+                    NotificationService.generateNickHighlightPattern(source.highlightedNick);
+            Matcher matcher = pattern.matcher(body);
+            while (matcher.find()) {
+                body.setSpan(
+                        new StyleSpan(Typeface.BOLD),
+                        matcher.start(),
+                        matcher.end(),
+                        Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            }
+        }
+        final Spannable spannable = body;
+        Emoticons.forEachEmoji(
+                spannable,
+                (start, end) ->
+                        spannable.setSpan(
+                                new RelativeSizeSpan(1.2f),
+                                start,
+                                end,
+                                Spannable.SPAN_EXCLUSIVE_EXCLUSIVE));
+        StylingHelper.format(body, style.textColor);
+        MyLinkify.addLinks(body, true);
+        return new Rendered(source, style, body);
+    }
+
+    private void applyQuoteSpan(
+            SpannableStringBuilder body, int start, int end, @ColorInt final int color) {
+        if (start > 1 && !"\n\n".equals(body.subSequence(start - 2, start).toString())) {
+            body.insert(start++, "\n");
+            body.setSpan(
+                    new DividerSpan(false), start - 2, start, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+            end++;
+        }
+        if (end < body.length() - 1 && !"\n\n".equals(body.subSequence(end, end + 2).toString())) {
+            body.insert(end, "\n");
+            body.setSpan(new DividerSpan(false), end, end + 2, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+        }
+        final DisplayMetrics metrics = context.getResources().getDisplayMetrics();
+        body.setSpan(
+                new QuoteSpan(color, metrics), start, end, Spannable.SPAN_EXCLUSIVE_EXCLUSIVE);
+    }
+
+    /**
+     * Applies QuoteSpan to group of lines which starts with > or » characters. Appends likebreaks
+     * and applies DividerSpan to them to show a padding between quote and text.
+     */
+    private boolean handleTextQuotes(
+            final SpannableStringBuilder body, @ColorInt final int color) {
+        boolean startsWithQuote = false;
+        int quoteDepth = 1;
+        while (QuoteHelper.bodyContainsQuoteStart(body) && quoteDepth <= Config.QUOTE_MAX_DEPTH) {
+            char previous = '\n';
+            int lineStart = -1;
+            int lineTextStart = -1;
+            int quoteStart = -1;
+            for (int i = 0; i <= body.length(); i++) {
+                char current = body.length() > i ? body.charAt(i) : '\n';
+                if (lineStart == -1) {
+                    if (previous == '\n') {
+                        if (i < body.length() && QuoteHelper.isPositionQuoteStart(body, i)) {
+                            // Line start with quote
+                            lineStart = i;
+                            if (quoteStart == -1) quoteStart = i;
+                            if (i == 0) startsWithQuote = true;
+                        } else if (quoteStart >= 0) {
+                            // Line start without quote, apply spans there
+                            applyQuoteSpan(body, quoteStart, i - 1, color);
+                            quoteStart = -1;
+                        }
+                    }
+                } else {
+                    // Remove extra spaces between > and first character in the line
+                    // > character will be removed too
+                    if (current != ' ' && lineTextStart == -1) {
+                        lineTextStart = i;
+                    }
+                    if (current == '\n') {
+                        body.delete(lineStart, lineTextStart);
+                        i -= lineTextStart - lineStart;
+                        if (i == lineStart) {
+                            // Avoid empty lines because span over empty line can be hidden
+                            body.insert(i++, " ");
+                        }
+                        lineStart = -1;
+                        lineTextStart = -1;
+                    }
+                }
+                previous = current;
+            }
+            if (quoteStart >= 0) {
+                // Apply spans to finishing open quote
+                applyQuoteSpan(body, quoteStart, body.length(), color);
+            }
+            quoteDepth++;
+        }
+        return startsWithQuote;
+    }
+
+    /** Colors and text size of the bubble a body is rendered for. */
+    static final class Style {
+        private final @ColorInt int textColor;
+        private final @ColorInt int variantColor;
+        private final boolean largeFont;
+
+        Style(@ColorInt final int textColor, @ColorInt final int variantColor, boolean largeFont) {
+            this.textColor = textColor;
+            this.variantColor = variantColor;
+            this.largeFont = largeFont;
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Style style = (Style) o;
+            return textColor == style.textColor
+                    && variantColor == style.variantColor
+                    && largeFont == style.largeFont;
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(textColor, variantColor, largeFont);
+        }
+    }
+
+    /** Snapshot of everything the rendered body depends on. */
+    private static final class Source {
+        private final SpannableStringBuilder body;
+        private final String text;
+        private final String nick;
+        private final boolean meCommand;
+        private final boolean privateMessage;
+        private final boolean received;
+        private final String counterpartResource;
+        private final String highlightedNick;
+
+        private Source(
+                final SpannableStringBuilder body,
+                final String nick,
+                final boolean meCommand,
+                final boolean privateMessage,
+                final boolean received,
+                final String counterpartResource,
+                final String highlightedNick) {
+            this.body = body;
+            this.text = body.toString();
+            this.nick = nick;
+            this.meCommand = meCommand;
+            this.privateMessage = privateMessage;
+            this.received = received;
+            this.counterpartResource = counterpartResource;
+            this.highlightedNick = highlightedNick;
+        }
+
+        private static Source of(final Message message) {
+            final Jid counterpart = message.getCounterpart();
+            final String highlightedNick;
+            if (message.getConversation().getMode() == Conversation.MODE_MULTI
+                    && message.getStatus() == Message.STATUS_RECEIVED
+                    && message.getConversation() instanceof Conversation conversation) {
+                highlightedNick = conversation.getMucOptions().getActualNick();
+            } else {
+                highlightedNick = null;
+            }
+            return new Source(
+                    message.getMergedBody(),
+                    UIHelper.getMessageDisplayName(message),
+                    message.hasMeCommand(),
+                    message.isPrivateMessage(),
+                    message.getStatus() <= Message.STATUS_RECEIVED,
+                    counterpart == null ? null : counterpart.getResource(),
+                    highlightedNick);
+        }
+
+        @Override
+        public boolean equals(final Object o) {
+            if (this == o) return true;
+            if (o == null || getClass() != o.getClass()) return false;
+            final Source source = (Source) o;
+            return meCommand == source.meCommand
+                    && privateMessage == source.privateMessage
+                    && received == source.received
+                    && Objects.equal(text, source.text)
+                    && Objects.equal(nick, source.nick)
+                    && Objects.equal(counterpartResource, source.counterpartResource)
+                    && Objects.equal(highlightedNick, source.highlightedNick);
+        }
+
+        @Override
+        public int hashCode() {
+            return Objects.hashCode(
+                    text,
+                    nick,
+                    meCommand,
+                    privateMessage,
+                    received,
+                    counterpartResource,
+                    highlightedNick);
+        }
+    }
+
+    private static final class Rendered {
+        private final Source source;
+        private final Style style;
+        private final Spannable body;
+
+        private Rendered(final Source source, final Style style, final Spannable body) {
+            this.source = source;
+            this.style = style;
+            this.body = body;
+        }
+    }
+}
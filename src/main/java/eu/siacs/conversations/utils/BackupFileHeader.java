@@ -10,8 +10,11 @@ import eu.siacs.conversations.xmpp.Jid;
 
 public class BackupFileHeader {
 
-    private static final int VERSION = 2;
+    // version 3 splits the body into independently sealed chunks; see ChunkedBackup
+    public static final int VERSION = 3;
+    private static final int MIN_VERSION = 2;
 
+    private final int version;
     private final String app;
     private final Jid jid;
     private final long timestamp;
@@ -23,7 +26,8 @@ public class BackupFileHeader {
     @Override
     public String toString() {
         return "BackupFileHeader{" +
-                "app='" + app + '\'' +
+                "version=" + version +
+                ", app='" + app + '\'' +
                 ", jid=" + jid +
                 ", timestamp=" + timestamp +
                 ", iv=" + CryptoHelper.bytesToHex(iv) +
@@ -32,6 +36,11 @@ public class BackupFileHeader {
     }
 
     public BackupFileHeader(String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+        this(VERSION, app, jid, timestamp, iv, salt);
+    }
+
+    private BackupFileHeader(int version, String app, Jid jid, long timestamp, byte[] iv, byte[] salt) {
+        this.version = version;
         this.app = app;
         this.jid = jid;
         this.timestamp = timestamp;
@@ -40,7 +49,7 @@ public class BackupFileHeader {
     }
 
     public void write(DataOutputStream dataOutputStream) throws IOException {
-        dataOutputStream.writeInt(VERSION);
+        dataOutputStream.writeInt(version);
         dataOutputStream.writeUTF(app);
         dataOutputStream.writeUTF(jid.asBareJid().toEscapedString());
         dataOutputStream.writeLong(timestamp);
@@ -57,14 +66,18 @@ public class BackupFileHeader {
         inputStream.readFully(iv);
         final byte[] salt = new byte[16];
         inputStream.readFully(salt);
-        if (version < VERSION) {
+        if (version < MIN_VERSION) {
             throw new OutdatedBackupFileVersion();
         }
-        if (version != VERSION) {
+        if (version > VERSION) {
             throw new IllegalArgumentException("Backup File version was " + version + " but app only supports version " + VERSION);
         }
-        return new BackupFileHeader(app, Jid.of(jid), timestamp, iv, salt);
+        return new BackupFileHeader(version, app, Jid.of(jid), timestamp, iv, salt);
+
+    }
 
+    public int getVersion() {
+        return version;
     }
 
     public byte[] getSalt() {
@@ -0,0 +1,358 @@
+package eu.siacs.conversations.utils;
+
+import android.content.ContentValues;
+
+import com.google.common.base.Charsets;
+import com.google.gson.stream.JsonReader;
+import com.google.gson.stream.JsonToken;
+import com.google.gson.stream.JsonWriter;
+
+import org.bouncycastle.crypto.InvalidCipherTextException;
+import org.bouncycastle.crypto.engines.AESEngine;
+import org.bouncycastle.crypto.modes.AEADBlockCipher;
+import org.bouncycastle.crypto.modes.GCMBlockCipher;
+import org.bouncycastle.crypto.params.AEADParameters;
+import org.bouncycastle.crypto.params.KeyParameter;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/**
+ * Body of version 3 backup files. Rows are grouped into chunks that are gzipped and sealed with
+ * AES-GCM independently of each other, which allows a pool of threads to do the compression and
+ * crypto while a single thread deals with the database and the file.
+ *
+ * <p>Every chunk is written as a frame of one flag byte, the length of the ciphertext as int and
+ * the ciphertext. The nonce of a chunk is the IV from the header with the chunk index xor-ed into
+ * its last eight bytes. The flag byte is authenticated as additional data and marks the last
+ * chunk, so dropped, reordered or truncated chunks fail to decrypt or are detected as missing.
+ */
+public final class ChunkedBackup {
+
+    public static final int ROWS_PER_CHUNK = 1024;
+
+    private static final int FLAG_LAST = 1;
+    private static final int MAC_SIZE_BITS = 128;
+    private static final int MAX_CHUNK_SIZE = 64 * 1024 * 1024;
+    private static final int THREADS =
+            Math.max(1, Math.min(4, Runtime.getRuntime().availableProcessors() - 1));
+    // keep every worker busy while the calling thread deals with the next chunk
+    private static final int WINDOW = 2 * THREADS;
+
+    private ChunkedBackup() {}
+
+    public static ExecutorService newExecutor() {
+        return Executors.newFixedThreadPool(THREADS);
+    }
+
+    private static byte[] nonce(final byte[] iv, final long index) {
+        final byte[] nonce = iv.clone();
+        for (int i = 0; i < 8; ++i) {
+            nonce[nonce.length - 1 - i] ^= (byte) (index >>> (8 * i));
+        }
+        return nonce;
+    }
+
+    private static AEADBlockCipher cipher(
+            final boolean encrypt, final byte[] key, final byte[] iv, final long index) {
+        final AEADBlockCipher cipher = new GCMBlockCipher(new AESEngine());
+        cipher.init(
+                encrypt, new AEADParameters(new KeyParameter(key), MAC_SIZE_BITS, nonce(iv, index)));
+        return cipher;
+    }
+
+    private static byte[] seal(
+            final List<Row> rows,
+            final byte[] key,
+            final byte[] iv,
+            final long index,
+            final int flags)
+            throws IOException {
+        final ByteArrayOutputStream plaintext = new ByteArrayOutputStream();
+        try (final JsonWriter writer =
+                new JsonWriter(
+                        new OutputStreamWriter(new GZIPOutputStream(plaintext), Charsets.UTF_8))) {
+            writer.beginArray();
+            for (final Row row : rows) {
+                row.write(writer);
+            }
+            writer.endArray();
+        }
+        final byte[] input = plaintext.toByteArray();
+        final AEADBlockCipher cipher = cipher(true, key, iv, index);
+        cipher.processAADByte((byte) flags);
+        final byte[] ciphertext = new byte[cipher.getOutputSize(input.length)];
+        final int length = cipher.processBytes(input, 0, input.length, ciphertext, 0);
+        try {
+            cipher.doFinal(ciphertext, length);
+        } catch (final InvalidCipherTextException e) {
+            throw new IOException(e);
+        }
+        final ByteArrayOutputStream frame = new ByteArrayOutputStream(ciphertext.length + 5);
+        final DataOutputStream dataOutputStream = new DataOutputStream(frame);
+        dataOutputStream.writeByte(flags);
+        dataOutputStream.writeInt(ciphertext.length);
+        dataOutputStream.write(ciphertext);
+        return frame.toByteArray();
+    }
+
+    private static List<Row> open(
+            final Frame frame, final byte[] key, final byte[] iv, final long index)
+            throws IOException {
+        final AEADBlockCipher cipher = cipher(false, key, iv, index);
+        cipher.processAADByte((byte) frame.flags);
+        final byte[] plaintext = new byte[cipher.getOutputSize(frame.ciphertext.length)];
+        final int length =
+                cipher.processBytes(frame.ciphertext, 0, frame.ciphertext.length, plaintext, 0);
+        try {
+            cipher.doFinal(plaintext, length);
+        } catch (final InvalidCipherTextException e) {
+            throw new DecryptionException(e);
+        }
+        final ArrayList<Row> rows = new ArrayList<>();
+        try (final JsonReader reader =
+                new JsonReader(
+                        new InputStreamReader(
+                                new GZIPInputStream(new ByteArrayInputStream(plaintext)),
+                                Charsets.UTF_8))) {
+            reader.beginArray();
+            while (reader.hasNext()) {
+                rows.add(Row.read(reader));
+            }
+            reader.endArray();
+        }
+        return rows;
+    }
+
+    private static <T> T await(final Future<T> future) throws IOException {
+        try {
+            return future.get();
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new IOException(e);
+        } catch (final ExecutionException e) {
+            final Throwable cause = e.getCause();
+            if (cause instanceof IOException ioException) {
+                throw ioException;
+            }
+            throw new IOException(cause);
+        }
+    }
+
+    public static class Row {
+
+        public final String table;
+        public final ContentValues values;
+
+        public Row(final String table, final ContentValues values) {
+            this.table = table;
+            this.values = values;
+        }
+
+        public void write(final JsonWriter writer) throws IOException {
+            writer.beginObject();
+            writer.name("table");
+            writer.value(table);
+            writer.name("values");
+            writer.beginObject();
+            for (final Map.Entry<String, Object> entry : values.valueSet()) {
+                writer.name(entry.getKey());
+                final Object value = entry.getValue();
+                if (value == null) {
+                    writer.nullValue();
+                } else if (value instanceof Number number) {
+                    writer.value(number);
+                } else {
+                    writer.value(value.toString());
+                }
+            }
+            writer.endObject();
+            writer.endObject();
+        }
+
+        public static Row read(final JsonReader reader) throws IOException {
+            reader.beginObject();
+            if (!reader.nextName().equals("table")) {
+                throw new IllegalStateException("Expected key 'table'");
+            }
+            final String table = reader.nextString();
+            if (!reader.nextName().equals("values")) {
+                throw new IllegalStateException("Expected key 'values'");
+            }
+            final ContentValues contentValues = new ContentValues();
+            reader.beginObject();
+            while (reader.peek() != JsonToken.END_OBJECT) {
+                final String name = reader.nextName();
+                if (reader.peek() == JsonToken.NULL) {
+                    reader.nextNull();
+                    contentValues.putNull(name);
+                } else if (reader.peek() == JsonToken.NUMBER) {
+                    contentValues.put(name, reader.nextLong());
+                } else {
+                    contentValues.put(name, reader.nextString());
+                }
+            }
+            reader.endObject();
+            reader.endObject();
+            return new Row(table, contentValues);
+        }
+    }
+
+    /**
+     * Batches rows into chunks and seals them on the executor. Frames are written to the stream
+     * in order by the thread calling {@link #add(Row)} and {@link #finish()}.
+     */
+    public static class Writer {
+
+        private final DataOutputStream outputStream;
+        private final byte[] key;
+        private final byte[] iv;
+        private final ExecutorService executor;
+        private final ArrayDeque<Future<byte[]>> pending = new ArrayDeque<>();
+        private List<Row> batch = new ArrayList<>(ROWS_PER_CHUNK);
+        private long index = 0;
+
+        public Writer(
+                final DataOutputStream outputStream,
+                final byte[] key,
+                final byte[] iv,
+                final ExecutorService executor) {
+            this.outputStream = outputStream;
+            this.key = key;
+            this.iv = iv;
+            this.executor = executor;
+        }
+
+        public void add(final Row row) throws IOException {
+            batch.add(row);
+            if (batch.size() >= ROWS_PER_CHUNK) {
+                submit(0);
+            }
+        }
+
+        /** Seals the remaining rows as last chunk and writes out everything still in flight. */
+        public void finish() throws IOException {
+            submit(FLAG_LAST);
+            while (!pending.isEmpty()) {
+                outputStream.write(await(pending.poll()));
+            }
+            outputStream.flush();
+        }
+
+        public void cancel() {
+            for (final Future<byte[]> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+
+        private void submit(final int flags) throws IOException {
+            final List<Row> rows = this.batch;
+            final long index = this.index++;
+            this.batch = new ArrayList<>(ROWS_PER_CHUNK);
+            pending.add(executor.submit(() -> seal(rows, key, iv, index, flags)));
+            while (pending.size() > WINDOW) {
+                outputStream.write(await(pending.poll()));
+            }
+        }
+    }
+
+    /**
+     * Reads frames from the stream and opens them on the executor, read ahead by a bounded
+     * number of chunks. {@link #next()} hands out the rows of every chunk in file order.
+     */
+    public static class Reader {
+
+        private final DataInputStream inputStream;
+        private final byte[] key;
+        private final byte[] iv;
+        private final ExecutorService executor;
+        private final ArrayDeque<Future<List<Row>>> pending = new ArrayDeque<>();
+        private long index = 0;
+        private boolean last = false;
+
+        public Reader(
+                final DataInputStream inputStream,
+                final byte[] key,
+                final byte[] iv,
+                final ExecutorService executor) {
+            this.inputStream = inputStream;
+            this.key = key;
+            this.iv = iv;
+            this.executor = executor;
+        }
+
+        /**
+         * @return the rows of the next chunk or null after the last chunk
+         */
+        public List<Row> next() throws IOException {
+            while (!last && pending.size() < WINDOW) {
+                final Frame frame = Frame.read(inputStream);
+                if (frame == null) {
+                    throw new EOFException("backup ended before last chunk");
+                }
+                final long index = this.index++;
+                this.last = (frame.flags & FLAG_LAST) != 0;
+                if (last && inputStream.read() != -1) {
+                    throw new IOException("unexpected data after last chunk");
+                }
+                pending.add(executor.submit(() -> open(frame, key, iv, index)));
+            }
+            final Future<List<Row>> future = pending.poll();
+            return future == null ? null : await(future);
+        }
+
+        public void cancel() {
+            for (final Future<List<Row>> future : pending) {
+                future.cancel(true);
+            }
+            pending.clear();
+        }
+    }
+
+    private static class Frame {
+        private final int flags;
+        private final byte[] ciphertext;
+
+        private Frame(final int flags, final byte[] ciphertext) {
+            this.flags = flags;
+            this.ciphertext = ciphertext;
+        }
+
+        private static Frame read(final DataInputStream inputStream) throws IOException {
+            final int flags = inputStream.read();
+            if (flags == -1) {
+                return null;
+            }
+            final int length = inputStream.readInt();
+            if (length < 0 || length > MAX_CHUNK_SIZE) {
+                throw new IOException("invalid chunk size " + length);
+            }
+            final byte[] ciphertext = new byte[length];
+            inputStream.readFully(ciphertext);
+            return new Frame(flags, ciphertext);
+        }
+    }
+
+    public static class DecryptionException extends IOException {
+        private DecryptionException(final Throwable cause) {
+            super(cause);
+        }
+    }
+}
@@ -29,282 +29,197 @@
 
 package eu.siacs.conversations.utils;
 
-import android.util.LruCache;
-
-import androidx.annotation.NonNull;
-
-import java.util.ArrayList;
-import java.util.Arrays;
-import java.util.HashSet;
-import java.util.List;
-import java.util.regex.Pattern;
+import java.util.BitSet;
 
+/**
+ * Finds emojis in text. Codepoints are classified with precomputed bit sets and grouped into emoji
+ * sequences (keycaps, flags, tag sequences, skin tones and ZWJ sequences) by a small state machine
+ * in a single pass that does not allocate.
+ */
 public class Emoticons {
 
-    private static final UnicodeRange MISC_SYMBOLS_AND_PICTOGRAPHS = new UnicodeRange(0x1F300, 0x1F5FF);
-    private static final UnicodeRange SUPPLEMENTAL_SYMBOLS = new UnicodeRange(0x1F900, 0x1F9FF);
-    private static final UnicodeRange EMOTICONS = new UnicodeRange(0x1F600, 0x1FAF6);
-    //private static final UnicodeRange TRANSPORT_SYMBOLS = new UnicodeRange(0x1F680, 0x1F6FF);
-    private static final UnicodeRange MISC_SYMBOLS = new UnicodeRange(0x2600, 0x26FF);
-    private static final UnicodeRange DINGBATS = new UnicodeRange(0x2700, 0x27BF);
-    private static final UnicodeRange ENCLOSED_ALPHANUMERIC_SUPPLEMENT = new UnicodeRange(0x1F100, 0x1F1FF);
-    private static final UnicodeRange ENCLOSED_IDEOGRAPHIC_SUPPLEMENT = new UnicodeRange(0x1F200, 0x1F2FF);
-    private static final UnicodeRange REGIONAL_INDICATORS = new UnicodeRange(0x1F1E6, 0x1F1FF);
-    private static final UnicodeRange GEOMETRIC_SHAPES = new UnicodeRange(0x25A0, 0x25FF);
-    private static final UnicodeRange LATIN_SUPPLEMENT = new UnicodeRange(0x80, 0xFF);
-    private static final UnicodeRange MISC_TECHNICAL = new UnicodeRange(0x2300, 0x23FF);
-    private static final UnicodeRange TAGS = new UnicodeRange(0xE0020, 0xE007F);
-    private static final UnicodeList CYK_SYMBOLS_AND_PUNCTUATION = new UnicodeList(0x3030, 0x303D);
-    private static final UnicodeList LETTERLIKE_SYMBOLS = new UnicodeList(0x2122, 0x2139);
-
-    private static final UnicodeBlocks KEYCAP_COMBINEABLE = new UnicodeBlocks(new UnicodeList(0x23), new UnicodeList(0x2A), new UnicodeRange(0x30, 0x39));
-
-    private static final UnicodeBlocks SYMBOLIZE = new UnicodeBlocks(
-            GEOMETRIC_SHAPES,
-            LATIN_SUPPLEMENT,
-            CYK_SYMBOLS_AND_PUNCTUATION,
-            LETTERLIKE_SYMBOLS,
-            KEYCAP_COMBINEABLE);
-    private static final UnicodeBlocks EMOJIS = new UnicodeBlocks(
-            MISC_SYMBOLS_AND_PICTOGRAPHS,
-            SUPPLEMENTAL_SYMBOLS,
-            EMOTICONS,
-            //TRANSPORT_SYMBOLS,
-            MISC_SYMBOLS,
-            DINGBATS,
-            ENCLOSED_ALPHANUMERIC_SUPPLEMENT,
-            ENCLOSED_IDEOGRAPHIC_SUPPLEMENT,
-            MISC_TECHNICAL);
-
     private static final int MAX_EMOIJS = 42;
 
     private static final int ZWJ = 0x200D;
     private static final int VARIATION_16 = 0xFE0F;
     private static final int COMBINING_ENCLOSING_KEYCAP = 0x20E3;
     private static final int BLACK_FLAG = 0x1F3F4;
-    private static final UnicodeRange FITZPATRICK = new UnicodeRange(0x1F3FB, 0x1F3FF);
-
-    private static final LruCache<CharSequence, Pattern> CACHE = new LruCache<>(256);
 
-    private static List<Symbol> parse(String input) {
-        List<Symbol> symbols = new ArrayList<>();
-        Builder builder = new Builder();
-        boolean needsFinalBuild = false;
-        for (int cp, i = 0; i < input.length(); i += Character.charCount(cp)) {
-            cp = input.codePointAt(i);
-            if (builder.offer(cp)) {
-                needsFinalBuild = true;
-            } else {
-                symbols.add(builder.build());
-                builder = new Builder();
-                if (builder.offer(cp)) {
-                    needsFinalBuild = true;
-                }
-            }
-        }
-        if (needsFinalBuild) {
-            symbols.add(builder.build());
-        }
-        return symbols;
+    // codepoints that start a sequence but are only an emoji if followed by VS16 or a keycap
+    private static final BitSet SYMBOLIZE = new BitSet(0x3040);
+    private static final BitSet EMOJIS = new BitSet(0x1FB00);
+
+    static {
+        SYMBOLIZE.set(0x25A0, 0x2600); // geometric shapes
+        SYMBOLIZE.set(0x80, 0x100); // latin-1 supplement
+        SYMBOLIZE.set(0x3030);
+        SYMBOLIZE.set(0x303D);
+        SYMBOLIZE.set(0x2122);
+        SYMBOLIZE.set(0x2139);
+        SYMBOLIZE.set('#');
+        SYMBOLIZE.set('*');
+        SYMBOLIZE.set('0', '9' + 1);
+
+        EMOJIS.set(0x1F300, 0x1F600); // misc symbols and pictographs
+        EMOJIS.set(0x1F900, 0x1FA00); // supplemental symbols and pictographs
+        EMOJIS.set(0x1F600, 0x1FAF7); // emoticons up to symbols and pictographs extended-a
+        EMOJIS.set(0x2600, 0x2700); // misc symbols
+        EMOJIS.set(0x2700, 0x27C0); // dingbats
+        EMOJIS.set(0x1F100, 0x1F200); // enclosed alphanumeric supplement
+        EMOJIS.set(0x1F200, 0x1F300); // enclosed ideographic supplement
+        EMOJIS.set(0x2300, 0x2400); // misc technical
     }
 
-    public static Pattern getEmojiPattern(final CharSequence input) {
-        Pattern pattern = CACHE.get(input);
-        if (pattern == null) {
-            pattern = generatePattern(input);
-            CACHE.put(input, pattern);
-        }
-        return pattern;
-    }
+    private Emoticons() {}
 
-    private static Pattern generatePattern(CharSequence input) {
-        final HashSet<String> emojis = new HashSet<>();
-        int i = 0;
-        for (final Symbol symbol : parse(input.toString())) {
-            if (symbol instanceof Emoji) {
-                emojis.add(symbol.toString());
-                if (++i >= MAX_EMOIJS) {
-                    return Pattern.compile("");
-                }
-            }
-        }
-        final StringBuilder pattern = new StringBuilder();
-        for (String emoji : emojis) {
-            if (pattern.length() != 0) {
-                pattern.append('|');
-            }
-            pattern.append(Pattern.quote(emoji));
-        }
-        return Pattern.compile(pattern.toString());
-    }
-
-    public static boolean isEmoji(String input) {
-        List<Symbol> symbols = parse(input);
-        return symbols.size() == 1 && symbols.get(0).isEmoji();
+    /** Receives the position of every emoji found by {@link #forEachEmoji}. */
+    public interface EmojiConsumer {
+        void accept(int start, int end);
     }
 
-    public static boolean isOnlyEmoji(String input) {
-        List<Symbol> symbols = parse(input);
-        for (Symbol symbol : symbols) {
-            if (!symbol.isEmoji()) {
-                return false;
-            }
+    /**
+     * Reports every emoji in the input unless there are so many of them that enlarging them would
+     * not make sense.
+     */
+    public static void forEachEmoji(final CharSequence input, final EmojiConsumer consumer) {
+        if (emojis(scan(input, null)) < MAX_EMOIJS) {
+            scan(input, consumer);
         }
-        return symbols.size() > 0;
     }
 
-    private static abstract class Symbol {
-
-        private final String value;
-
-        Symbol(List<Integer> codepoints) {
-            final StringBuilder builder = new StringBuilder();
-            for (final Integer codepoint : codepoints) {
-                builder.appendCodePoint(codepoint);
-            }
-            this.value = builder.toString();
-        }
-
-        abstract boolean isEmoji();
-
-        @NonNull
-        @Override
-        public String toString() {
-            return value;
-        }
+    public static boolean isEmoji(final String input) {
+        final long result = scan(input, null);
+        return emojis(result) == 1 && others(result) == 0;
     }
 
-    public static class Emoji extends Symbol {
-
-        Emoji(List<Integer> codepoints) {
-            super(codepoints);
-        }
-
-        @Override
-        boolean isEmoji() {
-            return true;
-        }
+    public static boolean isOnlyEmoji(final String input) {
+        final long result = scan(input, null);
+        return emojis(result) > 0 && others(result) == 0;
     }
 
-    public static class Other extends Symbol {
-
-        public Other(List<Integer> codepoints) {
-            super(codepoints);
-        }
-
-        @Override
-        boolean isEmoji() {
-            return false;
-        }
-    }
-
-    private static class Builder {
-        private final List<Integer> codepoints = new ArrayList<>();
-
-
-        public boolean offer(int codepoint) {
-            boolean add = false;
-            if (this.codepoints.size() == 0) {
-                if (SYMBOLIZE.contains(codepoint)) {
-                    add = true;
-                } else if (REGIONAL_INDICATORS.contains(codepoint)) {
-                    add = true;
-                } else if (EMOJIS.contains(codepoint) && !FITZPATRICK.contains(codepoint) && codepoint != ZWJ) {
-                    add = true;
+    /**
+     * @return the number of emojis in the lower and the number of everything else (codepoints
+     *     that are not part of an emoji and sequences that turned out not to be one) in the upper
+     *     32 bit
+     */
+    private static long scan(final CharSequence input, final EmojiConsumer consumer) {
+        int emojis = 0;
+        int others = 0;
+        // state of the sequence that is currently being built
+        int start = 0;
+        int length = 0;
+        int first = 0;
+        int previous = 0;
+        final int end = input.length();
+        for (int cp, i = 0; i < end; i += Character.charCount(cp)) {
+            cp = Character.codePointAt(input, i);
+            if (length > 0 && continues(first, previous, length, cp)) {
+                previous = cp;
+                ++length;
+                continue;
+            }
+            if (length > 0) {
+                if (isEmoji(first, previous, length)) {
+                    ++emojis;
+                    if (consumer != null) {
+                        consumer.accept(start, i);
+                    }
+                } else {
+                    ++others;
                 }
+            }
+            if (starts(cp)) {
+                start = i;
+                length = 1;
+                first = cp;
+                previous = cp;
             } else {
-                int previous = codepoints.get(codepoints.size() - 1);
-                if (codepoints.get(0) == BLACK_FLAG) {
-                    add = TAGS.contains(codepoint);
-                } else if (COMBINING_ENCLOSING_KEYCAP == codepoint) {
-                    add = KEYCAP_COMBINEABLE.contains(previous) || previous == VARIATION_16;
-                } else if (SYMBOLIZE.contains(previous)) {
-                    add = codepoint == VARIATION_16;
-                } else if (REGIONAL_INDICATORS.contains(previous) && REGIONAL_INDICATORS.contains(codepoint)) {
-                    add = codepoints.size() == 1;
-                } else if (previous == VARIATION_16) {
-                    add = isMerger(codepoint) || codepoint == VARIATION_16;
-                } else if (FITZPATRICK.contains(previous)) {
-                    add = codepoint == ZWJ;
-                } else if (ZWJ == previous) {
-                    add = EMOJIS.contains(codepoint);
-                } else if (isMerger(codepoint)) {
-                    add = true;
-                } else if (codepoint == VARIATION_16 && EMOJIS.contains(previous)) {
-                    add = true;
-                }
+                length = 0;
+                ++others;
             }
-            if (add) {
-                codepoints.add(codepoint);
-                return true;
+        }
+        if (length > 0) {
+            if (isEmoji(first, previous, length)) {
+                ++emojis;
+                if (consumer != null) {
+                    consumer.accept(start, end);
+                }
             } else {
-                return false;
+                ++others;
             }
         }
+        return ((long) others << 32) | emojis;
+    }
 
-        private static boolean isMerger(int codepoint) {
-            return codepoint == ZWJ || FITZPATRICK.contains(codepoint);
-        }
+    private static int emojis(final long result) {
+        return (int) result;
+    }
 
-        public Symbol build() {
-            if (codepoints.size() > 0 && SYMBOLIZE.contains(codepoints.get(codepoints.size() - 1))) {
-                return new Other(codepoints);
-            } else if (codepoints.size() > 1 && KEYCAP_COMBINEABLE.contains(codepoints.get(0)) && codepoints.get(codepoints.size() - 1) != COMBINING_ENCLOSING_KEYCAP) {
-                return new Other(codepoints);
-            }
-            return codepoints.size() == 0 ? new Other(codepoints) : new Emoji(codepoints);
-        }
+    private static int others(final long result) {
+        return (int) (result >>> 32);
     }
 
-    public static class UnicodeBlocks implements UnicodeSet {
-        final UnicodeSet[] unicodeSets;
+    private static boolean starts(final int codepoint) {
+        return isSymbolize(codepoint)
+                || isRegionalIndicator(codepoint)
+                || (isEmoji(codepoint) && !isFitzpatrick(codepoint));
+    }
 
-        UnicodeBlocks(final UnicodeSet... sets) {
-            this.unicodeSets = sets;
+    private static boolean continues(
+            final int first, final int previous, final int length, final int codepoint) {
+        if (first == BLACK_FLAG) {
+            return isTag(codepoint);
+        } else if (codepoint == COMBINING_ENCLOSING_KEYCAP) {
+            return isKeycapCombineable(previous) || previous == VARIATION_16;
+        } else if (isSymbolize(previous)) {
+            return codepoint == VARIATION_16;
+        } else if (isRegionalIndicator(previous) && isRegionalIndicator(codepoint)) {
+            return length == 1;
+        } else if (previous == VARIATION_16) {
+            return isMerger(codepoint) || codepoint == VARIATION_16;
+        } else if (isFitzpatrick(previous)) {
+            return codepoint == ZWJ;
+        } else if (previous == ZWJ) {
+            return isEmoji(codepoint);
+        } else if (isMerger(codepoint)) {
+            return true;
+        } else {
+            return codepoint == VARIATION_16 && isEmoji(previous);
         }
+    }
 
-        @Override
-        public boolean contains(int codepoint) {
-            for (UnicodeSet unicodeSet : unicodeSets) {
-                if (unicodeSet.contains(codepoint)) {
-                    return true;
-                }
-            }
+    private static boolean isEmoji(final int first, final int last, final int length) {
+        if (isSymbolize(last)) {
             return false;
         }
+        return length == 1 || !isKeycapCombineable(first) || last == COMBINING_ENCLOSING_KEYCAP;
     }
 
-    public interface UnicodeSet {
-        boolean contains(int codepoint);
+    private static boolean isMerger(final int codepoint) {
+        return codepoint == ZWJ || isFitzpatrick(codepoint);
     }
 
-    public static class UnicodeList implements UnicodeSet {
-
-        private final List<Integer> list;
-
-        UnicodeList(final Integer... codes) {
-            this.list = Arrays.asList(codes);
-        }
-
-        @Override
-        public boolean contains(int codepoint) {
-            return this.list.contains(codepoint);
-        }
+    private static boolean isSymbolize(final int codepoint) {
+        return codepoint < 0x3040 && SYMBOLIZE.get(codepoint);
     }
 
+    private static boolean isEmoji(final int codepoint) {
+        return codepoint < 0x1FB00 && EMOJIS.get(codepoint);
+    }
 
-    public static class UnicodeRange implements UnicodeSet {
+    private static boolean isKeycapCombineable(final int codepoint) {
+        return codepoint == '#' || codepoint == '*' || (codepoint >= '0' && codepoint <= '9');
+    }
 
-        private final int lower;
-        private final int upper;
+    private static boolean isRegionalIndicator(final int codepoint) {
+        return codepoint >= 0x1F1E6 && codepoint <= 0x1F1FF;
+    }
 
-        UnicodeRange(int lower, int upper) {
-            this.lower = lower;
-            this.upper = upper;
-        }
+    private static boolean isFitzpatrick(final int codepoint) {
+        return codepoint >= 0x1F3FB && codepoint <= 0x1F3FF;
+    }
 
-        public boolean contains(int codePoint) {
-            return codePoint >= lower && codePoint <= upper;
-        }
+    private static boolean isTag(final int codepoint) {
+        return codepoint >= 0xE0020 && codepoint <= 0xE007F;
     }
 }
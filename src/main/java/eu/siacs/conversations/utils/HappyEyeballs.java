@@ -0,0 +1,198 @@
+package eu.siacs.conversations.utils;
+
+import android.os.SystemClock;
+import android.util.Log;
+
+import androidx.annotation.NonNull;
+
+import com.google.common.collect.ImmutableList;
+
+import eu.siacs.conversations.Config;
+import eu.siacs.conversations.persistance.FileBackend;
+
+import java.io.IOException;
+import java.net.IDN;
+import java.net.InetSocketAddress;
+import java.net.Socket;
+import java.net.UnknownHostException;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Races TCP connections to resolver results in the spirit of RFC 8305 (Happy Eyeballs v2). A new
+ * attempt is started every {@link #CONNECTION_ATTEMPT_DELAY} ms, or as soon as the previous one
+ * failed, until one of them connects. The sockets of all other attempts are closed once a winner
+ * has been picked, so a dead IPv6 route or an unreachable SRV target only costs a fraction of a
+ * second instead of the full socket timeout.
+ */
+public final class HappyEyeballs {
+
+    // recommended value of RFC 8305 section 5
+    private static final long CONNECTION_ATTEMPT_DELAY = 250;
+
+    private static final ExecutorService CONNECT_EXECUTOR = Executors.newCachedThreadPool();
+
+    private HappyEyeballs() {}
+
+    /**
+     * @param candidates the resolver results in the order they should be attempted in
+     * @param timeout connect timeout of every single attempt in milliseconds
+     * @param listener notified on the calling thread about every attempt that failed
+     * @return the first connection that has been established
+     * @throws IOException if every attempt failed
+     */
+    public static Connection connect(
+            final List<Resolver.Result> candidates, final int timeout, final Listener listener)
+            throws IOException, InterruptedException {
+        if (candidates.isEmpty()) {
+            throw new UnknownHostException("no candidates to connect to");
+        }
+        final List<Resolver.Result> queue = ImmutableList.copyOf(candidates);
+        final Race race = new Race();
+        final CompletionService<Connection> completionService =
+                new ExecutorCompletionService<>(CONNECT_EXECUTOR);
+        final List<Future<Connection>> attempts = new ArrayList<>();
+        final List<Resolver.Result> attempted = new ArrayList<>();
+        IOException lastException = null;
+        int next = 0;
+        int running = 0;
+        try {
+            while (true) {
+                if (next < queue.size()) {
+                    final Resolver.Result candidate = queue.get(next++);
+                    attempted.add(candidate);
+                    attempts.add(
+                            completionService.submit(() -> attempt(candidate, timeout, race)));
+                    running++;
+                }
+                final Future<Connection> completed;
+                if (next < queue.size()) {
+                    completed =
+                            completionService.poll(
+                                    CONNECTION_ATTEMPT_DELAY, TimeUnit.MILLISECONDS);
+                    if (completed == null) {
+                        continue;
+                    }
+                } else {
+                    completed = completionService.take();
+                }
+                running--;
+                try {
+                    final Connection connection = completed.get();
+                    race.finish(connection.socket);
+                    Log.d(
+                            Config.LOGTAG,
+                            "connected to "
+                                    + connection.result
+                                    + " after "
+                                    + connection.connectTime
+                                    + "ms ("
+                                    + attempted.size()
+                                    + "/"
+                                    + queue.size()
+                                    + " attempted)");
+                    return connection;
+                } catch (final ExecutionException e) {
+                    final Throwable cause = e.getCause();
+                    final Resolver.Result failed = attempted.get(attempts.indexOf(completed));
+                    lastException =
+                            cause instanceof IOException ioException
+                                    ? ioException
+                                    : new IOException(cause);
+                    listener.onConnectFailed(failed, lastException);
+                }
+                if (running == 0 && next >= queue.size()) {
+                    throw lastException;
+                }
+            }
+        } finally {
+            // no-op if a winner has been picked already
+            race.finish(null);
+            for (final Future<Connection> future : attempts) {
+                future.cancel(true);
+            }
+        }
+    }
+
+    private static Connection attempt(
+            final Resolver.Result result, final int timeout, final Race race) throws IOException {
+        final InetSocketAddress address;
+        if (result.getIp() != null) {
+            address = new InetSocketAddress(result.getIp(), result.getPort());
+        } else {
+            address =
+                    new InetSocketAddress(
+                            IDN.toASCII(result.getHostname().toString()), result.getPort());
+        }
+        final Socket socket = new Socket();
+        if (!race.register(socket)) {
+            throw new IOException("connection race already decided");
+        }
+        final long start = SystemClock.elapsedRealtime();
+        try {
+            socket.connect(address, timeout);
+        } catch (final IOException e) {
+            FileBackend.close(socket);
+            throw e;
+        }
+        return new Connection(result, socket, SystemClock.elapsedRealtime() - start);
+    }
+
+    /** Keeps track of the sockets of all attempts so the losers can be closed. */
+    private static class Race {
+
+        private final List<Socket> sockets = new ArrayList<>();
+        private boolean finished = false;
+
+        private synchronized boolean register(final Socket socket) {
+            if (finished) {
+                FileBackend.close(socket);
+                return false;
+            }
+            sockets.add(socket);
+            return true;
+        }
+
+        private synchronized void finish(final Socket winner) {
+            if (finished) {
+                return;
+            }
+            finished = true;
+            for (final Socket socket : sockets) {
+                if (socket != winner) {
+                    FileBackend.close(socket);
+                }
+            }
+            sockets.clear();
+        }
+    }
+
+    public static class Connection {
+        public final Resolver.Result result;
+        public final Socket socket;
+        public final long connectTime;
+
+        private Connection(final Resolver.Result result, final Socket socket, long connectTime) {
+            this.result = result;
+            this.socket = socket;
+            this.connectTime = connectTime;
+        }
+
+        @NonNull
+        @Override
+        public String toString() {
+            return result + " (" + connectTime + "ms)";
+        }
+    }
+
+    public interface Listener {
+        void onConnectFailed(Resolver.Result result, IOException e);
+    }
+}
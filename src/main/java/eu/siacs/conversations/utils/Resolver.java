@@ -9,9 +9,12 @@ import androidx.annotation.NonNull;
 import com.google.common.base.MoreObjects;
 import com.google.common.base.Objects;
 import com.google.common.base.Strings;
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
 import com.google.common.collect.ImmutableList;
 import com.google.common.collect.Lists;
 import com.google.common.collect.Ordering;
+import com.google.common.collect.Sets;
 import com.google.common.net.InetAddresses;
 import com.google.common.primitives.Ints;
 import com.google.common.util.concurrent.Futures;
@@ -23,8 +26,10 @@ import de.gultsch.minidns.ResolverResult;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.Conversations;
+import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.xmpp.Jid;
 
+import org.minidns.dnsmessage.DnsMessage;
 import org.minidns.dnsmessage.Question;
 import org.minidns.dnsname.DnsName;
 import org.minidns.dnsname.InvalidDnsNameException;
@@ -44,9 +49,13 @@ import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
 import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+import java.util.Set;
 import java.util.concurrent.ExecutionException;
 import java.util.concurrent.ExecutorService;
 import java.util.concurrent.Executors;
+import java.util.concurrent.TimeUnit;
 
 public class Resolver {
 
@@ -75,6 +84,21 @@ public class Resolver {
             };
 
     private static final ExecutorService DNS_QUERY_EXECUTOR = Executors.newFixedThreadPool(12);
+    private static final ExecutorService CACHE_REFRESH_EXECUTOR =
+            Executors.newSingleThreadExecutor();
+
+    private static final long MIN_TTL = TimeUnit.SECONDS.toMillis(30);
+    private static final long MAX_TTL = TimeUnit.DAYS.toMillis(1);
+    private static final long NEGATIVE_TTL = TimeUnit.SECONDS.toMillis(30);
+    // RFC 8767 recommends serving stale data for one to three days
+    private static final long MAX_STALE = TimeUnit.DAYS.toMillis(1);
+
+    private static final Cache<String, CacheEntry<List<Result>>> RESULT_CACHE =
+            CacheBuilder.newBuilder().maximumSize(256).build();
+    private static final Cache<String, CacheEntry<List<InetAddress>>> HOST_CACHE =
+            CacheBuilder.newBuilder().maximumSize(256).build();
+    private static final String HOST_PREFIX = "host:";
+    private static final Set<String> REFRESHING = Sets.newConcurrentHashSet();
 
     public static final int DEFAULT_PORT_XMPP = 5222;
 
@@ -103,7 +127,50 @@ public class Resolver {
         }
     }
 
-    public static void clearCache() {}
+    /**
+     * Called after network changes. Failed lookups might have been caused by the previous network
+     * and are forgotten; everything else is kept but revalidated in the background on next use.
+     */
+    public static void clearCache() {
+        revalidate(RESULT_CACHE);
+        revalidate(HOST_CACHE);
+    }
+
+    private static <T> void revalidate(final Cache<String, CacheEntry<T>> cache) {
+        for (final Map.Entry<String, CacheEntry<T>> entry : cache.asMap().entrySet()) {
+            final CacheEntry<T> cacheEntry = entry.getValue();
+            if (cacheEntry.negative) {
+                cache.asMap().remove(entry.getKey(), cacheEntry);
+            } else {
+                cache.asMap().replace(entry.getKey(), cacheEntry, cacheEntry.expired());
+            }
+        }
+    }
+
+    /**
+     * Orders results that are equal by priority, direct TLS and IP version by how connecting to
+     * them went the last time: the fastest successful connections first, results without history
+     * next and results that failed to connect last. The order is stable otherwise.
+     *
+     * @param connectTimes connect time in milliseconds or a negative value for failed attempts
+     */
+    public static List<Result> orderByConnectTime(
+            final List<Result> results, final Map<Result, Long> connectTimes) {
+        if (connectTimes.isEmpty()) {
+            return results;
+        }
+        final Comparator<Result> comparator =
+                RESULT_COMPARATOR
+                        .thenComparingLong(
+                                r -> {
+                                    final Long connectTime = connectTimes.get(r);
+                                    if (connectTime == null) {
+                                        return Long.MAX_VALUE - 1;
+                                    }
+                                    return connectTime < 0 ? Long.MAX_VALUE : connectTime;
+                                });
+        return Ordering.from(comparator).immutableSortedCopy(results);
+    }
 
     public static boolean useDirectTls(final int port) {
         return port == 443 || port == 5223;
@@ -114,9 +181,177 @@ public class Resolver {
         if (!ipResults.isEmpty()) {
             return ipResults;
         }
+        CacheEntry<List<Result>> cached = RESULT_CACHE.getIfPresent(domain);
+        if (cached == null) {
+            cached = findPersistedResults(domain);
+        }
+        if (cached != null && cached.isServable()) {
+            if (cached.isExpired()) {
+                refreshInBackground(domain);
+            }
+            Log.d(Config.LOGTAG, "Resolver (" + cached.value.size() + ", cached): " + cached.value);
+            return cached.value;
+        }
+        final List<Result> results = resolveAndCache(domain);
+        if (results.isEmpty() && cached != null && !cached.negative) {
+            // RFC 8767: stale data beats no data
+            Log.d(Config.LOGTAG, "DNS resolution failed. using stale results for " + domain);
+            return cached.value;
+        }
+        return results;
+    }
+
+    private static List<Result> resolveAndCache(final String domain) {
+        final Expiry expiry = new Expiry();
+        final List<Result> results = resolveUncached(domain, expiry);
+        if (results.isEmpty()) {
+            final CacheEntry<List<Result>> previous = RESULT_CACHE.getIfPresent(domain);
+            // do not replace stale results that can still serve as fallback
+            if (previous == null || previous.negative) {
+                RESULT_CACHE.put(domain, CacheEntry.negative(results));
+            }
+        } else {
+            final CacheEntry<List<Result>> entry = new CacheEntry<>(results, expiry.get());
+            RESULT_CACHE.put(domain, entry);
+            persistResults(domain, entry);
+        }
+        return results;
+    }
+
+    private static void refreshInBackground(final String domain) {
+        if (!REFRESHING.add(domain)) {
+            return;
+        }
+        CACHE_REFRESH_EXECUTOR.execute(
+                () -> {
+                    try {
+                        final Expiry expiry = new Expiry();
+                        final List<Result> results = resolveUncached(domain, expiry);
+                        // a failed refresh keeps serving the stale entry
+                        if (!results.isEmpty()) {
+                            final var entry = new CacheEntry<>(results, expiry.get());
+                            RESULT_CACHE.put(domain, entry);
+                            persistResults(domain, entry);
+                        }
+                    } finally {
+                        REFRESHING.remove(domain);
+                    }
+                });
+    }
+
+    private static CacheEntry<List<Result>> findPersistedResults(final String domain) {
+        final CacheEntry<List<Result>> entry;
+        try {
+            entry =
+                    DatabaseBackend.getInstance(Conversations.getContext())
+                            .findResolverCacheEntry(domain);
+        } catch (final RuntimeException e) {
+            Log.d(Config.LOGTAG, "unable to load persisted resolver results", e);
+            return null;
+        }
+        if (entry != null) {
+            RESULT_CACHE.asMap().putIfAbsent(domain, entry);
+        }
+        return entry;
+    }
+
+    private static void persistResults(final String domain, final CacheEntry<List<Result>> entry) {
+        try {
+            DatabaseBackend.getInstance(Conversations.getContext())
+                    .saveResolverCacheEntry(domain, entry);
+        } catch (final RuntimeException e) {
+            Log.d(Config.LOGTAG, "unable to persist resolver results", e);
+        }
+    }
+
+    /**
+     * Resolves A and AAAA records (following CNAMEs) of a host through the same cache that is used
+     * for XMPP servers. Falls back to the system resolver if that does not yield any address, for
+     * example for names that are only known to /etc/hosts or mDNS.
+     */
+    public static List<InetAddress> lookup(final String hostname) throws UnknownHostException {
+        final String host = IP.unwrapIPv6(hostname);
+        if (InetAddresses.isInetAddress(host)) {
+            return Collections.singletonList(InetAddresses.forString(host));
+        }
+        final String key = hostname.toLowerCase(Locale.ROOT);
+        final CacheEntry<List<InetAddress>> cached = HOST_CACHE.getIfPresent(key);
+        if (cached != null && cached.isServable()) {
+            if (cached.negative) {
+                throw new UnknownHostException(hostname);
+            }
+            if (cached.isExpired() && REFRESHING.add(HOST_PREFIX + key)) {
+                CACHE_REFRESH_EXECUTOR.execute(
+                        () -> {
+                            try {
+                                lookupAndCache(hostname, key, false);
+                            } catch (final UnknownHostException e) {
+                                Log.d(Config.LOGTAG, "unable to refresh " + hostname);
+                            } finally {
+                                REFRESHING.remove(HOST_PREFIX + key);
+                            }
+                        });
+            }
+            return cached.value;
+        }
+        try {
+            return lookupAndCache(hostname, key, cached == null || cached.negative);
+        } catch (final UnknownHostException e) {
+            if (cached != null && !cached.negative) {
+                return cached.value;
+            }
+            throw e;
+        }
+    }
+
+    private static List<InetAddress> lookupAndCache(
+            final String hostname, final String key, final boolean cacheFailure)
+            throws UnknownHostException {
+        final Expiry expiry = new Expiry();
+        List<InetAddress> addresses;
+        long expires;
+        try {
+            final var future =
+                    Futures.transform(
+                            resolveNoSrvAsFuture(DnsName.from(hostname), true, expiry),
+                            results -> {
+                                final var builder = new ImmutableList.Builder<InetAddress>();
+                                for (final Result result : results) {
+                                    if (result.ip != null) {
+                                        builder.add(result.ip);
+                                    }
+                                }
+                                return builder.build();
+                            },
+                            MoreExecutors.directExecutor());
+            addresses = future.get();
+            expires = expiry.get();
+        } catch (final ExecutionException | RuntimeException e) {
+            Log.d(Config.LOGTAG, "unable to resolve " + hostname + " via DNS", e);
+            addresses = Collections.emptyList();
+            expires = 0;
+        } catch (final InterruptedException e) {
+            Thread.currentThread().interrupt();
+            throw new UnknownHostException(hostname);
+        }
+        if (addresses.isEmpty()) {
+            try {
+                addresses = ImmutableList.copyOf(InetAddress.getAllByName(hostname));
+                expires = System.currentTimeMillis() + MIN_TTL;
+            } catch (final UnknownHostException e) {
+                if (cacheFailure) {
+                    HOST_CACHE.put(key, CacheEntry.negative(Collections.emptyList()));
+                }
+                throw e;
+            }
+        }
+        HOST_CACHE.put(key, new CacheEntry<>(addresses, expires));
+        return addresses;
+    }
 
-        final var startTls = resolveSrvAsFuture(domain, false);
-        final var directTls = resolveSrvAsFuture(domain, true);
+    private static List<Result> resolveUncached(final String domain, final Expiry expiry) {
+        final var startTls = resolveSrvAsFuture(domain, false, expiry);
+        final var directTls = resolveSrvAsFuture(domain, true, expiry);
 
         final var combined = merge(ImmutableList.of(startTls, directTls));
 
@@ -125,7 +360,7 @@ public class Resolver {
                         combined,
                         results -> {
                             if (results.isEmpty()) {
-                                return resolveNoSrvAsFuture(DnsName.from(domain), true);
+                                return resolveNoSrvAsFuture(DnsName.from(domain), true, expiry);
                             } else {
                                 return Futures.immediateFuture(results);
                             }
@@ -167,20 +402,22 @@ public class Resolver {
     }
 
     private static ListenableFuture<List<Result>> resolveSrvAsFuture(
-            final String domain, final boolean directTls) {
+            final String domain, final boolean directTls, final Expiry expiry) {
         final DnsName dnsName =
                 DnsName.from(
                         (directTls ? DIRECT_TLS_SERVICE : STARTTLS_SERVICE) + "._tcp." + domain);
-        final var resultFuture = resolveAsFuture(dnsName, SRV.class);
+        final var resultFuture = resolveAsFuture(dnsName, SRV.class, expiry);
         return Futures.transformAsync(
                 resultFuture,
-                result -> resolveIpsAsFuture(result, directTls),
+                result -> resolveIpsAsFuture(result, directTls, expiry),
                 MoreExecutors.directExecutor());
     }
 
     @NonNull
     private static ListenableFuture<List<Result>> resolveIpsAsFuture(
-            final ResolverResult<SRV> srvResolverResult, final boolean directTls) {
+            final ResolverResult<SRV> srvResolverResult,
+            final boolean directTls,
+            final Expiry expiry) {
         final ImmutableList.Builder<ListenableFuture<List<Result>>> futuresBuilder =
                 new ImmutableList.Builder<>();
         for (final SRV record : srvResolverResult.getAnswersOrEmptySet()) {
@@ -189,7 +426,11 @@ public class Resolver {
             }
             final var ipv4sRaw =
                     resolveIpsAsFuture(
-                            record, A.class, srvResolverResult.isAuthenticData(), directTls);
+                            record,
+                            A.class,
+                            srvResolverResult.isAuthenticData(),
+                            directTls,
+                            expiry);
             final var ipv4s =
                     Futures.transform(
                             ipv4sRaw,
@@ -207,7 +448,11 @@ public class Resolver {
                             MoreExecutors.directExecutor());
             final var ipv6s =
                     resolveIpsAsFuture(
-                            record, AAAA.class, srvResolverResult.isAuthenticData(), directTls);
+                            record,
+                            AAAA.class,
+                            srvResolverResult.isAuthenticData(),
+                            directTls,
+                            expiry);
             futuresBuilder.add(ipv4s);
             futuresBuilder.add(ipv6s);
         }
@@ -234,8 +479,12 @@ public class Resolver {
 
     private static <D extends InternetAddressRR<?>>
             ListenableFuture<List<Result>> resolveIpsAsFuture(
-                    final SRV srv, Class<D> type, boolean authenticated, boolean directTls) {
-        final var resultFuture = resolveAsFuture(srv.target, type);
+                    final SRV srv,
+                    Class<D> type,
+                    boolean authenticated,
+                    boolean directTls,
+                    final Expiry expiry) {
+        final var resultFuture = resolveAsFuture(srv.target, type, expiry);
         return Futures.transform(
                 resultFuture,
                 result -> {
@@ -256,12 +505,12 @@ public class Resolver {
     }
 
     private static ListenableFuture<List<Result>> resolveNoSrvAsFuture(
-            final DnsName dnsName, boolean cName) {
+            final DnsName dnsName, boolean cName, final Expiry expiry) {
         final ImmutableList.Builder<ListenableFuture<List<Result>>> futuresBuilder =
                 new ImmutableList.Builder<>();
         ListenableFuture<List<Result>> aRecordResults =
                 Futures.transform(
-                        resolveAsFuture(dnsName, A.class),
+                        resolveAsFuture(dnsName, A.class, expiry),
                         result ->
                                 Lists.transform(
                                         ImmutableList.copyOf(result.getAnswersOrEmptySet()),
@@ -270,7 +519,7 @@ public class Resolver {
         futuresBuilder.add(aRecordResults);
         ListenableFuture<List<Result>> aaaaRecordResults =
                 Futures.transform(
-                        resolveAsFuture(dnsName, AAAA.class),
+                        resolveAsFuture(dnsName, AAAA.class, expiry),
                         result ->
                                 Lists.transform(
                                         ImmutableList.copyOf(result.getAnswersOrEmptySet()),
@@ -282,12 +531,14 @@ public class Resolver {
         if (cName) {
             ListenableFuture<List<Result>> cNameRecordResults =
                     Futures.transformAsync(
-                            resolveAsFuture(dnsName, CNAME.class),
+                            resolveAsFuture(dnsName, CNAME.class, expiry),
                             result -> {
                                 Collection<ListenableFuture<List<Result>>> test =
                                         Lists.transform(
                                                 ImmutableList.copyOf(result.getAnswersOrEmptySet()),
-                                                cname -> resolveNoSrvAsFuture(cname.target, false));
+                                                cname ->
+                                                        resolveNoSrvAsFuture(
+                                                                cname.target, false, expiry));
                                 return merge(test);
                             },
                             MoreExecutors.directExecutor());
@@ -308,18 +559,104 @@ public class Resolver {
     }
 
     private static <D extends Data> ListenableFuture<ResolverResult<D>> resolveAsFuture(
-            final DnsName dnsName, final Class<D> type) {
+            final DnsName dnsName, final Class<D> type, final Expiry expiry) {
         return Futures.submit(
                 () -> {
                     final Question question = new Question(dnsName, Record.TYPE.getType(type));
                     final AndroidDNSClient androidDNSClient =
                             new AndroidDNSClient(Conversations.getContext());
-                    final DnsQueryResult dnsQueryResult = androidDNSClient.query(question);
-                    return new ResolverResult<>(question, dnsQueryResult, null);
+                    try {
+                        final DnsQueryResult dnsQueryResult = androidDNSClient.query(question);
+                        final ResolverResult<D> result =
+                                new ResolverResult<>(question, dnsQueryResult, null);
+                        if (result.getRawAnswer() != null) {
+                            expiry.update(result.getRawAnswer());
+                        }
+                        return result;
+                    } catch (final Exception e) {
+                        expiry.failed();
+                        throw e;
+                    }
                 },
                 DNS_QUERY_EXECUTOR);
     }
 
+    /**
+     * Tracks when the first of the records that went into a lookup expires. Lookups that failed
+     * only partially are cached as briefly as failed ones.
+     */
+    private static class Expiry {
+
+        private long expires = Long.MAX_VALUE;
+
+        private synchronized void update(final DnsMessage response) {
+            final long now = System.currentTimeMillis();
+            final long received = response.receiveTimestamp > 0 ? response.receiveTimestamp : now;
+            final List<Record<? extends Data>> answers = response.answerSection;
+            final List<Record<? extends Data>> authorities = response.authoritySection;
+            final long ttl;
+            if (answers != null && !answers.isEmpty()) {
+                ttl = TimeUnit.SECONDS.toMillis(minTtl(answers));
+            } else if (authorities != null && !authorities.isEmpty()) {
+                // RFC 2308: the SOA in the authority section limits how long to cache the absence
+                ttl = TimeUnit.SECONDS.toMillis(minTtl(authorities));
+            } else {
+                ttl = NEGATIVE_TTL;
+            }
+            this.expires = Math.min(this.expires, received + ttl);
+        }
+
+        private synchronized void failed() {
+            this.expires = Math.min(this.expires, System.currentTimeMillis() + NEGATIVE_TTL);
+        }
+
+        private synchronized long get() {
+            final long now = System.currentTimeMillis();
+            return Math.max(now + MIN_TTL, Math.min(expires, now + MAX_TTL));
+        }
+
+        private static long minTtl(final List<Record<? extends Data>> records) {
+            long ttl = Long.MAX_VALUE;
+            for (final Record<? extends Data> record : records) {
+                ttl = Math.min(ttl, record.ttl);
+            }
+            return ttl;
+        }
+    }
+
+    public static class CacheEntry<T> {
+        public final T value;
+        public final long expires;
+        private final boolean negative;
+
+        public CacheEntry(final T value, final long expires) {
+            this(value, expires, false);
+        }
+
+        private CacheEntry(final T value, final long expires, final boolean negative) {
+            this.value = value;
+            this.expires = expires;
+            this.negative = negative;
+        }
+
+        private static <T> CacheEntry<T> negative(final T value) {
+            return new CacheEntry<>(value, System.currentTimeMillis() + NEGATIVE_TTL, true);
+        }
+
+        private CacheEntry<T> expired() {
+            return new CacheEntry<>(value, Math.min(expires, System.currentTimeMillis()), negative);
+        }
+
+        private boolean isExpired() {
+            return System.currentTimeMillis() >= expires;
+        }
+
+        private boolean isServable() {
+            final long now = System.currentTimeMillis();
+            return now < expires || (!negative && now < expires + MAX_STALE);
+        }
+    }
+
     public static class Result {
         public static final String DOMAIN = "domain";
         public static final String IP = "ip";
@@ -328,6 +665,9 @@ public class Resolver {
         public static final String PRIORITY = "priority";
         public static final String DIRECT_TLS = "directTls";
         public static final String AUTHENTICATED = "authenticated";
+        public static final String CANDIDATE = "candidate";
+        public static final String CONNECT_TIME = "connectTime";
+        public static final String LAST_SUCCESS = "lastSuccess";
         private InetAddress ip;
         private DnsName hostname;
         private int port = DEFAULT_PORT_XMPP;
@@ -411,6 +751,19 @@ public class Resolver {
             return authenticated;
         }
 
+        /**
+         * @return identifies the endpoint this result points to; hostname and ip are both nullable
+         *     which does not work with unique constraints
+         */
+        public String getCandidate() {
+            return (directTls ? "xmpps://" : "xmpp://")
+                    + (hostname == null ? "" : hostname.toString())
+                    + "/"
+                    + (ip == null ? "" : ip.getHostAddress())
+                    + ":"
+                    + port;
+        }
+
         @Override
         @NonNull
         public String toString() {
@@ -432,6 +785,7 @@ public class Resolver {
             contentValues.put(PRIORITY, priority);
             contentValues.put(DIRECT_TLS, directTls ? 1 : 0);
             contentValues.put(AUTHENTICATED, authenticated ? 1 : 0);
+            contentValues.put(CANDIDATE, getCandidate());
             return contentValues;
         }
 
@@ -452,7 +806,7 @@ public class Resolver {
                 if (port == null || Strings.isNullOrEmpty(hostPart)) {
                     return null;
                 }
-                final String host = eu.siacs.conversations.utils.IP.unwrapIPv6(hostPart);
+                final String host = IP.unwrapIPv6(hostPart);
                 result.port = port;
                 if (InetAddresses.isInetAddress(host)) {
                     final InetAddress inetAddress;
@@ -473,7 +827,7 @@ public class Resolver {
                     }
                 }
             } else {
-                final String host = eu.siacs.conversations.utils.IP.unwrapIPv6(hostname);
+                final String host = IP.unwrapIPv6(hostname);
                 if (InetAddresses.isInetAddress(host)) {
                     final InetAddress inetAddress;
                     try {
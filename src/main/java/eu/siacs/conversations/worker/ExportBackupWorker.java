@@ -5,6 +5,7 @@ import static eu.siacs.conversations.utils.Compatibility.s;
 import android.app.Notification;
 import android.app.NotificationManager;
 import android.app.PendingIntent;
+import android.content.ContentValues;
 import android.content.Context;
 import android.content.Intent;
 import android.content.pm.ServiceInfo;
@@ -12,6 +13,7 @@ import android.database.Cursor;
 import android.database.sqlite.SQLiteDatabase;
 import android.net.Uri;
 import android.os.SystemClock;
+import android.util.Base64;
 import android.util.Log;
 
 import androidx.annotation.NonNull;
@@ -24,7 +26,6 @@ import androidx.work.WorkerParameters;
 import com.google.common.base.Optional;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
-import com.google.gson.stream.JsonWriter;
 
 import eu.siacs.conversations.Config;
 import eu.siacs.conversations.R;
@@ -35,18 +36,15 @@ import eu.siacs.conversations.entities.Message;
 import eu.siacs.conversations.persistance.DatabaseBackend;
 import eu.siacs.conversations.persistance.FileBackend;
 import eu.siacs.conversations.utils.BackupFileHeader;
+import eu.siacs.conversations.utils.ChunkedBackup;
 import eu.siacs.conversations.utils.Compatibility;
 
+import java.io.BufferedOutputStream;
 import java.io.DataOutputStream;
 import java.io.File;
 import java.io.FileOutputStream;
 import java.io.IOException;
-import java.io.OutputStreamWriter;
-import java.nio.charset.StandardCharsets;
-import java.security.InvalidAlgorithmParameterException;
-import java.security.InvalidKeyException;
 import java.security.NoSuchAlgorithmException;
-import java.security.NoSuchProviderException;
 import java.security.SecureRandom;
 import java.security.spec.InvalidKeySpecException;
 import java.text.SimpleDateFormat;
@@ -55,15 +53,10 @@ import java.util.Arrays;
 import java.util.Date;
 import java.util.List;
 import java.util.Locale;
-import java.util.zip.GZIPOutputStream;
+import java.util.concurrent.ExecutorService;
 
-import javax.crypto.Cipher;
-import javax.crypto.CipherOutputStream;
-import javax.crypto.NoSuchPaddingException;
 import javax.crypto.SecretKeyFactory;
-import javax.crypto.spec.IvParameterSpec;
 import javax.crypto.spec.PBEKeySpec;
-import javax.crypto.spec.SecretKeySpec;
 
 public class ExportBackupWorker extends Worker {
 
@@ -99,13 +92,7 @@ public class ExportBackupWorker extends Worker {
         final List<File> files;
         try {
             files = export();
-        } catch (final IOException
-                | InvalidKeySpecException
-                | InvalidAlgorithmParameterException
-                | InvalidKeyException
-                | NoSuchPaddingException
-                | NoSuchAlgorithmException
-                | NoSuchProviderException e) {
+        } catch (final IOException | InvalidKeySpecException e) {
             Log.d(Config.LOGTAG, "could not create backup", e);
             return Result.failure();
         } finally {
@@ -136,14 +123,7 @@ public class ExportBackupWorker extends Worker {
         }
     }
 
-    private List<File> export()
-            throws IOException,
-                    InvalidKeySpecException,
-                    InvalidAlgorithmParameterException,
-                    InvalidKeyException,
-                    NoSuchPaddingException,
-                    NoSuchAlgorithmException,
-                    NoSuchProviderException {
+    private List<File> export() throws IOException, InvalidKeySpecException {
         final Context context = getApplicationContext();
         final var database = DatabaseBackend.getInstance(context);
         final var accounts = database.getAccounts();
@@ -197,14 +177,7 @@ public class ExportBackupWorker extends Worker {
             final File file,
             final int max,
             final int count)
-            throws IOException,
-                    InvalidKeySpecException,
-                    InvalidAlgorithmParameterException,
-                    InvalidKeyException,
-                    NoSuchPaddingException,
-                    NoSuchAlgorithmException,
-                    NoSuchProviderException,
-                    WorkStoppedException {
+            throws IOException, InvalidKeySpecException, WorkStoppedException {
         final var context = getApplicationContext();
         final SecureRandom secureRandom = new SecureRandom();
         Log.d(
@@ -237,42 +210,38 @@ public class ExportBackupWorker extends Worker {
         if (directory != null && directory.mkdirs()) {
             Log.d(Config.LOGTAG, "created backup directory " + directory.getAbsolutePath());
         }
-        final FileOutputStream fileOutputStream = new FileOutputStream(file);
-        final DataOutputStream dataOutputStream = new DataOutputStream(fileOutputStream);
-        backupFileHeader.write(dataOutputStream);
-        dataOutputStream.flush();
-
-        final Cipher cipher =
-                Compatibility.twentyEight()
-                        ? Cipher.getInstance(CIPHERMODE)
-                        : Cipher.getInstance(CIPHERMODE, PROVIDER);
         final byte[] key = getKey(password, salt);
-        SecretKeySpec keySpec = new SecretKeySpec(key, KEYTYPE);
-        IvParameterSpec ivSpec = new IvParameterSpec(IV);
-        cipher.init(Cipher.ENCRYPT_MODE, keySpec, ivSpec);
-        CipherOutputStream cipherOutputStream = new CipherOutputStream(fileOutputStream, cipher);
-
-        final GZIPOutputStream gzipOutputStream = new GZIPOutputStream(cipherOutputStream);
-        final JsonWriter jsonWriter =
-                new JsonWriter(new OutputStreamWriter(gzipOutputStream, StandardCharsets.UTF_8));
-        jsonWriter.beginArray();
-        final SQLiteDatabase db = database.getReadableDatabase();
-        final String uuid = account.getUuid();
-        accountExport(db, uuid, jsonWriter);
-        simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, jsonWriter);
-        messageExport(db, uuid, jsonWriter, progress);
-        for (final String table :
-                Arrays.asList(
-                        SQLiteAxolotlStore.PREKEY_TABLENAME,
-                        SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
-                        SQLiteAxolotlStore.SESSION_TABLENAME,
-                        SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
-            throwIfWorkStopped();
-            simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, jsonWriter);
+        final ExecutorService executor = ChunkedBackup.newExecutor();
+        try (final DataOutputStream dataOutputStream =
+                new DataOutputStream(
+                        new BufferedOutputStream(new FileOutputStream(file), 64 * 1024))) {
+            backupFileHeader.write(dataOutputStream);
+            final ChunkedBackup.Writer writer =
+                    new ChunkedBackup.Writer(dataOutputStream, key, IV, executor);
+            try {
+                database.flushPendingMessages();
+                final SQLiteDatabase db = database.getReadableDatabase();
+                final String uuid = account.getUuid();
+                accountExport(db, uuid, writer);
+                simpleExport(db, Conversation.TABLENAME, Conversation.ACCOUNT, uuid, writer);
+                messageExport(db, uuid, writer, progress);
+                for (final String table :
+                        Arrays.asList(
+                                SQLiteAxolotlStore.PREKEY_TABLENAME,
+                                SQLiteAxolotlStore.SIGNED_PREKEY_TABLENAME,
+                                SQLiteAxolotlStore.SESSION_TABLENAME,
+                                SQLiteAxolotlStore.IDENTITIES_TABLENAME)) {
+                    throwIfWorkStopped();
+                    simpleExport(db, table, SQLiteAxolotlStore.ACCOUNT, uuid, writer);
+                }
+                writer.finish();
+            } catch (final IOException | WorkStoppedException e) {
+                writer.cancel();
+                throw e;
+            }
+        } finally {
+            executor.shutdownNow();
         }
-        jsonWriter.endArray();
-        jsonWriter.flush();
-        jsonWriter.close();
         mediaScannerScanFile(file);
         Log.d(Config.LOGTAG, "written backup to " + file.getAbsoluteFile());
     }
@@ -303,7 +272,7 @@ public class ExportBackupWorker extends Worker {
     }
 
     private static void accountExport(
-            final SQLiteDatabase db, final String uuid, final JsonWriter writer)
+            final SQLiteDatabase db, final String uuid, final ChunkedBackup.Writer writer)
             throws IOException {
         try (final Cursor accountCursor =
                 db.query(
@@ -315,29 +284,23 @@ public class ExportBackupWorker extends Worker {
                         null,
                         null)) {
             while (accountCursor != null && accountCursor.moveToNext()) {
-                writer.beginObject();
-                writer.name("table");
-                writer.value(Account.TABLENAME);
-                writer.name("values");
-                writer.beginObject();
+                final ContentValues values = new ContentValues();
                 for (int i = 0; i < accountCursor.getColumnCount(); ++i) {
                     final String name = accountCursor.getColumnName(i);
-                    writer.name(name);
                     final String value = accountCursor.getString(i);
                     if (value == null
                             || Account.ROSTERVERSION.equals(accountCursor.getColumnName(i))) {
-                        writer.nullValue();
+                        values.putNull(name);
                     } else if (Account.OPTIONS.equals(accountCursor.getColumnName(i))
                             && value.matches("\\d+")) {
                         int intValue = Integer.parseInt(value);
                         intValue |= 1 << Account.OPTION_DISABLED;
-                        writer.value(intValue);
+                        values.put(name, intValue);
                     } else {
-                        writer.value(value);
+                        values.put(name, value);
                     }
                 }
-                writer.endObject();
-                writer.endObject();
+                writer.add(new ChunkedBackup.Row(Account.TABLENAME, values));
             }
         }
     }
@@ -347,32 +310,35 @@ public class ExportBackupWorker extends Worker {
             final String table,
             final String column,
             final String uuid,
-            final JsonWriter writer)
+            final ChunkedBackup.Writer writer)
             throws IOException {
         try (final Cursor cursor =
                 db.query(table, null, column + "=?", new String[] {uuid}, null, null, null)) {
             while (cursor != null && cursor.moveToNext()) {
-                writer.beginObject();
-                writer.name("table");
-                writer.value(table);
-                writer.name("values");
-                writer.beginObject();
-                for (int i = 0; i < cursor.getColumnCount(); ++i) {
-                    final String name = cursor.getColumnName(i);
-                    writer.name(name);
-                    final String value = cursor.getString(i);
-                    writer.value(value);
-                }
-                writer.endObject();
-                writer.endObject();
+                writer.add(new ChunkedBackup.Row(table, toContentValues(cursor)));
             }
         }
     }
 
+    private static ContentValues toContentValues(final Cursor cursor) {
+        final ContentValues values = new ContentValues(cursor.getColumnCount());
+        for (int i = 0; i < cursor.getColumnCount(); ++i) {
+            // sessions are stored as BLOB but backups have always carried them as Base64
+            if (cursor.getType(i) == Cursor.FIELD_TYPE_BLOB) {
+                values.put(
+                        cursor.getColumnName(i),
+                        Base64.encodeToString(cursor.getBlob(i), Base64.DEFAULT));
+            } else {
+                values.put(cursor.getColumnName(i), cursor.getString(i));
+            }
+        }
+        return values;
+    }
+
     private void messageExport(
             final SQLiteDatabase db,
             final String uuid,
-            final JsonWriter writer,
+            final ChunkedBackup.Writer writer,
             final Progress progress)
             throws IOException, WorkStoppedException {
         final var notificationManager =
@@ -388,19 +354,7 @@ public class ExportBackupWorker extends Worker {
             int p = Integer.MIN_VALUE;
             while (cursor != null && cursor.moveToNext()) {
                 throwIfWorkStopped();
-                writer.beginObject();
-                writer.name("table");
-                writer.value(Message.TABLENAME);
-                writer.name("values");
-                writer.beginObject();
-                for (int j = 0; j < cursor.getColumnCount(); ++j) {
-                    final String name = cursor.getColumnName(j);
-                    writer.name(name);
-                    final String value = cursor.getString(j);
-                    writer.value(value);
-                }
-                writer.endObject();
-                writer.endObject();
+                writer.add(new ChunkedBackup.Row(Message.TABLENAME, toContentValues(cursor)));
                 final int percentage = i * 100 / size;
                 if (p < percentage && (SystemClock.elapsedRealtime() - lastUpdate) > 2_000) {
                     p = percentage;
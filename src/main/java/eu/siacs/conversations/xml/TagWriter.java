@@ -4,7 +4,7 @@ import android.util.Log;
 
 import java.io.IOException;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
+import java.util.ArrayList;
 import java.util.concurrent.CountDownLatch;
 import java.util.concurrent.LinkedBlockingQueue;
 import java.util.concurrent.TimeUnit;
@@ -14,7 +14,8 @@ import im.conversations.android.xmpp.model.StreamElement;
 
 public class TagWriter {
 
-    private OutputStreamWriter outputStream;
+    private OutputStream outputStream;
+    private final XmlOutputBuffer outputBuffer = new XmlOutputBuffer();
     private boolean finished = false;
 
     private final LinkedBlockingQueue<StreamElement> writeQueue = new LinkedBlockingQueue<>();
@@ -25,14 +26,27 @@ public class TagWriter {
         @Override
         public void run() {
             stanzaWriterCountDownLatch = new CountDownLatch(1);
+            final XmlOutputBuffer buffer = new XmlOutputBuffer();
+            final ArrayList<StreamElement> batch = new ArrayList<>();
             while (!isInterrupted()) {
                 if (finished && writeQueue.isEmpty()) {
                     break;
                 }
                 try {
-                    final var output = writeQueue.take();
-                    outputStream.write(output.toString());
-                    if (writeQueue.isEmpty()) {
+                    batch.add(writeQueue.take());
+                    writeQueue.drainTo(batch);
+                    for (final StreamElement stanza : batch) {
+                        buffer.append(stanza);
+                    }
+                    batch.clear();
+                    final OutputStream outputStream = TagWriter.this.outputStream;
+                    if (outputStream == null) {
+                        break;
+                    }
+                    // lock on the stream rather than the TagWriter so a write blocking on a
+                    // stalled socket does not prevent forceClose()
+                    synchronized (outputStream) {
+                        buffer.writeTo(outputStream);
                         outputStream.flush();
                     }
                 } catch (Exception e) {
@@ -51,14 +65,15 @@ public class TagWriter {
         if (out == null) {
             throw new IOException();
         }
-        this.outputStream = new OutputStreamWriter(out);
+        this.outputStream = out;
+        this.outputBuffer.reset();
     }
 
-    public void beginDocument() throws IOException {
+    public synchronized void beginDocument() throws IOException {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write("<?xml version='1.0'?>");
+        outputBuffer.appendRaw("<?xml version='1.0'?>");
     }
 
     public void writeTag(final Tag tag) throws IOException {
@@ -69,9 +84,9 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(tag.toString());
+        outputBuffer.append(tag);
         if (flush) {
-            outputStream.flush();
+            flushOutputBuffer();
         }
     }
 
@@ -79,8 +94,16 @@ public class TagWriter {
         if (outputStream == null) {
             throw new IOException("output stream was null");
         }
-        outputStream.write(element.toString());
-        outputStream.flush();
+        outputBuffer.append(element);
+        flushOutputBuffer();
+    }
+
+    private void flushOutputBuffer() throws IOException {
+        final OutputStream outputStream = this.outputStream;
+        synchronized (outputStream) {
+            outputBuffer.writeTo(outputStream);
+            outputStream.flush();
+        }
     }
 
     public void writeStanzaAsync(StreamElement stanza) {
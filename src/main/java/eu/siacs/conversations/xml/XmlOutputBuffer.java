@@ -0,0 +1,158 @@
+package eu.siacs.conversations.xml;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.util.List;
+import java.util.Map;
+
+/**
+ * Reusable buffer that serializes {@link Element}s and {@link Tag}s straight into UTF-8 bytes.
+ * Entities are escaped while encoding, so unlike {@link Element#toString()} no intermediate
+ * strings are built. The produced output is the same as the one of {@code toString()}.
+ */
+class XmlOutputBuffer {
+
+    private static final int INITIAL_CAPACITY = 8 * 1024;
+    private static final int MAX_RETAINED_CAPACITY = 256 * 1024;
+
+    private byte[] buffer = new byte[INITIAL_CAPACITY];
+    private int count = 0;
+
+    public void append(final Element element) {
+        final String name = element.getName();
+        final String content = element.getContent();
+        final List<Element> children = element.getChildren();
+        appendStartTag(name, element.getAttributes());
+        if (content == null && children.isEmpty()) {
+            appendRaw("/>");
+            return;
+        }
+        appendByte('>');
+        if (content != null) {
+            appendUtf8(content, true);
+        } else {
+            for (final Element child : children) {
+                append(child);
+            }
+        }
+        appendEndTag(name);
+    }
+
+    public void append(final Tag tag) {
+        if (tag.type == Tag.END) {
+            appendEndTag(tag.name);
+            return;
+        }
+        appendStartTag(tag.name, tag.attributes);
+        if (tag.type == Tag.EMPTY) {
+            appendRaw("/>");
+        } else {
+            appendByte('>');
+        }
+    }
+
+    public void appendRaw(final String string) {
+        appendUtf8(string, false);
+    }
+
+    public void writeTo(final OutputStream outputStream) throws IOException {
+        try {
+            outputStream.write(buffer, 0, count);
+        } finally {
+            reset();
+        }
+    }
+
+    public void reset() {
+        this.count = 0;
+        // do not hold on to the memory of an occasional large stanza (think avatar uploads)
+        if (buffer.length > MAX_RETAINED_CAPACITY) {
+            this.buffer = new byte[INITIAL_CAPACITY];
+        }
+    }
+
+    private void appendStartTag(final String name, final Map<String, String> attributes) {
+        appendByte('<');
+        appendUtf8(name, false);
+        for (final Map.Entry<String, String> attribute : attributes.entrySet()) {
+            appendByte(' ');
+            appendUtf8(attribute.getKey(), false);
+            appendRaw("=\"");
+            appendUtf8(attribute.getValue(), true);
+            appendByte('"');
+        }
+    }
+
+    private void appendEndTag(final String name) {
+        appendRaw("</");
+        appendUtf8(name, false);
+        appendByte('>');
+    }
+
+    private void appendByte(final char c) {
+        ensureCapacity(1);
+        buffer[count++] = (byte) c;
+    }
+
+    private void appendUtf8(final String string, final boolean escape) {
+        final int length = string.length();
+        for (int i = 0; i < length; ++i) {
+            final char c = string.charAt(i);
+            // longest possible output of a single iteration is '&quot;' or a surrogate pair
+            ensureCapacity(6);
+            if (escape && c < 0x80) {
+                switch (c) {
+                    case '&' -> appendEscaped("&amp;");
+                    case '<' -> appendEscaped("&lt;");
+                    case '>' -> appendEscaped("&gt;");
+                    case '"' -> appendEscaped("&quot;");
+                    case '\'' -> appendEscaped("&apos;");
+                    default -> {
+                        if (!isStrippedControlCharacter(c)) {
+                            buffer[count++] = (byte) c;
+                        }
+                    }
+                }
+            } else if (c < 0x80) {
+                buffer[count++] = (byte) c;
+            } else if (c < 0x800) {
+                buffer[count++] = (byte) (0xc0 | (c >> 6));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            } else if (Character.isHighSurrogate(c)
+                    && i + 1 < length
+                    && Character.isLowSurrogate(string.charAt(i + 1))) {
+                final int codePoint = Character.toCodePoint(c, string.charAt(++i));
+                buffer[count++] = (byte) (0xf0 | (codePoint >> 18));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 12) & 0x3f));
+                buffer[count++] = (byte) (0x80 | ((codePoint >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (codePoint & 0x3f));
+            } else if (Character.isSurrogate(c)) {
+                // unpaired surrogate; same replacement OutputStreamWriter would use
+                buffer[count++] = '?';
+            } else {
+                buffer[count++] = (byte) (0xe0 | (c >> 12));
+                buffer[count++] = (byte) (0x80 | ((c >> 6) & 0x3f));
+                buffer[count++] = (byte) (0x80 | (c & 0x3f));
+            }
+        }
+    }
+
+    private void appendEscaped(final String entity) {
+        for (int i = 0; i < entity.length(); ++i) {
+            buffer[count++] = (byte) entity.charAt(i);
+        }
+    }
+
+    // mirrors the [\p{Cntrl}&&[^\n\t\r]] filter in XmlHelper.encodeEntities()
+    private static boolean isStrippedControlCharacter(final char c) {
+        return (c < 0x20 && c != '\n' && c != '\t' && c != '\r') || c == 0x7f;
+    }
+
+    private void ensureCapacity(final int additional) {
+        if (count + additional > buffer.length) {
+            final byte[] grown = new byte[Math.max(buffer.length * 2, count + additional)];
+            System.arraycopy(buffer, 0, grown, 0, count);
+            this.buffer = grown;
+        }
+    }
+}
@@ -16,6 +16,7 @@ import java.io.Closeable;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
+import java.util.Hashtable;
 
 public class XmlReader implements Closeable {
 	private final XmlPullParser parser;
@@ -62,21 +63,8 @@ public class XmlReader implements Closeable {
 		try {
 			while (this.is != null && parser.next() != XmlPullParser.END_DOCUMENT) {
 				if (parser.getEventType() == XmlPullParser.START_TAG) {
-					Tag tag = Tag.start(parser.getName());
-					final String xmlns = parser.getNamespace();
-					for (int i = 0; i < parser.getAttributeCount(); ++i) {
-						final String prefix = parser.getAttributePrefix(i);
-						String name;
-						if (prefix != null && !prefix.isEmpty()) {
-							name = prefix+":"+parser.getAttributeName(i);
-						} else {
-							name = parser.getAttributeName(i);
-						}
-						tag.setAttribute(name,parser.getAttributeValue(i));
-					}
-					if (xmlns != null) {
-						tag.setAttribute("xmlns", xmlns);
-					}
+					final Tag tag = Tag.start(parser.getName());
+					copyAttributes(tag.getAttributes());
 					return tag;
 				} else if (parser.getEventType() == XmlPullParser.END_TAG) {
 					return Tag.end(parser.getName());
@@ -86,11 +74,32 @@ public class XmlReader implements Closeable {
 			}
 
 		} catch (Throwable throwable) {
-			throw new IOException("xml parser mishandled "+throwable.getClass().getSimpleName()+"("+throwable.getMessage()+")", throwable);
+			throw mishandled(throwable);
 		}
 		return null;
 	}
 
+	private void copyAttributes(final Hashtable<String, String> attributes) {
+		final String xmlns = parser.getNamespace();
+		for (int i = 0; i < parser.getAttributeCount(); ++i) {
+			final String prefix = parser.getAttributePrefix(i);
+			final String name;
+			if (prefix != null && !prefix.isEmpty()) {
+				name = prefix + ":" + parser.getAttributeName(i);
+			} else {
+				name = parser.getAttributeName(i);
+			}
+			attributes.put(name, parser.getAttributeValue(i));
+		}
+		if (xmlns != null) {
+			attributes.put("xmlns", xmlns);
+		}
+	}
+
+	private static IOException mishandled(final Throwable throwable) {
+		return new IOException("xml parser mishandled "+throwable.getClass().getSimpleName()+"("+throwable.getMessage()+")", throwable);
+	}
+
 	public <T extends StreamElement> T readElement(final Tag current, final Class<T> clazz)
 			throws IOException {
 		final Element element = readElement(current);
@@ -107,27 +116,51 @@ public class XmlReader implements Closeable {
 		final var name = currentTag.getName();
 		final Element element = ExtensionFactory.create(name, namespace);
 		element.setAttributes(currentTag.getAttributes());
-		Tag nextTag = this.readTag();
-		if (nextTag == null) {
-			throw new IOException("interrupted mid tag");
+		try {
+			readChildren(element);
+		} catch (final IOException e) {
+			throw e;
+		} catch (final Throwable throwable) {
+			throw mishandled(throwable);
 		}
-		if (nextTag.isNo()) {
-			element.setContent(nextTag.getName());
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
-			}
+		return element;
+	}
+
+	/**
+	 * Reads everything up to and including the end tag of the element the parser is currently
+	 * positioned in. Descendants are created straight from the pull parser events; unlike the top
+	 * level stream elements they never go through an intermediate {@link Tag}.
+	 */
+	private void readChildren(final Element element) throws IOException, XmlPullParserException {
+		int event = next();
+		if (event == XmlPullParser.TEXT) {
+			element.setContent(parser.getText());
+			event = next();
 		}
-		while (!nextTag.isEnd(element.getName())) {
-			if (!nextTag.isNo()) {
-				Element child = this.readElement(nextTag);
-				element.addChild(child);
-			}
-			nextTag = this.readTag();
-			if (nextTag == null) {
-				throw new IOException("interrupted mid tag");
+		while (event != XmlPullParser.END_TAG) {
+			if (event == XmlPullParser.START_TAG) {
+				element.addChild(readChild());
 			}
+			event = next();
 		}
-		return element;
+	}
+
+	private Element readChild() throws IOException, XmlPullParserException {
+		final String namespace = parser.getNamespace();
+		final Element child = ExtensionFactory.create(parser.getName(), namespace);
+		// reuse the table the constructor allocated but drop anything it may have preset
+		final var attributes = child.getAttributes();
+		attributes.clear();
+		copyAttributes(attributes);
+		readChildren(child);
+		return child;
+	}
+
+	private int next() throws IOException, XmlPullParserException {
+		final int event = this.is == null ? XmlPullParser.END_DOCUMENT : parser.next();
+		if (event == XmlPullParser.END_DOCUMENT) {
+			throw new IOException("interrupted mid tag");
+		}
+		return event;
 	}
 }
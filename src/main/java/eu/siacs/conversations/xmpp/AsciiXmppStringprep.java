@@ -0,0 +1,101 @@
+package eu.siacs.conversations.xmpp;
+
+import org.jxmpp.JxmppContext;
+import org.jxmpp.stringprep.XmppStringprep;
+import org.jxmpp.stringprep.XmppStringprepException;
+import org.jxmpp.stringprep.libidn.LibIdnXmppStringprep;
+
+/**
+ * Stringprep that handles the common case of pure ASCII address parts without going through
+ * libidn. For ASCII input the nodeprep and nameprep profiles reduce to lower casing plus a set of
+ * prohibited characters and resourceprep reduces to rejecting control characters, so input that
+ * is known to be valid is prepared here directly. Everything else, including all input that
+ * would be rejected, is passed on to libidn so errors are reported exactly as before.
+ */
+public final class AsciiXmppStringprep implements XmppStringprep {
+
+    private final XmppStringprep fallback;
+
+    private AsciiXmppStringprep(final XmppStringprep fallback) {
+        this.fallback = fallback;
+    }
+
+    public static void setup() {
+        JxmppContext.setDefaultXmppStringprep(
+                new AsciiXmppStringprep(LibIdnXmppStringprep.getInstance()));
+    }
+
+    @Override
+    public String localprep(final String string) throws XmppStringprepException {
+        final String prepared = lowerCaseIfValid(string, false);
+        return prepared == null ? fallback.localprep(string) : prepared;
+    }
+
+    @Override
+    public String domainprep(final String string) throws XmppStringprepException {
+        final String prepared = lowerCaseIfValid(string, true);
+        return prepared == null ? fallback.domainprep(string) : prepared;
+    }
+
+    @Override
+    public String resourceprep(final String string) throws XmppStringprepException {
+        for (int i = 0; i < string.length(); ++i) {
+            final char c = string.charAt(i);
+            if (c < 0x20 || c > 0x7e) {
+                return fallback.resourceprep(string);
+            }
+        }
+        return string;
+    }
+
+    /**
+     * @return the lower cased string or null if it contains anything but the characters we can
+     *     safely prepare ourselves
+     */
+    private static String lowerCaseIfValid(final String string, final boolean domain) {
+        if (string.isEmpty()) {
+            return null;
+        }
+        boolean upperCase = false;
+        for (int i = 0; i < string.length(); ++i) {
+            final char c = string.charAt(i);
+            if (c >= 'A' && c <= 'Z') {
+                upperCase = true;
+            } else if (!(domain ? isDomainCharacter(c) : isLocalCharacter(c))) {
+                return null;
+            }
+        }
+        return upperCase ? toLowerCase(string) : string;
+    }
+
+    // printable ASCII minus the characters prohibited by nodeprep
+    private static boolean isLocalCharacter(final char c) {
+        if (c <= 0x20 || c >= 0x7f) {
+            return false;
+        }
+        return switch (c) {
+            case '"', '&', '\'', '/', ':', '<', '>', '@' -> false;
+            default -> true;
+        };
+    }
+
+    // letters, digits, hyphen, underscore and dot; anything else (IP literals, IDNs) is left to libidn
+    private static boolean isDomainCharacter(final char c) {
+        return (c >= 'a' && c <= 'z')
+                || (c >= '0' && c <= '9')
+                || c == '-'
+                || c == '_'
+                || c == '.';
+    }
+
+    private static String toLowerCase(final String string) {
+        final char[] chars = string.toCharArray();
+        for (int i = 0; i < chars.length; ++i) {
+            final char c = chars[i];
+            if (c >= 'A' && c <= 'Z') {
+                chars[i] = (char) (c + ('a' - 'A'));
+            }
+        }
+        return new String(chars);
+    }
+}
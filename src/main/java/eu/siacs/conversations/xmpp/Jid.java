@@ -117,7 +117,7 @@ public interface Jid extends Comparable<Jid>, Serializable, CharSequence {
 
     static Jid ofEscaped(CharSequence jid) {
         try {
-            return new WrappedJid(JidCreate.from(jid));
+            return JidCache.ofEscaped(jid);
         } catch (final XmppStringprepException e) {
             throw new IllegalArgumentException(e);
         }
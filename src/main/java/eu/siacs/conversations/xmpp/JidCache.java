@@ -0,0 +1,35 @@
+package eu.siacs.conversations.xmpp;
+
+import com.google.common.cache.Cache;
+import com.google.common.cache.CacheBuilder;
+
+import org.jxmpp.jid.impl.JidCreate;
+import org.jxmpp.stringprep.XmppStringprepException;
+
+/**
+ * Interns jids parsed from their escaped string representation. The same handful of addresses
+ * (our own account, contacts, rooms and their occupants) arrive with almost every stanza, so
+ * handing out one shared instance per address saves the parsing and allows {@link
+ * WrappedJid#asBareJid()} to be memoized for all of them. Jids are immutable which makes sharing
+ * them safe; invalid input is not cached.
+ */
+final class JidCache {
+
+    private static final int MAXIMUM_SIZE = 2048;
+
+    private static final Cache<String, Jid> ESCAPED =
+            CacheBuilder.newBuilder().maximumSize(MAXIMUM_SIZE).build();
+
+    private JidCache() {}
+
+    static Jid ofEscaped(final CharSequence jid) throws XmppStringprepException {
+        final String key = jid.toString();
+        final Jid cached = ESCAPED.getIfPresent(key);
+        if (cached != null) {
+            return cached;
+        }
+        final Jid parsed = new WrappedJid(JidCreate.from(key));
+        ESCAPED.put(key, parsed);
+        return parsed;
+    }
+}
@@ -12,6 +12,8 @@ import org.jxmpp.stringprep.XmppStringprepException;
 
 public class WrappedJid implements eu.siacs.conversations.xmpp.Jid {
     private final Jid inner;
+    private transient eu.siacs.conversations.xmpp.Jid bareJid;
+    private transient eu.siacs.conversations.xmpp.Jid domain;
 
     WrappedJid(Jid inner) {
         this.inner = inner;
@@ -34,7 +36,13 @@ public class WrappedJid implements eu.siacs.conversations.xmpp.Jid {
 
     @Override
     public eu.siacs.conversations.xmpp.Jid asBareJid() {
-        return new WrappedJid(inner.asBareJid());
+        // racy but idempotent; at worst two threads create equal instances
+        eu.siacs.conversations.xmpp.Jid bareJid = this.bareJid;
+        if (bareJid == null) {
+            bareJid = isBareJid() ? this : new WrappedJid(inner.asBareJid());
+            this.bareJid = bareJid;
+        }
+        return bareJid;
     }
 
     @Override
@@ -71,7 +79,12 @@ public class WrappedJid implements eu.siacs.conversations.xmpp.Jid {
 
     @Override
     public eu.siacs.conversations.xmpp.Jid getDomain() {
-        return new WrappedJid(inner.asDomainBareJid());
+        eu.siacs.conversations.xmpp.Jid domain = this.domain;
+        if (domain == null) {
+            domain = isDomainJid() && isBareJid() ? this : new WrappedJid(inner.asDomainBareJid());
+            this.domain = domain;
+        }
+        return domain;
     }
 
     @Override
@@ -21,6 +21,9 @@ import com.google.common.base.Optional;
 import com.google.common.base.Preconditions;
 import com.google.common.base.Strings;
 import com.google.common.collect.ImmutableList;
+import com.google.common.util.concurrent.Futures;
+import com.google.common.util.concurrent.ListenableFuture;
+import com.google.common.util.concurrent.MoreExecutors;
 
 import eu.siacs.conversations.AppSettings;
 import eu.siacs.conversations.BuildConfig;
@@ -47,6 +50,7 @@ import eu.siacs.conversations.services.NotificationService;
 import eu.siacs.conversations.services.XmppConnectionService;
 import eu.siacs.conversations.utils.AccountUtils;
 import eu.siacs.conversations.utils.CryptoHelper;
+import eu.siacs.conversations.utils.HappyEyeballs;
 import eu.siacs.conversations.utils.Patterns;
 import eu.siacs.conversations.utils.PhoneHelper;
 import eu.siacs.conversations.utils.Resolver;
@@ -109,7 +113,6 @@ import java.io.InputStream;
 import java.net.ConnectException;
 import java.net.IDN;
 import java.net.InetAddress;
-import java.net.InetSocketAddress;
 import java.net.Socket;
 import java.net.UnknownHostException;
 import java.security.KeyManagementException;
@@ -124,11 +127,16 @@ import java.util.Collections;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.Hashtable;
-import java.util.Iterator;
 import java.util.List;
 import java.util.Map.Entry;
 import java.util.Set;
 import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.Executor;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.Semaphore;
 import java.util.concurrent.TimeUnit;
 import java.util.concurrent.atomic.AtomicBoolean;
 import java.util.concurrent.atomic.AtomicInteger;
@@ -145,6 +153,14 @@ import javax.net.ssl.X509TrustManager;
 
 public class XmppConnection implements Runnable {
 
+    private static final ScheduledExecutorService ACK_REQUEST_SCHEDULER =
+            Executors.newSingleThreadScheduledExecutor();
+
+    // messages read ahead while their OMEMO payloads are being decrypted in the background
+    private static final int MAX_PENDING_MESSAGES = 32;
+    private static final ExecutorService MESSAGE_DISPATCH_EXECUTOR =
+            Executors.newCachedThreadPool();
+
     protected final Account account;
     private final Features features = new Features(this);
     private final HashMap<Jid, ServiceDiscoveryResult> disco = new HashMap<>();
@@ -169,6 +185,8 @@ public class XmppConnection implements Runnable {
     private int stanzasReceived = 0;
     private int stanzasSent = 0;
     private int stanzasSentBeforeAuthentication;
+    private int stanzasSinceAckRequest = 0;
+    private ScheduledFuture<?> pendingAckRequest = null;
     private long lastPacketReceived = 0;
     private long lastPingSent = 0;
     private long lastConnect = 0;
@@ -185,7 +203,12 @@ public class XmppConnection implements Runnable {
 
     private final Consumer<Presence> presenceListener;
     private final Consumer<Iq> unregisteredIqListener;
-    private final Consumer<im.conversations.android.xmpp.model.stanza.Message> messageListener;
+    private final MessageParser messageListener;
+    private final Executor messageDispatcher =
+            MoreExecutors.newSequentialExecutor(MESSAGE_DISPATCH_EXECUTOR);
+    private final Semaphore pendingMessages = new Semaphore(MAX_PENDING_MESSAGES);
+    private ListenableFuture<Void> lastMessageDispatch = null;
+    private volatile RuntimeException messageDispatchFailure = null;
     private OnStatusChanged statusListener = null;
     private final Runnable bindListener;
     private OnMessageAcknowledged acknowledgedListener = null;
@@ -292,6 +315,7 @@ public class XmppConnection implements Runnable {
         this.features.encryptionEnabled = false;
         this.inSmacksSession = false;
         this.quickStartInProgress = false;
+        resetAckRequests();
         this.isBound = false;
         this.attempt++;
         this.verifiedHostname =
@@ -360,11 +384,16 @@ public class XmppConnection implements Runnable {
                             account.getJid().asBareJid() + ": Resolver results were empty");
                     return;
                 }
-                final Resolver.Result storedBackupResult;
-                if (hardcoded) {
-                    storedBackupResult = null;
-                } else {
-                    storedBackupResult =
+                if (!hardcoded) {
+                    final List<Resolver.Result> ordered =
+                            Resolver.orderByConnectTime(
+                                    results,
+                                    mXmppConnectionService.databaseBackend.getResolverConnectTimes(
+                                            domain));
+                    results.clear();
+                    results.addAll(ordered);
+                    // the backup result may be stale; it is only tried after everything else
+                    final Resolver.Result storedBackupResult =
                             mXmppConnectionService.databaseBackend.findResolverResult(domain);
                     if (storedBackupResult != null && !results.contains(storedBackupResult)) {
                         results.add(storedBackupResult);
@@ -392,9 +421,9 @@ public class XmppConnection implements Runnable {
                                     + ": injected see-other-host on position 0");
                     results.add(0, seeOtherHost);
                 }
-                for (final Iterator<Resolver.Result> iterator = results.iterator();
-                        iterator.hasNext(); ) {
-                    final Resolver.Result result = iterator.next();
+                // candidates that have neither failed to connect nor to start the stream yet
+                final List<Resolver.Result> remaining = new ArrayList<>(results);
+                while (!remaining.isEmpty()) {
                     if (Thread.currentThread().isInterrupted()) {
                         Log.d(
                                 Config.LOGTAG,
@@ -402,43 +431,41 @@ public class XmppConnection implements Runnable {
                         return;
                     }
                     try {
+                        final HappyEyeballs.Connection connection =
+                                HappyEyeballs.connect(
+                                        remaining,
+                                        Config.SOCKET_TIMEOUT * 1000,
+                                        (result, e) -> {
+                                            Log.d(
+                                                    Config.LOGTAG,
+                                                    account.getJid().asBareJid()
+                                                            + ": unable to connect to "
+                                                            + result
+                                                            + " "
+                                                            + e.getMessage()
+                                                            + "("
+                                                            + e.getClass().getName()
+                                                            + ")");
+                                            remaining.remove(result);
+                                            if (!hardcoded) {
+                                                mXmppConnectionService.databaseBackend
+                                                        .saveResolverResult(domain, result, -1);
+                                            }
+                                        });
+                        final Resolver.Result result = connection.result;
+                        remaining.remove(result);
                         // if tls is true, encryption is implied and must not be started
                         features.encryptionEnabled = result.isDirectTls();
                         verifiedHostname =
                                 result.isAuthenticated() ? result.getHostname().toString() : null;
-                        final InetSocketAddress addr;
-                        if (result.getIp() != null) {
-                            addr = new InetSocketAddress(result.getIp(), result.getPort());
-                            Log.d(
-                                    Config.LOGTAG,
-                                    account.getJid().asBareJid().toString()
-                                            + ": using values from resolver "
-                                            + (result.getHostname() == null
-                                                    ? ""
-                                                    : result.getHostname().toString() + "/")
-                                            + result.getIp().getHostAddress()
-                                            + ":"
-                                            + result.getPort()
-                                            + " tls: "
-                                            + features.encryptionEnabled);
-                        } else {
-                            addr =
-                                    new InetSocketAddress(
-                                            IDN.toASCII(result.getHostname().toString()),
-                                            result.getPort());
-                            Log.d(
-                                    Config.LOGTAG,
-                                    account.getJid().asBareJid().toString()
-                                            + ": using values from resolver "
-                                            + result.getHostname().toString()
-                                            + ":"
-                                            + result.getPort()
-                                            + " tls: "
-                                            + features.encryptionEnabled);
-                        }
-
-                        localSocket = new Socket();
-                        localSocket.connect(addr, Config.SOCKET_TIMEOUT * 1000);
+                        Log.d(
+                                Config.LOGTAG,
+                                account.getJid().asBareJid().toString()
+                                        + ": using values from resolver "
+                                        + connection
+                                        + " tls: "
+                                        + features.encryptionEnabled);
+                        localSocket = connection.socket;
 
                         if (features.encryptionEnabled) {
                             localSocket = upgradeSocketToTls(localSocket);
@@ -449,9 +476,9 @@ public class XmppConnection implements Runnable {
                             localSocket.setSoTimeout(
                                     0); // reset to 0; once the connection is established we don’t
                             // want this
-                            if (!hardcoded && !result.equals(storedBackupResult)) {
+                            if (!hardcoded) {
                                 mXmppConnectionService.databaseBackend.saveResolverResult(
-                                        domain, result);
+                                        domain, result, connection.connectTime);
                             }
                             this.currentResolverResult = result;
                             this.seeOtherHostResolverResult = null;
@@ -461,7 +488,7 @@ public class XmppConnection implements Runnable {
                             throw new StateChangingException(Account.State.STREAM_OPENING_ERROR);
                         }
                     } catch (final StateChangingException e) {
-                        if (!iterator.hasNext()) {
+                        if (remaining.isEmpty()) {
                             throw e;
                         }
                     } catch (InterruptedException e) {
@@ -479,7 +506,7 @@ public class XmppConnection implements Runnable {
                                         + "("
                                         + e.getClass().getName()
                                         + ")");
-                        if (!iterator.hasNext()) {
+                        if (remaining.isEmpty()) {
                             throw new UnknownHostException();
                         }
                     }
@@ -601,6 +628,9 @@ public class XmppConnection implements Runnable {
         this.mStreamCountDownLatch = streamCountDownLatch;
         Tag nextTag = tagReader.readTag();
         while (nextTag != null && !nextTag.isEnd("stream")) {
+            if (!nextTag.isStart("message", Namespace.JABBER_CLIENT)) {
+                processPendingMessages();
+            }
             if (nextTag.isStart("error")) {
                 processStreamError(nextTag);
             } else if (nextTag.isStart("features", Namespace.STREAMS)) {
@@ -667,6 +697,7 @@ public class XmppConnection implements Runnable {
                                     + ": acknowledging stanza #"
                                     + this.stanzasReceived);
                 }
+                flushReceivedMessages();
                 final Ack ack = new Ack(this.stanzasReceived);
                 tagWriter.writeStanzaAsync(ack);
             } else if (nextTag.isStart("a", Namespace.STREAM_MANAGEMENT)) {
@@ -720,8 +751,9 @@ public class XmppConnection implements Runnable {
                                 + nextTag.identifier());
                 throw new StateChangingException(Account.State.INCOMPATIBLE_SERVER);
             }
-            nextTag = tagReader.readTag();
+            nextTag = readTagAfterMessages();
         }
+        processPendingMessages();
         if (nextTag != null && nextTag.isEnd("stream")) {
             streamCountDownLatch.countDown();
         }
@@ -1049,8 +1081,7 @@ public class XmppConnection implements Runnable {
         this.streamId = streamId;
         this.stanzasReceived = 0;
         this.inSmacksSession = true;
-        final var r = new Request();
-        tagWriter.writeStanzaAsync(r);
+        requestAck();
     }
 
     @Nullable
@@ -1070,7 +1101,7 @@ public class XmppConnection implements Runnable {
     private void processResumed(final Resumed resumed) throws StateChangingException {
         this.inSmacksSession = true;
         this.isBound = true;
-        this.tagWriter.writeStanzaAsync(new Request());
+        requestAck();
         lastPacketReceived = SystemClock.elapsedRealtime();
         final Optional<Integer> h = resumed.getHandled();
         final int serverCount;
@@ -1314,7 +1345,84 @@ public class XmppConnection implements Runnable {
                             + "Not processing message. Thread was interrupted");
             return;
         }
-        this.messageListener.accept(packet);
+        if (this.messageDispatchFailure != null) {
+            // rethrows the failure instead of parsing any further messages
+            processPendingMessages();
+        }
+        if (this.messageListener.prefetchDecryption(packet)) {
+            dispatchMessage(packet);
+        } else {
+            processPendingMessages();
+            this.messageListener.accept(packet);
+        }
+    }
+
+    /**
+     * Hands a message to the parser on the sequential message dispatcher so that the reader can
+     * go on reading while the message is still being decrypted. At most {@link
+     * #MAX_PENDING_MESSAGES} messages are in flight; beyond that the reader waits for the
+     * dispatcher to catch up. Once the parser has thrown, the messages that are still queued are
+     * dropped and the failure is rethrown on the reader thread, just as if the parser had thrown
+     * there. Nothing after the failed message is acknowledged.
+     */
+    private void dispatchMessage(final im.conversations.android.xmpp.model.stanza.Message packet) {
+        this.pendingMessages.acquireUninterruptibly();
+        this.lastMessageDispatch =
+                Futures.submit(
+                        () -> {
+                            try {
+                                if (this.messageDispatchFailure == null) {
+                                    this.messageListener.accept(packet);
+                                }
+                            } catch (final RuntimeException e) {
+                                this.messageDispatchFailure = e;
+                            } finally {
+                                this.pendingMessages.release();
+                            }
+                        },
+                        this.messageDispatcher);
+    }
+
+    /**
+     * Waits for the parser to be done with all messages that have been dispatched so far. This has
+     * to happen before any other stream element is processed and in particular before received
+     * stanzas are acknowledged.
+     */
+    private void processPendingMessages() {
+        final ListenableFuture<Void> dispatch = this.lastMessageDispatch;
+        if (dispatch == null) {
+            return;
+        }
+        this.lastMessageDispatch = null;
+        Futures.getUnchecked(dispatch);
+        final var axolotlService = account.getAxolotlService();
+        if (axolotlService != null) {
+            axolotlService.discardPrefetchedDecryptions();
+        }
+        final RuntimeException failure = this.messageDispatchFailure;
+        if (failure != null) {
+            this.messageDispatchFailure = null;
+            throw failure;
+        }
+    }
+
+    private Tag readTagAfterMessages() throws XmlPullParserException, IOException {
+        try {
+            return tagReader.readTag();
+        } catch (final XmlPullParserException | IOException e) {
+            // the messages have been counted as received already
+            processPendingMessages();
+            throw e;
+        }
+    }
+
+    /**
+     * Received messages are inserted into the database in batches. Everything that has been
+     * counted as received has to be stored before that count is reported to the server, which
+     * will not deliver those stanzas again.
+     */
+    private void flushReceivedMessages() {
+        mXmppConnectionService.databaseBackend.flushPendingMessages();
     }
 
     private void processPresence(final Tag currentTag) throws IOException {
@@ -1475,6 +1583,7 @@ public class XmppConnection implements Runnable {
                                 + ": resuming after stanza #"
                                 + stanzasReceived);
             }
+            flushReceivedMessages();
             final var resume = new Resume(this.streamId.id, stanzasReceived);
             this.mSmCatchupMessageCounter.set(0);
             this.mWaitingForSmCatchup.set(true);
@@ -1705,6 +1814,7 @@ public class XmppConnection implements Runnable {
             authenticate.addChild(generateBindRequest(bind));
         }
         if (inlineStreamManagement && streamId != null) {
+            flushReceivedMessages();
             final var resume = new Resume(this.streamId.id, stanzasReceived);
             this.mSmCatchupMessageCounter.set(0);
             this.mWaitingForSmCatchup.set(true);
@@ -2128,8 +2238,7 @@ public class XmppConnection implements Runnable {
                         synchronized (XmppConnection.this.disco) {
                             ServiceDiscoveryResult result = new ServiceDiscoveryResult(packet);
                             if (jid.equals(account.getDomain())) {
-                                mXmppConnectionService.databaseBackend.insertDiscoveryResult(
-                                        result);
+                                mXmppConnectionService.storeServiceDiscoveryResult(result);
                             }
                             disco.put(jid, result);
                             advancedStreamFeaturesLoaded =
@@ -2514,19 +2623,75 @@ public class XmppConnection implements Runnable {
                 if (stanza instanceof im.conversations.android.xmpp.model.stanza.Message
                         && stanza.getId() != null
                         && inSmacksSession) {
-                    if (Config.EXTENDED_SM_LOGGING) {
-                        Log.d(
-                                Config.LOGTAG,
-                                account.getJid().asBareJid()
-                                        + ": requesting ack for message stanza #"
-                                        + stanzasSent);
-                    }
-                    tagWriter.writeStanzaAsync(new Request());
+                    scheduleAckRequest();
                 }
             }
         }
     }
 
+    /**
+     * Requests an ack for the message that was just counted. Instead of following every message
+     * with its own &lt;r/&gt; requests are coalesced: bulk sends (read markers, broadcasts) get one
+     * request after a short window or after a number of messages, whatever comes first. Once more
+     * than {@link Config#SM_MAX_UNACKNOWLEDGED_STANZAS} stanzas are in flight every message
+     * requests an ack right away to get the queue drained.
+     */
+    private void scheduleAckRequest() {
+        synchronized (this.mStanzaQueue) {
+            ++this.stanzasSinceAckRequest;
+            if (this.stanzasSinceAckRequest >= Config.SM_ACK_REQUEST_STANZA_THRESHOLD
+                    || this.mStanzaQueue.size() > Config.SM_MAX_UNACKNOWLEDGED_STANZAS) {
+                requestAck();
+            } else if (this.pendingAckRequest == null) {
+                this.pendingAckRequest =
+                        ACK_REQUEST_SCHEDULER.schedule(
+                                this::requestPendingAck,
+                                Config.SM_ACK_REQUEST_DELAY,
+                                TimeUnit.MILLISECONDS);
+            }
+        }
+    }
+
+    private void requestPendingAck() {
+        synchronized (this.mStanzaQueue) {
+            this.pendingAckRequest = null;
+            if (this.stanzasSinceAckRequest > 0 && this.inSmacksSession) {
+                requestAck();
+            }
+        }
+    }
+
+    private void requestAck() {
+        synchronized (this.mStanzaQueue) {
+            if (Config.EXTENDED_SM_LOGGING) {
+                Log.d(
+                        Config.LOGTAG,
+                        account.getJid().asBareJid()
+                                + ": requesting ack for stanza #"
+                                + stanzasSent
+                                + " ("
+                                + mStanzaQueue.size()
+                                + " in flight)");
+            }
+            if (this.pendingAckRequest != null) {
+                this.pendingAckRequest.cancel(false);
+                this.pendingAckRequest = null;
+            }
+            this.stanzasSinceAckRequest = 0;
+            tagWriter.writeStanzaAsync(new Request());
+        }
+    }
+
+    private void resetAckRequests() {
+        synchronized (this.mStanzaQueue) {
+            if (this.pendingAckRequest != null) {
+                this.pendingAckRequest.cancel(false);
+                this.pendingAckRequest = null;
+            }
+            this.stanzasSinceAckRequest = 0;
+        }
+    }
+
     public void sendPing() {
         if (!r()) {
             final Iq iq = new Iq(Iq.Type.GET);
@@ -2640,7 +2805,7 @@ public class XmppConnection implements Runnable {
 
     public boolean r() {
         if (getFeatures().sm()) {
-            this.tagWriter.writeStanzaAsync(new Request());
+            requestAck();
             return true;
         } else {
             return false;
@@ -24,6 +24,8 @@ import com.google.common.util.concurrent.MoreExecutors;
 import com.google.common.util.concurrent.SettableFuture;
 
 import eu.siacs.conversations.Config;
+import eu.siacs.conversations.persistance.FileBackend;
+import eu.siacs.conversations.utils.Resolver;
 import eu.siacs.conversations.utils.SocksSocketFactory;
 import eu.siacs.conversations.xml.Element;
 import eu.siacs.conversations.xml.Namespace;
@@ -41,7 +43,6 @@ import java.net.InetAddress;
 import java.net.InetSocketAddress;
 import java.net.ServerSocket;
 import java.net.Socket;
-import java.net.SocketAddress;
 import java.net.SocketException;
 import java.nio.ByteBuffer;
 import java.nio.charset.StandardCharsets;
@@ -51,6 +52,7 @@ import java.util.Arrays;
 import java.util.Collection;
 import java.util.Collections;
 import java.util.Comparator;
+import java.util.List;
 import java.util.Locale;
 import java.util.UUID;
 import java.util.concurrent.CountDownLatch;
@@ -760,9 +762,7 @@ public class SocksByteStreamsTransport implements Transport {
                 Log.d(Config.LOGTAG, "using Tor to connect to candidate " + candidate.host);
                 socket = SocksSocketFactory.createSocketOverTor(candidate.host, candidate.port);
             } else {
-                socket = new Socket();
-                final SocketAddress address = new InetSocketAddress(candidate.host, candidate.port);
-                socket.connect(address, timeout);
+                socket = connect(Resolver.lookup(candidate.host), candidate.port, timeout);
             }
             socket.setSoTimeout(timeout);
             SocksSocketFactory.createSocksConnection(socket, destination, 0);
@@ -770,6 +770,27 @@ public class SocksByteStreamsTransport implements Transport {
             return new Connection(candidate, socket);
         }
 
+        /** Tries the resolved addresses of a candidate in order until one accepts a connection. */
+        private Socket connect(
+                final List<InetAddress> addresses, final int port, final int timeout)
+                throws IOException {
+            IOException lastException = null;
+            for (final InetAddress address : addresses) {
+                final Socket socket = new Socket();
+                try {
+                    socket.connect(new InetSocketAddress(address, port), timeout);
+                    return socket;
+                } catch (final IOException e) {
+                    FileBackend.close(socket);
+                    lastException = e;
+                }
+            }
+            if (lastException != null) {
+                throw lastException;
+            }
+            throw new IOException("no addresses to connect to");
+        }
+
         private Integer getSelectedByThemCandidatePriority() {
             final var future = this.selectedByThemCandidate;
             if (future != null && future.isDone()) {